@@ -0,0 +1,92 @@
+package com.giggle.team.controller;
+
+import com.giggle.team.models.Topic;
+import com.giggle.team.models.UserEntity;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duplicate chat detection of {@link ChatController#createChat}:
+ * the former scan of all chats of the creator comparing member lists against the members key lookup,
+ * the unique index is stood in by a hash set, so neither case includes mongo round trips
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DuplicateChatBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int chatsPerUser;
+
+    @Param({"2", "8"})
+    private int members;
+
+    private List<Topic> topics;
+    private Set<String> membersKeys;
+    private List<UserEntity> usersToAdd;
+
+    @Setup
+    public void setup() {
+        UserEntity creator = user(0);
+        topics = new ArrayList<>();
+        membersKeys = new HashSet<>();
+        for (int i = 0; i < chatsPerUser; i++) {
+            Topic topic = new Topic("chat" + i, "chat" + i);
+            topic.addUser(creator);
+            for (int j = 1; j < members; j++) {
+                topic.addUser(user(i * members + j));
+            }
+            topic.updateMembersKey();
+            topics.add(topic);
+            membersKeys.add(topic.getMembersKey());
+        }
+        usersToAdd = new ArrayList<>();
+        usersToAdd.add(creator);
+        for (int j = 1; j < members; j++) {
+            usersToAdd.add(user(-j));
+        }
+    }
+
+    @Benchmark
+    public boolean scan() {
+        for (Topic topic : topics) {
+            if (!topic.getStompDestination().equals("main")) {
+                if (topic.getUsers().size() == usersToAdd.size() && topic.getUsers().containsAll(usersToAdd)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean membersKey() {
+        return membersKeys.contains(Topic.membersKeyOf(usersToAdd));
+    }
+
+    private static UserEntity user(int i) {
+        UserEntity user = new UserEntity("User" + i, "password", "user" + i + "@example.com");
+        user.setId(new ObjectId());
+        return user;
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.services.MessageMetrics;
+import com.giggle.team.services.ReadOffsetService;
+import com.giggle.team.utils.MessageCodec;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.helpers.NOPLogger;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UserListener#onMessage} of one poll: decoding the kafka values, converting them for every subscribed session
+ * as a frame per message or as one batch frame
+ * and recording the delivered offsets, the outbound channel drops the messages and logging is off
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserListenerBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int sessions;
+
+    @Param({"1", "20"})
+    private int records;
+
+    @Param({"false", "true"})
+    private boolean batching;
+
+    private String chat;
+    private byte[] value;
+    private UserListener listener;
+    private long offset;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        chat = UUID.randomUUID().toString().replace("-", "");
+        value = MessageCodec.encode(new Message(chat, Message.MessageType.CHAT, "lorem ipsum dolor sit amet",
+                "user@example.com", "User", UUID.randomUUID().toString().replace("-", "")));
+        SimpMessagingTemplate template = new SimpMessagingTemplate((message, timeout) -> {
+            blackhole.consume(message);
+            return true;
+        });
+        template.setMessageConverter(new MappingJackson2MessageConverter());
+        Set<ChatSubscription> subscribers = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < sessions; i++) {
+            subscribers.add(new ChatSubscription("session-" + i, "user" + i + "@example.com", chat, batching, null));
+        }
+        listener = new UserListener(template, new ReadOffsetService(null, null),
+                new MessageMetrics(new SimpleMeterRegistry(), 100), null, chat, subscribers,
+                100, NOPLogger.NOP_LOGGER);
+    }
+
+    @Benchmark
+    public void onMessage() {
+        List<ConsumerRecord<String, Message>> poll = new ArrayList<>(records);
+        for (int i = 0; i < records; i++) {
+            poll.add(new ConsumerRecord<>(chat, 0, offset++, null, MessageCodec.decode(value)));
+        }
+        listener.onMessage(poll);
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.giggle.team.repositories;
+
+import com.giggle.team.models.Topic;
+import com.giggle.team.models.UserEntity;
+import org.bson.types.ObjectId;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Map backed stand-ins for the mongo repositories, only the methods used on the benchmarked paths are implemented
+ * Implemented methods are looked up by signature when the stand-in is created, so a renamed repository method fails the benchmark setup
+ */
+public final class InMemoryRepositories {
+
+    private InMemoryRepositories() {
+    }
+
+    public static UserRepository userRepository(Map<String, UserEntity> usersByEmail) {
+        Map<Method, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put(method(UserRepository.class, "findByEmail", String.class), args -> usersByEmail.get((String) args[0]));
+        return stand(UserRepository.class, methods);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static TopicRepository topicRepository(Map<ObjectId, Topic> topicsById) {
+        Map<Method, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put(method(TopicRepository.class, "findAllById", Iterable.class), args -> {
+            List<Topic> topics = new ArrayList<>();
+            for (ObjectId id : (Iterable<ObjectId>) args[0]) {
+                Topic topic = topicsById.get(id);
+                if (Objects.nonNull(topic)) {
+                    topics.add(topic);
+                }
+            }
+            return topics;
+        });
+        return stand(TopicRepository.class, methods);
+    }
+
+    private static Method method(Class<?> repository, String name, Class<?>... parameterTypes) {
+        try {
+            return repository.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("No method " + name + " in " + repository.getSimpleName(), e);
+        }
+    }
+
+    private static <T> T stand(Class<T> repository, Map<Method, Function<Object[], Object>> methods) {
+        return repository.cast(Proxy.newProxyInstance(repository.getClassLoader(), new Class<?>[]{repository},
+                (proxy, method, args) -> {
+                    Function<Object[], Object> implementation = methods.get(method);
+                    if (implementation != null) {
+                        return implementation.apply(args);
+                    }
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "InMemory" + repository.getSimpleName();
+                        default:
+                            throw new UnsupportedOperationException(repository.getSimpleName() + "." + method.getName()
+                                    + " is not implemented by the in-memory stand-in");
+                    }
+                }));
+    }
+
+}
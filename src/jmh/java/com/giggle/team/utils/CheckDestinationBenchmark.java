@@ -0,0 +1,97 @@
+package com.giggle.team.utils;
+
+import com.giggle.team.models.Topic;
+import com.giggle.team.models.UserEntity;
+import com.giggle.team.repositories.InMemoryRepositories;
+import com.giggle.team.services.MembershipCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MessageUtils#checkDestination} with the membership cache warm and cold,
+ * repositories are in-memory stand-ins, so the cold case shows the cache loading cost without mongo round trips
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckDestinationBenchmark {
+
+    private static final String EMAIL = "user@example.com";
+
+    @Param({"10", "100"})
+    private int chatsPerUser;
+
+    private MembershipCache membershipCache;
+    private MessageUtils messageUtils;
+    private Principal principal;
+    private String memberDestination;
+    private String foreignDestination;
+
+    @Setup
+    public void setup() {
+        UserEntity user = new UserEntity("User", "password", EMAIL);
+        user.setId(new ObjectId());
+        Map<ObjectId, Topic> topics = new HashMap<>();
+        for (int i = 0; i < chatsPerUser; i++) {
+            String chat = UUID.randomUUID().toString().replace("-", "");
+            Topic topic = new Topic(chat, chat);
+            topic.setId(new ObjectId());
+            topic.addUser(user);
+            topics.put(topic.getId(), topic);
+            user.getTopics().add(topic.getId());
+            memberDestination = "/user/queue/" + chat;
+        }
+        Map<String, UserEntity> users = new HashMap<>();
+        users.put(EMAIL, user);
+        membershipCache = new MembershipCache(InMemoryRepositories.userRepository(users),
+                InMemoryRepositories.topicRepository(topics), new SimpleMeterRegistry(), 100000, 600000);
+        messageUtils = new MessageUtils(membershipCache);
+        principal = () -> EMAIL;
+        foreignDestination = "/user/queue/" + UUID.randomUUID().toString().replace("-", "");
+        if (!memberCold() || !member() || notMember() || !service()) {
+            throw new IllegalStateException("Unexpected destination check results against the in-memory repositories");
+        }
+    }
+
+    @Benchmark
+    public boolean member() {
+        return messageUtils.checkDestination(principal, memberDestination);
+    }
+
+    @Benchmark
+    public boolean notMember() {
+        return messageUtils.checkDestination(principal, foreignDestination);
+    }
+
+    @Benchmark
+    public boolean service() {
+        return messageUtils.checkDestination(principal, "/user/queue/service");
+    }
+
+    @Benchmark
+    public boolean memberCold() {
+        membershipCache.invalidate(EMAIL);
+        return messageUtils.checkDestination(principal, memberDestination);
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.giggle.team.utils;
+
+import com.giggle.team.models.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary {@link MessageCodec} against the legacy "chatId-TYPE-content-sender-name-uuid" string format
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({"16", "256", "4096"})
+    private int contentLength;
+
+    private Message message;
+    private byte[] legacy;
+    private byte[] binary;
+
+    @Setup
+    public void setup() {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < contentLength) {
+            content.append("lorem ipsum ");
+        }
+        message = new Message(UUID.randomUUID().toString().replace("-", ""), Message.MessageType.CHAT,
+                content.substring(0, contentLength), "user@example.com", "User",
+                UUID.randomUUID().toString().replace("-", ""));
+        legacy = encodeLegacy(message);
+        binary = MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() {
+        return encodeLegacy(message);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Message decodeLegacy() {
+        String[] split = new String(legacy, StandardCharsets.UTF_8).split("-");
+        return new Message(split[0], Message.MessageType.valueOf(split[1]), split[2], split[3], split[4], split[5]);
+    }
+
+    @Benchmark
+    public String decodeBinary() {
+        return MessageCodec.decode(binary).getContent();
+    }
+
+    @Benchmark
+    public String decodeBinaryChatIdOnly() {
+        return MessageCodec.decode(binary).getChatId();
+    }
+
+    private static byte[] encodeLegacy(Message message) {
+        return (message.getChatId() + "-" + message.getType() + "-" + message.getContent() + "-"
+                + message.getSender() + "-" + message.getSenderName() + "-" + message.getMessageId())
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+}
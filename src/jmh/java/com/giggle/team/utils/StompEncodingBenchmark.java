@@ -0,0 +1,87 @@
+package com.giggle.team.utils;
+
+import com.giggle.team.models.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.util.MimeTypeUtils;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a chat {@link Message} the way it leaves the broker: jackson payload conversion and the STOMP MESSAGE frame,
+ * cbor is the payload of native websocket sessions negotiating it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompEncodingBenchmark {
+
+    @Param({"16", "256", "4096"})
+    private int contentLength;
+
+    private final MappingJackson2MessageConverter converter = new MappingJackson2MessageConverter();
+    private final MappingJackson2MessageConverter cborConverter = MessageUtils.cborMessageConverter();
+    private final StompEncoder encoder = new StompEncoder();
+    private Message message;
+    private byte[] json;
+
+    @Setup
+    public void setup() {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < contentLength) {
+            content.append("lorem ipsum ");
+        }
+        message = new Message(UUID.randomUUID().toString().replace("-", ""), Message.MessageType.CHAT,
+                content.substring(0, contentLength), "user@example.com", "User",
+                UUID.randomUUID().toString().replace("-", ""));
+        json = toJson();
+    }
+
+    @Benchmark
+    public byte[] toJson() {
+        return (byte[]) converter.toMessage(message, null).getPayload();
+    }
+
+    @Benchmark
+    public byte[] toCbor() {
+        return (byte[]) cborConverter.toMessage(message, MessageUtils.sessionHeaders("session", MessageUtils.APPLICATION_CBOR))
+                .getPayload();
+    }
+
+    @Benchmark
+    public byte[] toFrame() {
+        return encoder.encode(frameHeaders().getMessageHeaders(), json);
+    }
+
+    @Benchmark
+    public byte[] toJsonAndFrame() {
+        return encoder.encode(frameHeaders().getMessageHeaders(), toJson());
+    }
+
+    private StompHeaderAccessor frameHeaders() {
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.MESSAGE);
+        accessor.setDestination("/user/queue/" + message.getChatId());
+        accessor.setSubscriptionId("sub-0");
+        accessor.setMessageId("0");
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        return accessor;
+    }
+
+}
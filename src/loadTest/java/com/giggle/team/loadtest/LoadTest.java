@@ -0,0 +1,81 @@
+package com.giggle.team.loadtest;
+
+import com.giggle.team.TeamApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * End-to-end fan-out load test
+ * Starts an embedded kafka broker and the application with embedded mongo, then runs {@link LoadTestRun} against it
+ * With --nodes=N, N application nodes are started in the multi-node mode, sharing kafka and the mongo of the first node
+ * All arguments are passed to the application as well, so any application property can be overridden:
+ * ./gradlew loadTest --args="--sessions=5000 --chat-size=10 --nodes=2 --server.tomcat.max-connections=20000"
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        SimpleCommandLinePropertySource arguments = new SimpleCommandLinePropertySource(args);
+        LoadTestSettings settings = LoadTestSettings.of(arguments);
+        EmbeddedKafkaBroker kafka = new EmbeddedKafkaBroker(1, false, 1);
+        kafka.afterPropertiesSet();
+        List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+        // fresh search index and replay log for every run, kafka is fresh as well
+        Path searchPath = Files.createTempDirectory("loadtest-search");
+        Path replayLogPath = Files.createTempDirectory("loadtest-replay-log");
+        try {
+            List<String> baseUrls = new ArrayList<>();
+            String mongoPort = null;
+            for (int node = 0; node < settings.nodes; node++) {
+                Map<String, String> properties = new LinkedHashMap<>();
+                properties.put("spring.kafka.bootstrap-servers", kafka.getBrokersAsString());
+                properties.put("spring.data.mongodb.host", "localhost");
+                properties.put("spring.data.mongodb.port", "0");
+                properties.put("server.port", "0");
+                properties.put("spring.mongodb.embedded.version", "4.0.2");
+                properties.put("logging.level.root", "warn");
+                properties.put("logging.level.com.giggle.team.loadtest", "info");
+                properties.put("chat.search.path", searchPath.resolve("node" + node).toString());
+                properties.put("chat.replay-log.path", replayLogPath.resolve("node" + node).toString());
+                if (settings.nodes > 1) {
+                    properties.put("node-id", "node" + node);
+                    properties.put("chat.routing.enabled", "true");
+                }
+                if (mongoPort != null) {
+                    properties.put("spring.autoconfigure.exclude",
+                            "org.springframework.boot.autoconfigure.mongo.embedded.EmbeddedMongoAutoConfiguration");
+                    properties.put("loadtest.mongo-port", mongoPort);
+                }
+                for (String name : arguments.getPropertyNames()) {
+                    properties.put(name, arguments.getProperty(name));
+                }
+                String[] applicationArgs = properties.entrySet().stream()
+                        .map(property -> "--" + property.getKey() + "=" + property.getValue())
+                        .toArray(String[]::new);
+                ConfigurableApplicationContext context = new SpringApplicationBuilder(TeamApplication.class,
+                        LoadTestConfiguration.class).run(applicationArgs);
+                nodes.add(context);
+                if (mongoPort == null) {
+                    mongoPort = context.getEnvironment().getRequiredProperty("local.mongo.port");
+                }
+                baseUrls.add("http://localhost:" + context.getEnvironment().getRequiredProperty("local.server.port"));
+            }
+            new LoadTestRun(settings, baseUrls).run();
+        } finally {
+            // the first node owns the embedded mongo, it goes last
+            for (int node = nodes.size() - 1; node >= 0; node--) {
+                nodes.get(node).close();
+            }
+            kafka.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.giggle.team.loadtest;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Pointing the application to the embedded mongo started by spring boot, or by the first node when loadtest.mongo-port is set
+ * Embedded mongo runs without authentication, so the credentials of application.yml are left out
+ */
+@Configuration
+public class LoadTestConfiguration {
+
+    /**
+     * Created after the embedded mongo server, which publishes its random port as local.mongo.port
+     */
+    @Bean(destroyMethod = "close")
+    public MongoClient mongoClient(Environment environment) {
+        String port = environment.getProperty("loadtest.mongo-port");
+        return MongoClients.create("mongodb://localhost:" + (port != null ? port : environment.getRequiredProperty("local.mongo.port")));
+    }
+
+}
@@ -0,0 +1,540 @@
+package com.giggle.team.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.giggle.team.models.Message;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One load test run against a started application:
+ * signing users up, creating chats, opening STOMP sessions on /ws and joining the chats through /app/chat.join,
+ * warming up with one message per chat and then sending through /app/sendMessage at a constant rate
+ * Latency is measured from the moment a message was scheduled to be sent, so a slow sender does not hide server delays
+ * Every user is served by one node, its home, chats mix users of all nodes
+ * A sent message is tracked until all its deliveries arrived, deliveries missing drain-timeout seconds after it was scheduled count as lost
+ */
+class LoadTestRun {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadTestRun.class);
+    private static final String PASSWORD = "load-test-password";
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final int TAG_LENGTH = 32;
+
+    private final LoadTestSettings settings;
+    private final List<String> baseUrls;
+    private final RestTemplate restTemplate = new RestTemplate();
+    private final WebSocketStompClient stompClient;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private final List<User> users = new ArrayList<>();
+    private final List<Chat> chats = new ArrayList<>();
+    private final List<Connection> connections = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Histogram latency = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+    private final LongAdder warmupExpected = new LongAdder();
+    private final LongAdder warmupDelivered = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder nacks = new LongAdder();
+    private final LongAdder transportErrors = new LongAdder();
+    private final AtomicLong lastDelivery = new AtomicLong();
+    private final Map<String, Object> report = new LinkedHashMap<>();
+    private String content;
+
+    LoadTestRun(LoadTestSettings settings, List<String> baseUrls) {
+        this.settings = settings;
+        this.baseUrls = baseUrls;
+        this.stompClient = new WebSocketStompClient(new SockJsClient(
+                Collections.singletonList(new WebSocketTransport(new StandardWebSocketClient()))));
+        this.stompClient.setMessageConverter(new MappingJackson2MessageConverter());
+    }
+
+    void run() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < settings.contentLength) {
+            builder.append("lorem ipsum ");
+        }
+        content = builder.substring(0, settings.contentLength);
+        ExecutorService setup = Executors.newFixedThreadPool(settings.setupThreads);
+        try {
+            threads.resetPeakThreadCount();
+            snapshot("started");
+            signUp(setup);
+            createChats(setup);
+            resolveChats();
+            connect(setup);
+            warmUp();
+            snapshot("connected");
+            measure();
+            snapshot("finished");
+            disconnect();
+            snapshot("disconnected");
+        } finally {
+            setup.shutdownNow();
+            stompClient.stop();
+        }
+        writeReport();
+    }
+
+    /**
+     * The first user is signed up alone, it creates the main chat
+     */
+    private void signUp(ExecutorService setup) throws Exception {
+        for (int i = 0; i < settings.users(); i++) {
+            users.add(new User("loadtest" + i + "@example.com", "loadtest" + i, baseUrls.get(i % baseUrls.size())));
+        }
+        signUp(users.get(0));
+        invokeAll(setup, users.subList(1, users.size()), this::signUp);
+        invokeAll(setup, users, this::logIn);
+        logger.info("Signed up " + users.size() + " users");
+    }
+
+    private void signUp(User user) {
+        Map<String, String> body = new HashMap<>();
+        body.put("username", user.username);
+        body.put("password", PASSWORD);
+        body.put("email", user.email);
+        restTemplate.postForEntity(user.baseUrl + "/api/v1/users", body, String.class);
+    }
+
+    /**
+     * Authenticating once per user, the session cookie is used afterwards to keep BCrypt out of the measured phase
+     */
+    private void logIn(User user) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBasicAuth(user.email, PASSWORD);
+        HttpHeaders response = restTemplate.exchange(user.baseUrl + "/api/v1/users", HttpMethod.GET,
+                new HttpEntity<>(headers), String.class).getHeaders();
+        String cookie = response.getFirst(HttpHeaders.SET_COOKIE);
+        if (cookie == null) {
+            throw new IllegalStateException("No session cookie for " + user.email);
+        }
+        user.cookie = cookie.split(";")[0];
+    }
+
+    /**
+     * Every round shuffles the users and splits them into chats of chat-size members, so each user gets chats-per-user chats
+     */
+    private void createChats(ExecutorService setup) throws Exception {
+        List<List<User>> groups = new ArrayList<>();
+        for (int round = 0; round < settings.chatsPerUser; round++) {
+            List<User> shuffled = new ArrayList<>(users);
+            Collections.shuffle(shuffled, new Random(settings.seed + round));
+            for (int i = 0; i + 1 < shuffled.size(); i += settings.chatSize) {
+                groups.add(shuffled.subList(i, Math.min(i + settings.chatSize, shuffled.size())));
+            }
+        }
+        LongAdder duplicates = new LongAdder();
+        invokeAll(setup, groups, group -> {
+            List<String> emails = new ArrayList<>();
+            for (User member : group.subList(1, group.size())) {
+                emails.add(member.email);
+            }
+            try {
+                restTemplate.exchange(group.get(0).baseUrl + "/kafka/chat/createChat", HttpMethod.POST,
+                        new HttpEntity<>(emails, group.get(0).headers()), String.class);
+            } catch (HttpClientErrorException e) {
+                if (e.getStatusCode() != HttpStatus.CONFLICT) {
+                    throw e;
+                }
+                duplicates.increment();
+            }
+        });
+        logger.info("Created " + (groups.size() - duplicates.sum()) + " chats, " + duplicates.sum() + " duplicates skipped");
+    }
+
+    /**
+     * createChat does not return the chat id, ids and members are read back from the paged chat list
+     */
+    private void resolveChats() {
+        Map<String, User> byEmail = new HashMap<>();
+        users.forEach(user -> byEmail.put(user.email, user));
+        for (int page = 0; ; page++) {
+            JsonNode result = restTemplate.exchange(users.get(0).baseUrl + "/api/v1/users/chats?size=200&page=" + page, HttpMethod.GET,
+                    new HttpEntity<>(users.get(0).headers()), JsonNode.class).getBody();
+            for (JsonNode topic : result.get("content")) {
+                String id = topic.get("stompDestination").asText();
+                if (id.equals("main")) {
+                    continue;
+                }
+                Chat chat = new Chat(id);
+                for (JsonNode member : topic.get("users")) {
+                    User user = byEmail.get(member.get("email").asText());
+                    if (user != null) {
+                        chat.members.add(user);
+                        user.chats.add(chat);
+                    }
+                }
+                chats.add(chat);
+            }
+            if (result.get("last").asBoolean()) {
+                break;
+            }
+        }
+        report.put("users", users.size());
+        report.put("chats", chats.size());
+    }
+
+    private void connect(ExecutorService setup) throws Exception {
+        List<User> sessionOwners = new ArrayList<>();
+        for (User user : users) {
+            for (int i = 0; i < settings.sessionsPerUser; i++) {
+                sessionOwners.add(user);
+            }
+        }
+        long start = System.nanoTime();
+        invokeAll(setup, sessionOwners, user -> {
+            WebSocketHttpHeaders handshakeHeaders = new WebSocketHttpHeaders();
+            handshakeHeaders.add(HttpHeaders.COOKIE, user.cookie);
+            StompSession session = stompClient.connect(user.baseUrl + "/ws", handshakeHeaders, new StompSessionHandlerAdapter() {
+                @Override
+                public void handleTransportError(StompSession session, Throwable exception) {
+                    transportErrors.increment();
+                }
+            }).get(30, TimeUnit.SECONDS);
+            Connection connection = new Connection(user, session);
+            session.subscribe("/user/queue/service", new ServiceHandler());
+            for (Chat chat : user.chats) {
+                session.subscribe("/user/queue/" + chat.id, new DeliveryHandler());
+            }
+            for (Chat chat : user.chats) {
+                connection.send("/app/chat.join", new Message(chat.id, Message.MessageType.JOIN, "", user.email, user.username, null));
+            }
+            user.connections.add(connection);
+            connections.add(connection);
+        });
+        report.put("sessions", connections.size());
+        report.put("connectSeconds", (System.nanoTime() - start) / 1e9);
+        logger.info("Opened " + connections.size() + " sessions");
+    }
+
+    /**
+     * One message per chat, all of them arrive only when every session has joined its chats
+     */
+    private void warmUp() throws InterruptedException {
+        for (Chat chat : chats) {
+            Connection connection = chat.members.get(0).connections.get(0);
+            warmupExpected.add(send(connection, chat, System.nanoTime(), false));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.warmupTimeout);
+        while (warmupDelivered.sum() < warmupExpected.sum() && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        sweep(Long.MAX_VALUE);
+        report.put("warmupDelivered", warmupDelivered.sum());
+        report.put("warmupExpected", warmupExpected.sum());
+        if (warmupDelivered.sum() < warmupExpected.sum()) {
+            logger.warn("Warmup incomplete: " + warmupDelivered.sum() + " of " + warmupExpected.sum() + " deliveries");
+        }
+    }
+
+    private void measure() throws Exception {
+        long total = (long) settings.rate * settings.duration;
+        long interval = TimeUnit.SECONDS.toNanos(1) / settings.rate;
+        long start = System.nanoTime();
+        long maxAge = TimeUnit.SECONDS.toNanos(settings.drainTimeout);
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor();
+        sweeper.scheduleWithFixedDelay(() -> sweep(maxAge), 1, 1, TimeUnit.SECONDS);
+        ExecutorService senders = Executors.newFixedThreadPool(settings.senderThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < settings.senderThreads; thread++) {
+            int first = thread;
+            futures.add(senders.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (long i = first; i < total; i += settings.senderThreads) {
+                    long intended = start + i * interval;
+                    long delay = intended - System.nanoTime();
+                    if (delay > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                    Connection connection = connections.get(random.nextInt(connections.size()));
+                    List<Chat> userChats = connection.user.chats;
+                    if (!userChats.isEmpty()) {
+                        expected.add(send(connection, userChats.get(random.nextInt(userChats.size())), intended, true));
+                        sent.increment();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        senders.shutdown();
+        long sendEnd = System.nanoTime();
+        long deadline = sendEnd + maxAge;
+        while (!pending.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        sweeper.shutdownNow();
+        sweeper.awaitTermination(10, TimeUnit.SECONDS);
+        sweep(Long.MAX_VALUE);
+        double sendSeconds = (sendEnd - start) / 1e9;
+        double deliverySeconds = Math.max(lastDelivery.get() - start, 1) / 1e9;
+        report.put("sent", sent.sum());
+        report.put("sendRate", sent.sum() / sendSeconds);
+        report.put("expectedDeliveries", expected.sum());
+        report.put("delivered", delivered.sum());
+        report.put("lost", lost.sum());
+        report.put("nacks", nacks.sum());
+        report.put("transportErrors", transportErrors.sum());
+        report.put("deliveryRate", delivered.sum() / deliverySeconds);
+        Map<String, Object> latencyMillis = new LinkedHashMap<>();
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            latencyMillis.put("p" + percentile, latency.getValueAtPercentile(percentile) / 1000.0);
+        }
+        latencyMillis.put("max", latency.getMaxValue() / 1000.0);
+        latencyMillis.put("mean", latency.getMean() / 1000.0);
+        report.put("latencyMillis", latencyMillis);
+    }
+
+    private void disconnect() throws InterruptedException {
+        for (Connection connection : connections) {
+            connection.session.disconnect();
+        }
+        Thread.sleep(2000);
+    }
+
+    /**
+     * The server gives every message an id of its own, so messages are told apart by the tag they start with
+     *
+     * @return deliveries the message should result in: every session of every member
+     */
+    private int send(Connection connection, Chat chat, long intended, boolean measured) {
+        String tag = UUID.randomUUID().toString().replace("-", "");
+        int deliveries = chat.members.size() * settings.sessionsPerUser;
+        pending.put(tag, new Pending(intended, measured, deliveries));
+        connection.send("/app/sendMessage", new Message(chat.id, Message.MessageType.CHAT,
+                tag + content.substring(Math.min(TAG_LENGTH, content.length())),
+                connection.user.email, connection.user.username, tag));
+        return deliveries;
+    }
+
+    private void delivered(Message message) {
+        String content = message.getContent();
+        String tag = content == null || content.length() < TAG_LENGTH ? null : content.substring(0, TAG_LENGTH);
+        Pending sentMessage = tag == null ? null : pending.get(tag);
+        if (sentMessage == null) {
+            return;
+        }
+        int remaining = sentMessage.remaining.decrementAndGet();
+        if (remaining < 0) {
+            // swept as lost already or delivered once too often
+            return;
+        }
+        if (remaining == 0) {
+            pending.remove(tag, sentMessage);
+        }
+        long now = System.nanoTime();
+        if (sentMessage.measured) {
+            latency.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(now - sentMessage.intended), MAX_LATENCY_MICROS));
+            delivered.increment();
+            lastDelivery.accumulateAndGet(now, Math::max);
+        } else {
+            warmupDelivered.increment();
+        }
+    }
+
+    /**
+     * Dropping messages scheduled more than maxAge nanoseconds ago, their missing deliveries of the measured phase count as lost
+     */
+    private void sweep(long maxAge) {
+        long now = System.nanoTime();
+        pending.entrySet().removeIf(entry -> {
+            Pending sentMessage = entry.getValue();
+            if (maxAge != Long.MAX_VALUE && now - sentMessage.intended <= maxAge) {
+                return false;
+            }
+            int missing = sentMessage.remaining.getAndSet(0);
+            if (sentMessage.measured && missing > 0) {
+                lost.add(missing);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Threads and heap after a full GC, they include the client side of the sessions running in the same JVM
+     */
+    private void snapshot(String phase) throws InterruptedException {
+        System.gc();
+        Thread.sleep(500);
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("threads", threads.getThreadCount());
+        snapshot.put("peakThreads", threads.getPeakThreadCount());
+        snapshot.put("heapUsedMb", memory.getHeapMemoryUsage().getUsed() / (1024 * 1024));
+        report.put(phase, snapshot);
+        logger.info(phase + ": " + snapshot);
+    }
+
+    private void writeReport() throws Exception {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put("nodes", settings.nodes);
+        parameters.put("sessions", settings.sessions);
+        parameters.put("sessionsPerUser", settings.sessionsPerUser);
+        parameters.put("chatsPerUser", settings.chatsPerUser);
+        parameters.put("chatSize", settings.chatSize);
+        parameters.put("rate", settings.rate);
+        parameters.put("duration", settings.duration);
+        parameters.put("contentLength", settings.contentLength);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("parameters", parameters);
+        result.putAll(report);
+        ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        File out = new File(settings.out);
+        if (out.getParentFile() != null) {
+            out.getParentFile().mkdirs();
+        }
+        objectMapper.writeValue(out, result);
+        logger.info("Load test result:\n" + objectMapper.writeValueAsString(result));
+    }
+
+    private static <T> void invokeAll(ExecutorService executor, List<T> items, ItemTask<T> task) throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (T item : items) {
+            tasks.add(() -> {
+                task.run(item);
+                return null;
+            });
+        }
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            future.get();
+        }
+    }
+
+    private interface ItemTask<T> {
+        void run(T item) throws Exception;
+    }
+
+    private static class User {
+        final String email, username, baseUrl;
+        final List<Chat> chats = new ArrayList<>();
+        final List<Connection> connections = Collections.synchronizedList(new ArrayList<>());
+        String cookie;
+
+        User(String email, String username, String baseUrl) {
+            this.email = email;
+            this.username = username;
+            this.baseUrl = baseUrl;
+        }
+
+        HttpHeaders headers() {
+            HttpHeaders headers = new HttpHeaders();
+            headers.add(HttpHeaders.COOKIE, cookie);
+            return headers;
+        }
+    }
+
+    private static class Chat {
+        final String id;
+        final List<User> members = new ArrayList<>();
+
+        Chat(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Websocket sessions allow one sender at a time
+     */
+    private static class Connection {
+        final User user;
+        final StompSession session;
+
+        Connection(User user, StompSession session) {
+            this.user = user;
+            this.session = session;
+        }
+
+        synchronized void send(String destination, Message message) {
+            session.send(destination, message);
+        }
+    }
+
+    private static class Pending {
+        final long intended;
+        final boolean measured;
+        final AtomicInteger remaining;
+
+        Pending(long intended, boolean measured, int deliveries) {
+            this.intended = intended;
+            this.measured = measured;
+            this.remaining = new AtomicInteger(deliveries);
+        }
+    }
+
+    private class DeliveryHandler implements StompFrameHandler {
+        @Override
+        public Type getPayloadType(StompHeaders headers) {
+            return Message.class;
+        }
+
+        @Override
+        public void handleFrame(StompHeaders headers, Object payload) {
+            delivered((Message) payload);
+        }
+    }
+
+    private class ServiceHandler implements StompFrameHandler {
+        @Override
+        public Type getPayloadType(StompHeaders headers) {
+            return Message.class;
+        }
+
+        @Override
+        public void handleFrame(StompHeaders headers, Object payload) {
+            if ("NACK".equals(((Message) payload).getContent())) {
+                nacks.increment();
+            }
+        }
+    }
+
+}
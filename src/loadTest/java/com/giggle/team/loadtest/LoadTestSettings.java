@@ -0,0 +1,66 @@
+package com.giggle.team.loadtest;
+
+import org.springframework.core.env.PropertySource;
+
+/**
+ * Parameters of a load test run, every one can be set as --name=value
+ */
+public class LoadTestSettings {
+
+    /** application nodes, users are spread over them evenly */
+    int nodes;
+    /** websocket sessions in total */
+    int sessions;
+    /** sessions opened by every user, e.g. browser tabs */
+    int sessionsPerUser;
+    int chatsPerUser;
+    /** members of every chat */
+    int chatSize;
+    /** messages sent per second during the measured phase */
+    int rate;
+    /** seconds of the measured phase */
+    int duration;
+    int contentLength;
+    int senderThreads;
+    int setupThreads;
+    /** seconds to wait for the warmup messages, which also shows all joins are in place */
+    int warmupTimeout;
+    /** seconds to wait for outstanding deliveries after the last send */
+    int drainTimeout;
+    long seed;
+    /** JSON report file */
+    String out;
+
+    static LoadTestSettings of(PropertySource<?> arguments) {
+        LoadTestSettings settings = new LoadTestSettings();
+        settings.nodes = intOf(arguments, "nodes", 1);
+        settings.sessions = intOf(arguments, "sessions", 1000);
+        settings.sessionsPerUser = intOf(arguments, "sessions-per-user", 1);
+        settings.chatsPerUser = intOf(arguments, "chats-per-user", 5);
+        settings.chatSize = intOf(arguments, "chat-size", 5);
+        settings.rate = intOf(arguments, "rate", 1000);
+        settings.duration = intOf(arguments, "duration", 60);
+        settings.contentLength = intOf(arguments, "content-length", 64);
+        settings.senderThreads = intOf(arguments, "sender-threads", 4);
+        settings.setupThreads = intOf(arguments, "setup-threads", 16);
+        settings.warmupTimeout = intOf(arguments, "warmup-timeout", 60);
+        settings.drainTimeout = intOf(arguments, "drain-timeout", 30);
+        settings.seed = intOf(arguments, "seed", 1);
+        Object out = arguments.getProperty("out");
+        settings.out = out == null ? "build/results/loadtest/results.json" : out.toString();
+        if (settings.chatSize < 2) {
+            throw new IllegalArgumentException("chat-size must be at least 2");
+        }
+        return settings;
+    }
+
+    int users() {
+        return Math.max(sessions / sessionsPerUser, chatSize);
+    }
+
+    private static int intOf(PropertySource<?> arguments, String name, int defaultValue) {
+        Object value = arguments.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value.toString());
+    }
+
+}
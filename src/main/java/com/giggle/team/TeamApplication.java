@@ -2,8 +2,10 @@ package com.giggle.team;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class TeamApplication {
     public static void main(String[] args) {
         SpringApplication.run(TeamApplication.class, args);
@@ -2,11 +2,15 @@ package com.giggle.team.api;
 
 import com.fasterxml.jackson.annotation.JsonView;
 import com.giggle.team.controller.ChatController;
-import com.giggle.team.models.Message;
 import com.giggle.team.models.Topic;
 import com.giggle.team.models.UserEntity;
 import com.giggle.team.repositories.TopicRepository;
 import com.giggle.team.repositories.UserRepository;
+import com.giggle.team.services.InboxService;
+import com.giggle.team.services.NotificationService;
+import com.giggle.team.services.UserCache;
+import com.giggle.team.services.UserDirectory;
+import com.giggle.team.services.UsernameIndex;
 import com.giggle.team.utils.MessageUtils;
 import com.giggle.team.utils.View;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,7 +18,6 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -22,7 +25,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.util.List;
+import java.util.Collections;
 import java.util.Objects;
 
 @RequestMapping("/api/v1/users")
@@ -41,11 +44,23 @@ public class UserController {
     private BCryptPasswordEncoder bCryptPasswordEncoder;
 
     @Autowired
-    private SimpMessagingTemplate template;
+    private NotificationService notificationService;
 
     @Autowired
     private ChatController chatController;
 
+    @Autowired
+    private UserCache userCache;
+
+    @Autowired
+    private UsernameIndex usernameIndex;
+
+    @Autowired
+    private InboxService inboxService;
+
+    @Autowired
+    private UserDirectory userDirectory;
+
     @Transactional
     @JsonView(View.Rest.class)
     @RequestMapping(value = "", method = RequestMethod.POST, consumes = "application/json")
@@ -58,15 +73,21 @@ public class UserController {
             }
             main.addUser(userEntity);
             userEntity.getTopics().add(main.getId());
-            userRepository.save(userEntity);
-            topicRepository.save(main);
-            List<UserEntity> users = userRepository.findAll();
-            for (UserEntity user:
-                    users) {
-                template.convertAndSendToUser(user.getEmail(), "/queue/service",
-                        new Message("service", Message.MessageType.SYSTEM,
-                                "USERS_UPDATE", "system", "system", "system"));
+            long version = 0;
+            try {
+                version = userDirectory.nextVersion();
+                userEntity.setDirectoryVersion(version);
+                userRepository.save(userEntity);
+            } finally {
+                if (version != 0) {
+                    userDirectory.written(version);
+                }
             }
+            topicRepository.save(main);
+            inboxService.saved(main, Collections.singletonList(userEntity));
+            userCache.created(userEntity);
+            usernameIndex.add(userEntity);
+            notificationService.usersUpdated();
             return new ResponseEntity<>("User created", HttpStatus.OK);
         }
         return new ResponseEntity<>("Email exists", HttpStatus.CONFLICT);
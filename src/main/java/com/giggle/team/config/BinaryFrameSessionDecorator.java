@@ -0,0 +1,39 @@
+package com.giggle.team.config;
+
+import com.giggle.team.utils.MessageUtils;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+
+/**
+ * Sending STOMP frames with cbor payloads as binary websocket messages
+ * StompSubProtocolHandler does it for application/octet-stream only and sends other content types as text,
+ * the encoded frame is still kept by the text message, so it is passed on unchanged
+ */
+public class BinaryFrameSessionDecorator extends WebSocketSessionDecorator {
+
+    private static final String CBOR_HEADER = "\ncontent-type:" + MessageUtils.APPLICATION_CBOR + "\n";
+
+    public BinaryFrameSessionDecorator(WebSocketSession delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (message instanceof TextMessage && isCbor((TextMessage) message)) {
+            message = new BinaryMessage(((TextMessage) message).asBytes());
+        }
+        super.sendMessage(message);
+    }
+
+    private static boolean isCbor(TextMessage message) {
+        String frame = message.getPayload();
+        int headersEnd = frame.indexOf("\n\n");
+        return headersEnd > 0 && frame.lastIndexOf(CBOR_HEADER, headersEnd) >= 0;
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.giggle.team.config;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ordered outbound buffer of one websocket session, works like ConcurrentWebSocketSessionDecorator:
+ * the thread getting the flush lock sends the buffered frames, the others only add theirs and return
+ * When the buffer grows over the size limit the overflow policy is applied,
+ * a session blocked in a send for longer than the send time limit is closed by the next sending thread
+ */
+public class BoundedSessionDecorator extends WebSocketSessionDecorator {
+
+    public enum OverflowPolicy {
+        /** dropping the oldest frames until the buffer fits */
+        DROP_OLDEST,
+        /** keeping only the newest of frames with the same destination and body, e.g. repeated update notices, then dropping the oldest */
+        COALESCE,
+        /** closing the session */
+        DISCONNECT
+    }
+
+    private final int sendTimeLimit;
+    private final int bufferSizeLimit;
+    private final OverflowPolicy policy;
+    private final OutboundBufferMetrics metrics;
+
+    private final Deque<WebSocketMessage<?>> buffer = new ArrayDeque<>();
+    private int bufferSize;
+    private volatile long sendStartTime;
+    private volatile boolean limitExceeded;
+    private volatile boolean closeInProgress;
+    private final Lock flushLock = new ReentrantLock();
+    private final Lock closeLock = new ReentrantLock();
+
+    public BoundedSessionDecorator(WebSocketSession delegate, int sendTimeLimit, int bufferSizeLimit,
+                                   OverflowPolicy policy, OutboundBufferMetrics metrics) {
+        super(delegate);
+        this.sendTimeLimit = sendTimeLimit;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.policy = policy;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (shouldNotSend()) {
+            return;
+        }
+        boolean overflow;
+        synchronized (buffer) {
+            buffer.add(message);
+            bufferSize += message.getPayloadLength();
+            metrics.enqueued(message.getPayloadLength(), bufferSize);
+            overflow = bufferSize > bufferSizeLimit;
+            if (overflow && policy != OverflowPolicy.DISCONNECT) {
+                evict();
+                overflow = false;
+            }
+        }
+        if (overflow) {
+            limitExceeded("Buffer size " + bufferSize + " bytes for session '" + getId() + "' exceeds the allowed limit "
+                    + bufferSizeLimit, false);
+        }
+        do {
+            if (!tryFlushBuffer()) {
+                checkSendTimeLimit();
+                break;
+            }
+        }
+        while (!isBufferEmpty() && !shouldNotSend());
+    }
+
+    /**
+     * Frames still waiting when the session is gone are not counted as buffered anymore
+     */
+    public void discard() {
+        synchronized (buffer) {
+            metrics.dequeued(bufferSize);
+            buffer.clear();
+            bufferSize = 0;
+        }
+    }
+
+    @Override
+    public void close(CloseStatus status) throws IOException {
+        closeLock.lock();
+        try {
+            if (closeInProgress) {
+                return;
+            }
+            closeInProgress = true;
+            super.close(status);
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    private boolean tryFlushBuffer() throws IOException {
+        if (!flushLock.tryLock()) {
+            return false;
+        }
+        try {
+            while (!shouldNotSend()) {
+                WebSocketMessage<?> message;
+                synchronized (buffer) {
+                    message = buffer.poll();
+                    if (message == null) {
+                        break;
+                    }
+                    bufferSize -= message.getPayloadLength();
+                    metrics.dequeued(message.getPayloadLength());
+                }
+                sendStartTime = System.currentTimeMillis();
+                getDelegate().sendMessage(message);
+                sendStartTime = 0;
+            }
+        } finally {
+            sendStartTime = 0;
+            flushLock.unlock();
+        }
+        return true;
+    }
+
+    private void checkSendTimeLimit() {
+        long start = sendStartTime;
+        if (start > 0 && System.currentTimeMillis() - start > sendTimeLimit && closeLock.tryLock()) {
+            try {
+                limitExceeded("Send time " + (System.currentTimeMillis() - start) + " ms for session '" + getId()
+                        + "' exceeded the allowed limit " + sendTimeLimit, true);
+            } finally {
+                closeLock.unlock();
+            }
+        }
+    }
+
+    private void limitExceeded(String reason, boolean timeLimit) {
+        limitExceeded = true;
+        metrics.disconnected(timeLimit);
+        throw new SessionLimitExceededException(reason, CloseStatus.SESSION_NOT_RELIABLE);
+    }
+
+    /**
+     * Called holding the buffer monitor
+     */
+    private void evict() {
+        if (policy == OverflowPolicy.COALESCE) {
+            Set<String> newer = new HashSet<>();
+            Iterator<WebSocketMessage<?>> iterator = buffer.descendingIterator();
+            while (iterator.hasNext()) {
+                WebSocketMessage<?> message = iterator.next();
+                String key = coalescingKey(message);
+                if (key != null && !newer.add(key)) {
+                    iterator.remove();
+                    bufferSize -= message.getPayloadLength();
+                    metrics.evicted(message.getPayloadLength());
+                }
+            }
+        }
+        while (bufferSize > bufferSizeLimit && buffer.size() > 1) {
+            WebSocketMessage<?> message = buffer.poll();
+            bufferSize -= message.getPayloadLength();
+            metrics.evicted(message.getPayloadLength());
+        }
+    }
+
+    private boolean isBufferEmpty() {
+        synchronized (buffer) {
+            return buffer.isEmpty();
+        }
+    }
+
+    private boolean shouldNotSend() {
+        return limitExceeded || closeInProgress;
+    }
+
+    /**
+     * Destination header and body of a STOMP frame, headers such as message-id differ between otherwise equal frames
+     */
+    private static String coalescingKey(WebSocketMessage<?> message) {
+        if (!(message instanceof TextMessage)) {
+            return null;
+        }
+        String frame = ((TextMessage) message).getPayload();
+        int destinationStart = frame.indexOf("\ndestination:");
+        int bodyStart = frame.indexOf("\n\n");
+        if (destinationStart < 0 || bodyStart < 0 || destinationStart > bodyStart) {
+            return null;
+        }
+        int destinationEnd = frame.indexOf('\n', destinationStart + 1);
+        return frame.substring(destinationStart + 1, destinationEnd) + frame.substring(bodyStart);
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.giggle.team.config;
+
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.SubscribableChannel;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decorating every websocket session with a {@link BoundedSessionDecorator},
+ * send time and buffer size limits come from configureWebSocketTransport
+ * Sessions of the native endpoint are decorated with a {@link BinaryFrameSessionDecorator} on top of it
+ */
+public class BoundedSubProtocolWebSocketHandler extends SubProtocolWebSocketHandler {
+
+    private final BoundedSessionDecorator.OverflowPolicy policy;
+    private final OutboundBufferMetrics metrics;
+    private final Map<String, BoundedSessionDecorator> decorators = new ConcurrentHashMap<>();
+
+    public BoundedSubProtocolWebSocketHandler(MessageChannel clientInboundChannel, SubscribableChannel clientOutboundChannel,
+                                              BoundedSessionDecorator.OverflowPolicy policy, OutboundBufferMetrics metrics) {
+        super(clientInboundChannel, clientOutboundChannel);
+        this.policy = policy;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected WebSocketSession decorateSession(WebSocketSession session) {
+        BoundedSessionDecorator decorator = new BoundedSessionDecorator(session, getSendTimeLimit(),
+                getSendBufferSizeLimit(), policy, metrics);
+        decorators.put(session.getId(), decorator);
+        return session instanceof SockJsSession ? decorator : new BinaryFrameSessionDecorator(decorator);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        try {
+            super.afterConnectionClosed(session, closeStatus);
+        } finally {
+            BoundedSessionDecorator decorator = decorators.remove(session.getId());
+            if (decorator != null) {
+                decorator.discard();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.giggle.team.config;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.authentication.InternalAuthenticationServiceException;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BCrypt password checks with a cache of verified credentials, so repeated HTTP Basic requests do not hash again
+ * Cache keys are HMACs of (stored hash, raw password) with a key generated on startup, raw passwords are never kept,
+ * a changed password has a new stored hash and so misses the cache
+ * Misses are hashed on a bounded pool of chat.auth.bcrypt-threads threads with a queue of chat.auth.bcrypt-queue checks,
+ * concurrent checks of the same credentials share one hash, checks over the queue are rejected at once
+ */
+@Component
+public class CachingPasswordEncoder implements PasswordEncoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingPasswordEncoder.class);
+    private static final String HMAC = "HmacSHA256";
+
+    private final BCryptPasswordEncoder delegate = new BCryptPasswordEncoder();
+    private final SecretKey key;
+    private final ThreadPoolExecutor pool;
+    private final AsyncCache<String, Boolean> verified;
+    private final long timeout;
+    private final Counter rejected;
+
+    public CachingPasswordEncoder(MeterRegistry meterRegistry,
+                                  @Value("${chat.auth.bcrypt-threads:0}") int threads,
+                                  @Value("${chat.auth.bcrypt-queue:100}") int queue,
+                                  @Value("${chat.auth.bcrypt-timeout:5000}") long timeout,
+                                  @Value("${chat.auth.credential-cache.maximum-size:100000}") long maximumSize,
+                                  @Value("${chat.auth.credential-cache.expire-after-write:300000}") long expireAfterWrite)
+            throws GeneralSecurityException {
+        this.key = KeyGenerator.getInstance(HMAC).generateKey();
+        this.timeout = timeout;
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "bcrypt-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        ExecutorServiceMetrics.monitor(meterRegistry, pool, "bcrypt");
+        this.verified = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofMillis(expireAfterWrite))
+                .recordStats()
+                .buildAsync(), "credentials");
+        this.rejected = Counter.builder("chat.auth.bcrypt.rejected")
+                .description("Password checks rejected because the bcrypt pool was full or too slow")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return delegate.encode(rawPassword);
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        if (rawPassword == null || encodedPassword == null) {
+            return false;
+        }
+        CompletableFuture<Boolean> check;
+        try {
+            // a mismatch completes with null, which caffeine does not keep, so only verified credentials are cached
+            check = verified.get(cacheKey(rawPassword, encodedPassword), (ignored, executor) ->
+                    CompletableFuture.supplyAsync(() -> delegate.matches(rawPassword, encodedPassword) ? Boolean.TRUE : null, pool));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new InternalAuthenticationServiceException("Too many password checks in progress", e);
+        }
+        try {
+            return check.get(timeout, TimeUnit.MILLISECONDS) != null;
+        } catch (TimeoutException e) {
+            rejected.increment();
+            throw new InternalAuthenticationServiceException("Password check took longer than " + timeout + " ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalAuthenticationServiceException("Password check interrupted", e);
+        } catch (ExecutionException e) {
+            throw new InternalAuthenticationServiceException("Password check failed", e.getCause());
+        }
+    }
+
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        return delegate.upgradeEncoding(encodedPassword);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+        logger.info("Stopped bcrypt pool");
+    }
+
+    private String cacheKey(CharSequence rawPassword, String encodedPassword) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(key);
+            mac.update(encodedPassword.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return Base64.getEncoder().encodeToString(mac.doFinal(rawPassword.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
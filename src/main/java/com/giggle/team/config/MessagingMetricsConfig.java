@@ -0,0 +1,45 @@
+package com.giggle.team.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+@Configuration
+public class MessagingMetricsConfig {
+
+    /**
+     * Queue depth and active threads of the STOMP channels, a growing clientOutbound queue means sessions can't keep up
+     * The executors are declared as TaskExecutor by the broker configuration, only thread pools are measured
+     */
+    @Bean
+    public MeterBinder channelMetrics(@Qualifier("clientInboundChannelExecutor") TaskExecutor clientInbound,
+                                      @Qualifier("clientOutboundChannelExecutor") TaskExecutor clientOutbound,
+                                      @Qualifier("brokerChannelExecutor") TaskExecutor broker) {
+        return registry -> {
+            bind(registry, "clientInbound", clientInbound);
+            bind(registry, "clientOutbound", clientOutbound);
+            bind(registry, "broker", broker);
+        };
+    }
+
+    private static void bind(MeterRegistry registry, String channel, TaskExecutor taskExecutor) {
+        if (!(taskExecutor instanceof ThreadPoolTaskExecutor)) {
+            return;
+        }
+        ThreadPoolTaskExecutor executor = (ThreadPoolTaskExecutor) taskExecutor;
+        Gauge.builder("stomp.channel.queue", executor, e -> e.getThreadPoolExecutor().getQueue().size())
+                .description("Messages waiting in the channel executor queue")
+                .tag("channel", channel)
+                .register(registry);
+        Gauge.builder("stomp.channel.active", executor, ThreadPoolTaskExecutor::getActiveCount)
+                .description("Channel executor threads handling messages")
+                .tag("channel", channel)
+                .register(registry);
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.giggle.team.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Meters of the outbound buffers of websocket sessions:
+ * websocket.outbound.buffered - bytes waiting in all session buffers
+ * websocket.outbound.backlog - bytes waiting in the buffer of one session, recorded on every enqueue, its max is the worst session
+ * websocket.outbound.evictions - frames dropped or coalesced on overflow
+ * websocket.outbound.disconnects - sessions closed for exceeding a limit, tagged reason=buffer|time
+ */
+public class OutboundBufferMetrics {
+
+    private final AtomicLong buffered = new AtomicLong();
+    private final DistributionSummary backlog;
+    private final Counter evictions;
+    private final Counter bufferDisconnects;
+    private final Counter timeDisconnects;
+
+    public OutboundBufferMetrics(MeterRegistry meterRegistry, BoundedSessionDecorator.OverflowPolicy policy) {
+        Gauge.builder("websocket.outbound.buffered", buffered, AtomicLong::get)
+                .description("Bytes waiting in the outbound buffers of all websocket sessions")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.backlog = DistributionSummary.builder("websocket.outbound.backlog")
+                .description("Bytes waiting in the outbound buffer of a websocket session")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.evictions = Counter.builder("websocket.outbound.evictions")
+                .description("Outbound frames dropped or coalesced because a session buffer was full")
+                .tag("policy", policy.name().toLowerCase())
+                .register(meterRegistry);
+        this.bufferDisconnects = disconnects(meterRegistry, "buffer");
+        this.timeDisconnects = disconnects(meterRegistry, "time");
+    }
+
+    void enqueued(int bytes, int sessionBacklog) {
+        buffered.addAndGet(bytes);
+        backlog.record(sessionBacklog);
+    }
+
+    void dequeued(int bytes) {
+        buffered.addAndGet(-bytes);
+    }
+
+    void evicted(int bytes) {
+        buffered.addAndGet(-bytes);
+        evictions.increment();
+    }
+
+    void disconnected(boolean timeLimit) {
+        (timeLimit ? timeDisconnects : bufferDisconnects).increment();
+    }
+
+    private static Counter disconnects(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("websocket.outbound.disconnects")
+                .description("Websocket sessions closed for exceeding an outbound limit")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+}
@@ -3,7 +3,10 @@ package com.giggle.team.config;
 import com.giggle.team.services.UserService;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.authentication.InternalAuthenticationServiceException;
 import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
@@ -12,11 +15,19 @@ import org.springframework.security.config.annotation.web.configuration.EnableWe
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.web.AuthenticationEntryPoint;
+import org.springframework.security.web.authentication.www.BasicAuthenticationEntryPoint;
 
 @Configuration
 @EnableWebSecurity
 public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
 
+    private final CachingPasswordEncoder cachingPasswordEncoder;
+
+    public SecurityConfiguration(CachingPasswordEncoder cachingPasswordEncoder) {
+        this.cachingPasswordEncoder = cachingPasswordEncoder;
+    }
+
     @Bean
     public BCryptPasswordEncoder getPasswordEncoder() {
         return new BCryptPasswordEncoder();
@@ -31,17 +42,34 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
     public DaoAuthenticationProvider authProvider() {
         DaoAuthenticationProvider authProvider = new DaoAuthenticationProvider();
         authProvider.setUserDetailsService(getUserDetailsService());
-        authProvider.setPasswordEncoder(getPasswordEncoder());
+        authProvider.setPasswordEncoder(cachingPasswordEncoder);
         return authProvider;
     }
 
+    /**
+     * One provider only, a failed check is not hashed again by another one
+     */
     @Override
-    public void configure(AuthenticationManagerBuilder builder) throws Exception {
-        builder.userDetailsService(getUserDetailsService())
-                .passwordEncoder(getPasswordEncoder());
+    public void configure(AuthenticationManagerBuilder builder) {
         builder.authenticationProvider(authProvider());
     }
 
+    /**
+     * Password checks rejected by the bcrypt pool are answered with 503, not with a challenge for other credentials
+     */
+    private static AuthenticationEntryPoint basicEntryPoint() {
+        BasicAuthenticationEntryPoint challenge = new BasicAuthenticationEntryPoint();
+        challenge.setRealmName("Realm");
+        return (request, response, authException) -> {
+            if (authException instanceof InternalAuthenticationServiceException) {
+                response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), authException.getMessage());
+            } else {
+                challenge.commence(request, response, authException);
+            }
+        };
+    }
+
     @Override
     protected void configure(HttpSecurity http) throws Exception {
         http.authorizeRequests()
@@ -61,8 +89,7 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
                         .deleteCookies()
                         .logoutSuccessUrl("/login?logout")
                         .permitAll())
-                .httpBasic()
-                .and()
+                .httpBasic(basic -> basic.authenticationEntryPoint(basicEntryPoint()))
                 .csrf().disable();
     }
 
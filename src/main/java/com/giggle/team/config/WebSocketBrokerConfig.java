@@ -0,0 +1,33 @@
+package com.giggle.team.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.config.annotation.DelegatingWebSocketMessageBrokerConfiguration;
+
+/**
+ * Message broker configuration of @EnableWebSocketMessageBroker with bounded outbound session buffers,
+ * the endpoints, broker and channels are still configured by {@link WebSocketConfig}
+ */
+@Configuration
+public class WebSocketBrokerConfig extends DelegatingWebSocketMessageBrokerConfiguration {
+
+    private final MeterRegistry meterRegistry;
+    private final BoundedSessionDecorator.OverflowPolicy overflowPolicy;
+
+    public WebSocketBrokerConfig(MeterRegistry meterRegistry,
+                                 @Value("${chat.websocket.overflow-policy:drop-oldest}") String overflowPolicy) {
+        this.meterRegistry = meterRegistry;
+        this.overflowPolicy = BoundedSessionDecorator.OverflowPolicy.valueOf(overflowPolicy.toUpperCase().replace('-', '_'));
+    }
+
+    @Bean
+    @Override
+    public WebSocketHandler subProtocolWebSocketHandler() {
+        return new BoundedSubProtocolWebSocketHandler(clientInboundChannel(), clientOutboundChannel(), overflowPolicy,
+                new OutboundBufferMetrics(meterRegistry, overflowPolicy));
+    }
+
+}
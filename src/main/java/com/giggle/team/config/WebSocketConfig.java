@@ -1,42 +1,74 @@
 package com.giggle.team.config;
 
 import com.giggle.team.services.SubscriptionInterceptor;
+import com.giggle.team.utils.MessageUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.converter.MessageConverter;
 import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
-import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 
+import java.util.List;
+
+/**
+ * Message broker itself is enabled by {@link WebSocketBrokerConfig}
+ */
 @Configuration
-@EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
     private final SubscriptionInterceptor subscriptionInterceptor;
+    private final int sendTimeLimit;
+    private final int sendBufferSizeLimit;
+    private final int messageSizeLimit;
+    private final int outboundThreads;
 
-    public WebSocketConfig(SubscriptionInterceptor subscriptionInterceptor) {
+    public WebSocketConfig(SubscriptionInterceptor subscriptionInterceptor,
+                           @Value("${chat.websocket.send-time-limit:10000}") int sendTimeLimit,
+                           @Value("${chat.websocket.send-buffer-size-limit:524288}") int sendBufferSizeLimit,
+                           @Value("${chat.websocket.message-size-limit:65536}") int messageSizeLimit,
+                           @Value("${chat.websocket.outbound-threads:16}") int outboundThreads) {
         this.subscriptionInterceptor = subscriptionInterceptor;
+        this.sendTimeLimit = sendTimeLimit;
+        this.sendBufferSizeLimit = sendBufferSizeLimit;
+        this.messageSizeLimit = messageSizeLimit;
+        this.outboundThreads = outboundThreads;
     }
 
     /**
      * Registering a websocket endpoint that the clients will use to connect to our
      * websocket server i.e. when a new user joins chat room.
+     * /ws-native is plain websocket without SockJS framing, tomcat negotiates permessage-deflate on it
+     * and its sessions may get binary cbor payloads, /ws stays as the SockJS fallback
      */
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
+        registry.addEndpoint("/ws-native").addInterceptors(new NativeSessionHandshakeInterceptor());
         registry.addEndpoint("/ws").withSockJS();
     }
 
     /**
-     * Messages whose destination starts with “/topic” should be routed to the
-     * message broker. Message broker broadcasts messages to all the connected
-     * clients who are subscribed to a particular topic.
+     * Adding cbor next to the default converters, it is picked by the content type of a message only
+     */
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        messageConverters.add(MessageUtils.cborMessageConverter());
+        return true;
+    }
+
+    /**
+     * Messages whose destination starts with “/queue” or “/topic” should be routed to the
+     * message broker. User destinations “/user/queue/...” are resolved to the
+     * queues of particular sessions, so a message can be sent to one session only.
+     * “/topic” is used for broadcasts to all connected clients.
      */
     @Override
     public void configureMessageBroker(MessageBrokerRegistry registry) {
         registry.setApplicationDestinationPrefixes("/app");
         registry.setUserDestinationPrefix("/user");
-        registry.enableSimpleBroker("/user");
+        registry.enableSimpleBroker("/queue", "/topic");
     }
 
     @Override
@@ -44,4 +76,20 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         registration.interceptors(subscriptionInterceptor);
     }
 
+    /**
+     * Frames to a session wait in its own buffer while it is slow, so outbound threads are not held by one client
+     * Sessions over the send time limit are closed, buffer overflow is handled by chat.websocket.overflow-policy
+     */
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.setSendTimeLimit(sendTimeLimit)
+                .setSendBufferSizeLimit(sendBufferSizeLimit)
+                .setMessageSizeLimit(messageSizeLimit);
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        registration.taskExecutor().corePoolSize(outboundThreads).maxPoolSize(outboundThreads);
+    }
+
 }
\ No newline at end of file
@@ -1,18 +1,32 @@
 package com.giggle.team.controller;
 
-import com.giggle.team.listener.UserListenerContainer;
+import com.giggle.team.listener.ChatFanoutHub;
+import com.giggle.team.models.HistoryPage;
 import com.giggle.team.models.Message;
 import com.giggle.team.models.Topic;
 import com.giggle.team.models.UserEntity;
 import com.giggle.team.repositories.TopicRepository;
 import com.giggle.team.repositories.UserRepository;
 import com.giggle.team.services.KafkaProducer;
+import com.giggle.team.services.MessageHistoryService;
+import com.giggle.team.services.MessageMetrics;
+import com.giggle.team.services.ChatRouting;
+import com.giggle.team.services.InboxService;
+import com.giggle.team.services.NotificationService;
+import com.giggle.team.services.UnreadCounters;
+import com.giggle.team.services.UserCache;
+import com.giggle.team.utils.ChatRoute;
 import com.giggle.team.utils.MessageUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
@@ -23,57 +37,98 @@ import org.springframework.web.bind.annotation.*;
 
 import java.security.Principal;
 import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping(value = "/kafka/chat")
 public class ChatController {
 
     private static final Logger logger = LoggerFactory.getLogger(ChatController.class);
+    private static final Pattern MESSAGE_ID = Pattern.compile("[0-9a-f]{32}");
 
-    private final Map<String, ArrayList<UserListenerContainer>> listenersMap;
-
-    private final ConcurrentKafkaListenerContainerFactory<String, String> factory;
+    private final ChatFanoutHub chatFanoutHub;
     private final MessageUtils messageUtils;
     private final SimpMessagingTemplate template;
     private final KafkaProducer producer;
     private final TopicRepository topicRepository;
     private final UserRepository userRepository;
     private final KafkaProducer kafkaProducer;
+    private final UserCache userCache;
+    private final NotificationService notificationService;
+    private final MessageMetrics messageMetrics;
+    private final MessageHistoryService messageHistoryService;
+    private final UnreadCounters unreadCounters;
+    private final InboxService inboxService;
+    private final MongoTemplate mongoTemplate;
+    private final ChatRouting chatRouting;
 
-    public ChatController(ConcurrentKafkaListenerContainerFactory<String, String> factory,
-                          Map<String, ArrayList<UserListenerContainer>> listenersMap,
+    public ChatController(ChatFanoutHub chatFanoutHub,
                           SimpMessagingTemplate template,
                           KafkaProducer producer,
-                          MessageUtils messageUtils, TopicRepository topicRepository, UserRepository userRepository, KafkaProducer kafkaProducer) {
-        this.factory = factory;
-        this.listenersMap = listenersMap;
+                          MessageUtils messageUtils, TopicRepository topicRepository, UserRepository userRepository, KafkaProducer kafkaProducer,
+                          UserCache userCache, NotificationService notificationService, MessageMetrics messageMetrics,
+                          MessageHistoryService messageHistoryService, ObjectProvider<UnreadCounters> unreadCounters,
+                          InboxService inboxService, ChatRouting chatRouting, MongoTemplate mongoTemplate) {
+        this.chatFanoutHub = chatFanoutHub;
         this.template = template;
         this.producer = producer;
         this.messageUtils = messageUtils;
         this.topicRepository = topicRepository;
         this.userRepository = userRepository;
         this.kafkaProducer = kafkaProducer;
+        this.userCache = userCache;
+        this.notificationService = notificationService;
+        this.messageMetrics = messageMetrics;
+        this.messageHistoryService = messageHistoryService;
+        this.unreadCounters = unreadCounters.getIfAvailable();
+        this.inboxService = inboxService;
+        this.chatRouting = chatRouting;
+        this.mongoTemplate = mongoTemplate;
     }
 
     /**
      * Receiving message from Web Browser using STOMP CLIENT and further Sending
      * message to a KAFKA TOPIC
+     * Sending session gets ACK or NACK with the message id on its service queue once kafka answers,
+     * a send to a chat the sender is not a member of or without a type gets NACK right away
      */
     @MessageMapping("/sendMessage")
     @RequestMapping(value = "/sendMessage", method = RequestMethod.GET, produces = "application/json")
-    public void sendMessage(Principal principal, @Payload Message message) {
-        if (principal != null && messageUtils.checkDestination(principal, message.getChatId())) {
-            logger.info("Got new message from " + principal.getName() + " to " + message.getChatId());
-            producer.send(message.getChatId(), message.getChatId() + "-"
-                    + Message.MessageType.valueOf(message.getType().name()) + "-" + message.getContent() + "-"
-                    + message.getSender() + "-" + userRepository.findByEmail(message.getSender()).getUsername() + "-"
-                    + UUID.randomUUID().toString().replace("-", ""));
-            logger.info("Message to " + message.getChatId() + " from " + principal.getName() + " was sent");
+    public void sendMessage(Principal principal, @Payload Message message,
+                            @Header(value = "simpSessionId", required = false) String sessionId) {
+        long received = System.nanoTime();
+        // the id of a published message is always ours, the client's id only matches the acknowledgement to its send
+        String messageId = UUID.randomUUID().toString().replace("-", "");
+        String clientMessageId = message.getMessageId() != null && MESSAGE_ID.matcher(message.getMessageId()).matches()
+                ? message.getMessageId() : messageId;
+        if (principal != null && message.getType() != null && messageUtils.checkDestination(principal, message.getChatId())) {
+            logger.debug("Got new message from " + principal.getName() + " to " + message.getChatId());
+            producer.send(chatRouting.routeOf(message.getChatId()), new Message(message.getChatId(), message.getType(), message.getContent(),
+                    message.getSender(), userCache.get(message.getSender()).getUsername(), messageId))
+                    .addCallback(result -> {
+                                messageMetrics.sent(received, true);
+                                logger.debug("Message to " + message.getChatId() + " from " + principal.getName() + " was sent");
+                                sendAck(principal, sessionId, message.getChatId(), clientMessageId, "ACK");
+                            }, failure -> {
+                                messageMetrics.sent(received, false);
+                                logger.error("Message to " + message.getChatId() + " from " + principal.getName() + " was not sent");
+                                sendAck(principal, sessionId, message.getChatId(), clientMessageId, "NACK");
+                            });
+        } else if (principal != null) {
+            logger.warn("Message to " + message.getChatId() + " from " + principal.getName() + " was rejected");
+            sendAck(principal, sessionId, message.getChatId(), clientMessageId, "NACK");
         } else {
             logger.error("Message to " + message.getChatId() + " was not sent");
         }
     }
 
+    private void sendAck(Principal principal, String sessionId, String chatId, String messageId, String status) {
+        template.convertAndSendToUser(principal.getName(), "/queue/service",
+                new Message(chatId, Message.MessageType.SYSTEM, status, "system", "system", messageId),
+                MessageUtils.sessionHeaders(sessionId));
+    }
+
     /**
      * Adding username in Websocket
      */
@@ -97,34 +152,45 @@ public class ChatController {
 
     /**
      * Joining to a specific chat:
-     * Creating kafka listener container for each user for each chat and putting it to map
-     * Each listener will send received message to specific STOMP topic
+     * Subscribing the session to the chat in the node fan-out hub
+     * Chat is consumed from kafka once per node and every received message is sent to the STOMP queue of each subscribed session,
+     * sessions connected with the accept-batch header get arrays of messages,
+     * sessions of the native endpoint accepting application/cbor get cbor payloads
      */
     @MessageMapping("/chat.join")
-    public void joinChat(Principal principal, @Payload Message message, @Header("simpSessionId") String sessionId) {
+    public void joinChat(Principal principal, @Payload Message message, @Header("simpSessionId") String sessionId,
+                         SimpMessageHeaderAccessor headerAccessor) {
         if (messageUtils.checkDestination(principal, message.getChatId())) {
-            logger.info("Received request for listener creation from " + sessionId);
-            if (!listenersMap.containsKey(sessionId)) {
-                logger.info("User's list of listeners not exist, creating new one");
-                listenersMap.put(sessionId, new ArrayList<>());
-                logger.info("Creating listener for " + sessionId);
-                listenersMap.get(sessionId).add(
-                        new UserListenerContainer(message.getChatId(), principal.getName(), message.getChatId(), factory, template, sessionId)
-                );
-            } else {
-                if (!listenersMap.get(sessionId).contains(
-                        new UserListenerContainer(principal.getName(), message.getChatId()))) {
-                    logger.info("No already existing listener, creating new one");
-                    logger.info("Creating listener for " + sessionId);
-                    listenersMap.get(sessionId).add(
-                            new UserListenerContainer(message.getChatId(), principal.getName(), message.getChatId(), factory, template, sessionId)
-                    );
-                } else {
-                    logger.info("Such listener already exists");
+            logger.info("Received request for chat subscription from " + sessionId);
+            if (chatFanoutHub.join(sessionId, principal.getName(), message.getChatId(), chatRouting.routeOf(message.getChatId()),
+                    MessageUtils.isBatching(headerAccessor), MessageUtils.contentType(headerAccessor))) {
+                logger.info("Session " + sessionId + " subscribed to " + message.getChatId());
+                if (unreadCounters != null) {
+                    unreadCounters.read(principal.getName(), message.getChatId());
                 }
+            } else {
+                logger.info("Such subscription already exists");
             }
         } else {
-            logger.info("Received request for listener creation but access denied or principal is null");
+            logger.info("Received request for chat subscription but access denied or principal is null");
+        }
+    }
+
+    /**
+     * Page of the chat history older than the before cursor, the newest messages without it
+     * Following pages are requested with the next cursor of the previous one
+     */
+    @RequestMapping(value = "/history", method = RequestMethod.GET, produces = "application/json")
+    public ResponseEntity<HistoryPage> history(Principal principal, @RequestParam String chatId,
+                                               @RequestParam(required = false) String before,
+                                               @RequestParam(defaultValue = "50") int limit) {
+        if (!messageUtils.checkDestination(principal, chatId)) {
+            return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+        }
+        try {
+            return new ResponseEntity<>(messageHistoryService.page(chatId, before, limit), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
     }
 
@@ -147,49 +213,49 @@ public class ChatController {
             usersToAdd.add(user);
         }
         String chatName = UUID.randomUUID().toString().replace("-", "");
-        boolean topicExists = false;
-        List<Topic> topics = topicRepository.findAllById(usersToAdd.get(0).getTopics());
-        for (Topic topic : topics) {
-            if (!topic.getStompDestination().equals("main")) {
-                if (topic.getUsers().size() == usersToAdd.size() && topic.getUsers().containsAll(usersToAdd)) {
-                    topicExists = true;
-                    break;
-                }
-            }
+        ChatRoute route = chatRouting.newRoute(chatName);
+        Topic toCreate = new Topic(route.toString(), chatName);
+        for (UserEntity user : usersToAdd) {
+            toCreate.addUser(user);
         }
-        if (!topicExists) {
-            Topic toCreate = new Topic(chatName, chatName);
-            for (UserEntity user : usersToAdd) {
-                toCreate.addUser(user);
-            }
-            topicRepository.save(toCreate);
-            for (UserEntity user : usersToAdd) {
-                user.getTopics().add(toCreate.getId());
-                userRepository.save(user);
-                template.convertAndSendToUser(user.getEmail(), "/queue/service",
-                        new Message("service", Message.MessageType.SYSTEM,
-                                "CHATS_UPDATE", "system", "system", "system"));
-            }
-            kafkaProducer.send(chatName, chatName + "-" + "SYSTEM"
-                    + "-" + "NEW CHAT CREATED" + "-System-System-" +
-                    UUID.randomUUID().toString().replace("-", ""));
+        toCreate.updateMembersKey();
+        if (!topicRepository.existsByMembersKey(toCreate.getMembersKey()) && saveIfMembersUnique(toCreate)) {
+            updateTopics(usersToAdd, new Update().addToSet("topics", toCreate.getId()));
+            userCache.invalidateAll(usersToAdd.stream().map(UserEntity::getEmail).collect(Collectors.toList()));
+            inboxService.saved(toCreate, usersToAdd);
+            notificationService.chatsUpdated(usersToAdd.stream().map(UserEntity::getEmail).collect(Collectors.toList()));
+            kafkaProducer.send(route, new Message(chatName, Message.MessageType.SYSTEM,
+                    "NEW CHAT CREATED", "System", "System", UUID.randomUUID().toString().replace("-", "")));
             return new ResponseEntity<>("New chat created", HttpStatus.OK);
         }
         return new ResponseEntity<>("Same chat already exists", HttpStatus.CONFLICT);
     }
 
+    /**
+     * Unique index on membersKey makes concurrent creation of the same chat fail for all but one request
+     */
+    private boolean saveIfMembersUnique(Topic topic) {
+        try {
+            topicRepository.save(topic);
+            return true;
+        } catch (DuplicateKeyException e) {
+            logger.info("Chat with members key " + topic.getMembersKey() + " already exists");
+            return false;
+        }
+    }
+
     @RequestMapping(value = "/removeChat", method = RequestMethod.GET, produces = "application/json")
     @ResponseBody
     public ResponseEntity<String> removeChat(Principal principal, @RequestParam("chatId") String chatId) {
         if (messageUtils.checkDestination(principal, chatId) && !chatId.equals("main")) {
             Topic topic = topicRepository.findByStompDestination(chatId);
             List<UserEntity> users = topic.getUsers();
-            for (UserEntity user :
-                    users) {
-                user.getTopics().remove(topic.getId());
-                userRepository.save(user);
-            }
+            updateTopics(users, new Update().pull("topics", topic.getId()));
             topicRepository.removeTopicById(topic.getId());
+            inboxService.removed(topic);
+            List<String> emails = users.stream().map(UserEntity::getEmail).collect(Collectors.toList());
+            userCache.invalidateAll(emails);
+            notificationService.chatsUpdated(emails);
             return new ResponseEntity<>("Chat removed", HttpStatus.OK);
         }
         return new ResponseEntity<>("User not allowed to manipulate this chat", HttpStatus.FORBIDDEN);
@@ -200,25 +266,44 @@ public class ChatController {
     public ResponseEntity<String> addUsers(Principal principal, @RequestParam("chatId") String chatId, @RequestBody LinkedList<String> emailsToChat) {
         if (messageUtils.checkDestination(principal, chatId) && !chatId.equals("main")) {
             Topic topic = topicRepository.findByStompDestination(chatId);
+            List<UserEntity> added = new LinkedList<>();
             for (String email :
                     emailsToChat) {
                 UserEntity user = userRepository.findByEmail(email);
-                if (!user.getTopics().contains(topic.getId())) {
+                if (!user.getTopics().contains(topic.getId()) && !added.contains(user)) {
                     topic.getUsers().add(user);
-                    user.getTopics().add(topic.getId());
-                    userRepository.save(user);
+                    added.add(user);
                 }
             }
-            topicRepository.save(topic);
+            topic.updateMembersKey();
+            if (!saveIfMembersUnique(topic)) {
+                return new ResponseEntity<>("Same chat already exists", HttpStatus.CONFLICT);
+            }
+            updateTopics(added, new Update().addToSet("topics", topic.getId()));
+            userCache.invalidateAll(emailsToChat);
+            inboxService.saved(topic, topic.getUsers());
+            notificationService.chatsUpdated(topic.getUsers().stream().map(UserEntity::getEmail).collect(Collectors.toList()));
             return new ResponseEntity<>("Users added to chat", HttpStatus.OK);
         }
         return new ResponseEntity<>("User not allowed to manipulate this chat", HttpStatus.FORBIDDEN);
     }
 
+    /**
+     * Changing the chat lists of the users in place, saving users read before would undo chats added to them meanwhile
+     */
+    private void updateTopics(List<UserEntity> users, Update update) {
+        if (users.isEmpty()) {
+            return;
+        }
+        mongoTemplate.updateMulti(Query.query(Criteria.where("_id").in(users.stream().map(UserEntity::getId)
+                .collect(Collectors.toList()))), update, UserEntity.class);
+    }
+
     public Topic initMainChat(){
-        Topic main = new Topic("main", "main");
-        kafkaProducer.send("main", "main-SYSTEM-Main chat initialized-System-System-" +
-                UUID.randomUUID().toString().replace("-", ""));
+        ChatRoute route = chatRouting.newRoute("main");
+        Topic main = new Topic(route.toString(), "main");
+        kafkaProducer.send(route, new Message("main", Message.MessageType.SYSTEM,
+                "Main chat initialized", "System", "System", UUID.randomUUID().toString().replace("-", "")));
         topicRepository.save(main);
         return main;
     }
@@ -1,35 +1,44 @@
 package com.giggle.team.controller;
 
-import com.giggle.team.models.Topic;
+import com.giggle.team.models.DirectoryDelta;
 import com.giggle.team.models.UserEntity;
-import com.giggle.team.repositories.TopicRepository;
 import com.giggle.team.repositories.UserRepository;
-import com.giggle.team.utils.MessageUtils;
+import com.giggle.team.services.InboxService;
+import com.giggle.team.services.UserDirectory;
+import com.giggle.team.services.UsernameIndex;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.bind.annotation.*;
 
 import java.security.Principal;
 import java.util.*;
-import java.util.stream.Collectors;
 
 @RestController
 public class ChatSelectorController {
 
     private final UserRepository userRepository;
-    private final TopicRepository topicRepository;
-    private final MessageUtils messageUtils;
+    private final InboxService inboxService;
+    private final UsernameIndex usernameIndex;
+    private final UserDirectory userDirectory;
+    private final int findUsersMaxLimit;
 
-    public ChatSelectorController(UserRepository userRepository, TopicRepository topicRepository, MessageUtils messageUtils) {
+    public ChatSelectorController(UserRepository userRepository, InboxService inboxService,
+                                  UsernameIndex usernameIndex, UserDirectory userDirectory, @Value("${chat.find-users.max-limit:100}") int findUsersMaxLimit) {
         this.userRepository = userRepository;
-        this.topicRepository = topicRepository;
-        this.messageUtils = messageUtils;
+        this.inboxService = inboxService;
+        this.usernameIndex = usernameIndex;
+        this.userDirectory = userDirectory;
+        this.findUsersMaxLimit = findUsersMaxLimit;
     }
 
     @RequestMapping(value = "/find/user", method = RequestMethod.GET, produces = "application/json")
     @ResponseBody
-    public List<Map<String, String>> findUsers(@RequestParam("query") String query) {
-        List<UserEntity> queryResult = userRepository.findByUsernameIgnoreCaseStartsWith(query);
+    public List<Map<String, String>> findUsers(@RequestParam("query") String query,
+                                               @RequestParam(value = "limit", defaultValue = "20") int limit) {
+        List<UsernameIndex.Entry> queryResult = usernameIndex.findByPrefix(query, Math.max(0, Math.min(limit, findUsersMaxLimit)));
         List<Map<String, String>> toSend = new ArrayList<>();
-        for (UserEntity entity :
+        for (UsernameIndex.Entry entity :
                 queryResult) {
             Map<String, String> userData = new HashMap<>();
             userData.put("username", entity.getUsername());
@@ -41,29 +50,36 @@ public class ChatSelectorController {
 
     @RequestMapping(value = "/show/users", method = RequestMethod.GET, produces = "application/json")
     @ResponseBody
-    public Map<String, String> findAllUsers() {
-        List<UserEntity> queryResult = userRepository.findAll();
+    public ResponseEntity<Map<String, String>> findAllUsers(WebRequest request) {
+        // the ETag header is set by checkNotModified, the directory is loaded only when it has changed
+        String version = Long.toString(userDirectory.version());
+        if (request.checkNotModified(version)) {
+            return null;
+        }
+        List<UserEntity> queryResult = userRepository.findAllUsernames();
         Map<String, String> toSend = new HashMap<>();
         for (UserEntity entity :
                 queryResult) {
             toSend.put(entity.getUsername(), entity.getEmail());
         }
-        return toSend;
+        return ResponseEntity.ok(toSend);
+    }
+
+    /**
+     * Users changed after the given directory version, clients keep the returned version for the next call
+     * The ETag is the version a client reaches with the response, so an unchanged directory is answered with 304
+     */
+    @RequestMapping(value = "/show/users/delta", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public ResponseEntity<DirectoryDelta> findUsersSince(@RequestParam(value = "since", defaultValue = "0") long since) {
+        DirectoryDelta delta = userDirectory.since(since);
+        return ResponseEntity.ok().eTag(Long.toString(delta.getVersion())).body(delta);
     }
 
     @RequestMapping(value = "/show/topic", method = RequestMethod.GET, produces = "application/json")
     @ResponseBody
     public Map<String, List<String>> showTopics(Principal principal) {
-        List<Topic> queryResult = topicRepository.findAll();
-        Map<String, List<String>> toSend = new HashMap<>();
-        for (Topic topic :
-                queryResult) {
-            if (messageUtils.checkDestination(principal, topic.getStompDestination())) {
-                List<String> usernames = topic.getUsers().stream().map(UserEntity::getUsername).collect(Collectors.toCollection(LinkedList::new));
-                toSend.put(topic.getStompDestination(), usernames);
-            }
-        }
-        return toSend;
+        return inboxService.find(principal.getName());
     }
 
 }
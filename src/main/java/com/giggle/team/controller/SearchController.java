@@ -0,0 +1,55 @@
+package com.giggle.team.controller;
+
+import com.giggle.team.models.MessageBucket;
+import com.giggle.team.services.SearchIndex;
+import com.giggle.team.utils.MessageUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+@RestController
+@RequestMapping(value = "/kafka/chat")
+@ConditionalOnProperty(name = "chat.search.enabled", havingValue = "true", matchIfMissing = true)
+public class SearchController {
+
+    private final SearchIndex searchIndex;
+    private final MessageUtils messageUtils;
+    private final int maxResults;
+
+    public SearchController(SearchIndex searchIndex, MessageUtils messageUtils,
+                            @Value("${chat.search.max-results:100}") int maxResults) {
+        this.searchIndex = searchIndex;
+        this.messageUtils = messageUtils;
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * Searching messages of the user's chats, or of one of them, best matches first
+     * Results carry the history cursor of the message, so the history around it can be loaded
+     */
+    @RequestMapping(value = "/search", method = RequestMethod.GET, produces = "application/json")
+    public ResponseEntity<List<MessageBucket.Entry>> search(Principal principal, @RequestParam String q,
+                                                            @RequestParam(required = false) String chatId,
+                                                            @RequestParam(defaultValue = "20") int limit) {
+        Set<String> chats;
+        if (chatId == null) {
+            chats = messageUtils.getChats(principal);
+        } else if (messageUtils.checkDestination(principal, chatId)) {
+            chats = Collections.singleton(chatId);
+        } else {
+            return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+        }
+        return new ResponseEntity<>(searchIndex.search(q, chats, Math.max(1, Math.min(limit, maxResults))), HttpStatus.OK);
+    }
+
+}
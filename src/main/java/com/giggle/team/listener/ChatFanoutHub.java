@@ -0,0 +1,509 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.services.MessageMetrics;
+import com.giggle.team.services.ReadOffsetService;
+import com.giggle.team.services.ReplayLog;
+import com.giggle.team.utils.ChatRoute;
+import com.giggle.team.utils.MessageUtils;
+import com.giggle.team.utils.NodeIdentity;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Node level fan-out of chat messages:
+ * Each chat is consumed from kafka only once per node, no matter how many sessions joined it
+ * Records are dispatched in memory to the sessions found in the chat index of SubscriptionRegistry
+ * Containers of chats left by their last session are stopped on a bounded background executor
+ * Starts and stops of the container of a chat, or of a shared partition, run one after another in the order they were decided,
+ * never while an entry of the subscription index is locked
+ * Every joining session gets the history it has not seen yet from a short-lived replay consumer:
+ * starting at the user's read offset, at least the last replay.window messages, at most the last replay.max messages,
+ * live records of the session are held back until its replay is sent
+ * Sessions accepting batches get live records of one poll and replayed history in frames of up to batch.max-size messages
+ * Chats routed to a partition of a multiplexed topic share one container per partition on this node,
+ * their replay windows count only the records keyed by the chat, found by reading the partition backwards
+ * With the {@link ReplayLog} history is read from the local log as far as it holds the chat, and only the rest from kafka,
+ * once a replay has bridged the log to the live records of an open chat, later joins do not read kafka at all
+ */
+@Component
+public class ChatFanoutHub {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatFanoutHub.class);
+
+    private final SubscriptionRegistry subscriptionRegistry;
+    private final Map<String, UserListenerContainer> containersMap = new ConcurrentHashMap<>();
+    private final Map<String, PartitionListenerContainer> partitionContainers = new ConcurrentHashMap<>();
+    private final Map<String, ChatRoute> routes = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Void>> lifecycles = new ConcurrentHashMap<>();
+
+    private final ConcurrentKafkaListenerContainerFactory<String, Message> factory;
+    private final ConsumerFactory<String, Message> consumerFactory;
+    private final SimpMessagingTemplate template;
+    private final NodeIdentity nodeIdentity;
+    private final ReadOffsetService readOffsetService;
+    private final MessageMetrics messageMetrics;
+    private final ReplayLog replayLog;
+    private final ExecutorService replayExecutor;
+    private final ThreadPoolExecutor teardownExecutor;
+    private final int replayWindow;
+    private final int replayMax;
+    private final long replayTimeout;
+    private final int maxHeld;
+    private final long assignmentTimeout;
+    private final int batchMaxSize;
+    private final long batchWindow;
+
+    public ChatFanoutHub(SubscriptionRegistry subscriptionRegistry,
+                         ConcurrentKafkaListenerContainerFactory<String, Message> factory,
+                         ConsumerFactory<String, Message> consumerFactory,
+                         SimpMessagingTemplate template,
+                         NodeIdentity nodeIdentity,
+                         ReadOffsetService readOffsetService,
+                         MessageMetrics messageMetrics,
+                         ObjectProvider<ReplayLog> replayLog,
+                         MeterRegistry meterRegistry,
+                         @Value("${chat.replay.threads:4}") int replayThreads,
+                         @Value("${chat.replay.window:50}") int replayWindow,
+                         @Value("${chat.replay.max:1000}") int replayMax,
+                         @Value("${chat.replay.timeout:30000}") long replayTimeout,
+                         @Value("${chat.replay.max-held:10000}") int maxHeld,
+                         @Value("${chat.replay.assignment-timeout:10000}") long assignmentTimeout,
+                         @Value("${chat.teardown.threads:2}") int teardownThreads,
+                         @Value("${chat.teardown.queue:1000}") int teardownQueue,
+                         @Value("${chat.batch.max-size:100}") int batchMaxSize,
+                         @Value("${chat.batch.window:0}") long batchWindow) {
+        this.subscriptionRegistry = subscriptionRegistry;
+        this.factory = factory;
+        this.consumerFactory = consumerFactory;
+        this.template = template;
+        this.nodeIdentity = nodeIdentity;
+        this.readOffsetService = readOffsetService;
+        this.messageMetrics = messageMetrics;
+        this.replayLog = replayLog.getIfAvailable();
+        this.replayExecutor = Executors.newFixedThreadPool(replayThreads);
+        this.replayWindow = replayWindow;
+        this.replayMax = replayMax;
+        this.replayTimeout = replayTimeout;
+        this.maxHeld = maxHeld;
+        this.assignmentTimeout = assignmentTimeout;
+        this.batchMaxSize = batchMaxSize;
+        this.batchWindow = batchWindow;
+        // when the queue is full the disconnecting thread stops the container itself, which slows down the teardown storm
+        this.teardownExecutor = new ThreadPoolExecutor(teardownThreads, teardownThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(teardownQueue), new ThreadPoolExecutor.CallerRunsPolicy());
+        Gauge.builder("chat.containers", this, hub -> hub.containersMap.size() + hub.partitionContainers.size())
+                .description("Chat listener containers running on this node")
+                .register(meterRegistry);
+        Gauge.builder("chat.teardown.pending", teardownExecutor, executor -> executor.getQueue().size())
+                .description("Chat listener containers waiting to be stopped")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Subscribing session to the chat
+     * Starts the chat listener container if it is the first session of the chat on this node
+     *
+     * @return false if the session has already joined the chat
+     */
+    public boolean join(String sessionId, String user, String chat, ChatRoute route, boolean batching,
+                        MimeType contentType) {
+        ChatSubscription subscription = new ChatSubscription(sessionId, user, chat, batching, contentType);
+        subscription.holdLive(maxHeld);
+        List<CompletableFuture<Void>> gates = new ArrayList<>();
+        boolean added = subscriptionRegistry.add(subscription, subscribers -> open(chat, route, subscribers, gates),
+                key -> close(key, gates));
+        gates.forEach(gate -> gate.complete(null));
+        if (!added) {
+            return false;
+        }
+        replayExecutor.execute(() -> replay(subscription, routes.getOrDefault(chat, route)));
+        return true;
+    }
+
+    /**
+     * Moving the sessions of a chat to its new route, every session then gets the history it has not seen
+     * from its read offsets, which the migration has translated to the new route
+     */
+    public void reroute(String chat, ChatRoute route) {
+        List<CompletableFuture<Void>> gates = new ArrayList<>();
+        subscriptionRegistry.withChat(chat, subscribers -> {
+            if (!route.equals(routes.get(chat))) {
+                close(chat, gates);
+                open(chat, route, subscribers, gates);
+            }
+        });
+        gates.forEach(gate -> gate.complete(null));
+        for (ChatSubscription subscription : subscriptionRegistry.getByChat(chat)) {
+            subscription.holdLive(maxHeld);
+            replayExecutor.execute(() -> replay(subscription, route));
+        }
+        logger.info("Chat " + chat + " moved to " + route);
+    }
+
+    /**
+     * Unsubscribing session from all of its chats
+     * Stops the chat listener container when its last session leaves
+     */
+    public void leave(String sessionId) {
+        List<CompletableFuture<Void>> gates = new ArrayList<>();
+        Set<ChatSubscription> subscriptions = subscriptionRegistry.removeSession(sessionId, chat -> close(chat, gates));
+        gates.forEach(gate -> gate.complete(null));
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        logger.info("Session " + sessionId + " left " + subscriptions.size() + " chats");
+    }
+
+    /**
+     * Starting to read the chat, called with the first subscription of the chat while its index entry is locked
+     * A new container is started once the gate added to gates is completed
+     */
+    private void open(String chat, ChatRoute route, Set<ChatSubscription> subscribers, List<CompletableFuture<Void>> gates) {
+        routes.put(chat, route);
+        if (replayLog != null) {
+            replayLog.opened(chat);
+        }
+        if (!route.isMultiplexed()) {
+            UserListenerContainer container = new UserListenerContainer(route.getTopic(), chat, nodeIdentity.getId() + "-" + chat,
+                    factory, template, readOffsetService, messageMetrics, replayLog, subscribers, batchMaxSize, batchWindow);
+            containersMap.put(chat, container);
+            lifecycle(chat, container::start, false, gates);
+            return;
+        }
+        partitionContainers.compute(route.toString(), (key, container) -> {
+            if (container == null) {
+                container = new PartitionListenerContainer(route, nodeIdentity.getId() + "-" + key, factory,
+                        template, readOffsetService, messageMetrics, replayLog, batchMaxSize, batchWindow);
+                lifecycle(key, container::start, false, gates);
+            }
+            container.addChat(chat, subscribers);
+            return container;
+        });
+    }
+
+    /**
+     * Stopping to read the chat, called when its last session leaves while its index entry is locked
+     * A container left without chats is stopped on the teardown executor once the gate added to gates is completed
+     */
+    private void close(String chat, List<CompletableFuture<Void>> gates) {
+        ChatRoute route = routes.remove(chat);
+        if (route == null) {
+            return;
+        }
+        if (replayLog != null) {
+            replayLog.closed(chat);
+        }
+        if (!route.isMultiplexed()) {
+            UserListenerContainer container = containersMap.remove(chat);
+            lifecycle(chat, container::stopContainer, true, gates);
+            return;
+        }
+        partitionContainers.computeIfPresent(route.toString(), (key, container) -> {
+            if (!container.removeChat(chat)) {
+                return container;
+            }
+            lifecycle(key, container::stopContainer, true, gates);
+            return null;
+        });
+    }
+
+    /**
+     * Chaining a start or a stop of the container of the key after the previous one of that key, whatever its outcome
+     * The task runs when the previous one is done and the gate is completed, which the caller does after releasing its locks,
+     * stops run on the teardown executor, starts in the thread completing the chain
+     */
+    private void lifecycle(String key, Runnable task, boolean teardown, List<CompletableFuture<Void>> gates) {
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        gates.add(gate);
+        CompletableFuture<Void> done = lifecycles.compute(key, (k, previous) -> {
+            CompletableFuture<Void> ready = previous == null ? gate
+                    : previous.exceptionally(e -> null).thenCombine(gate, (a, b) -> null);
+            return teardown ? ready.thenRunAsync(task, teardownExecutor) : ready.thenRun(task);
+        });
+        done.whenComplete((result, e) -> {
+            lifecycles.remove(key, done);
+            if (e != null) {
+                logger.error("Listener container " + key + " failed to " + (teardown ? "stop" : "start"), e);
+            }
+        });
+    }
+
+    private boolean awaitAssignment(String chat, ChatRoute route) throws InterruptedException {
+        if (route.isMultiplexed()) {
+            PartitionListenerContainer container = partitionContainers.get(route.toString());
+            return container == null || container.awaitAssignment(assignmentTimeout);
+        }
+        UserListenerContainer container = containersMap.get(chat);
+        return container == null || container.awaitAssignment(assignmentTimeout);
+    }
+
+    /**
+     * Sending the unread chat history up to the current end of the topic to one session
+     * End offsets are taken after the chat listener got its live position, so nothing is missed between replay and live records,
+     * live records held back meanwhile are released from the end offsets on, whatever way the replay ends
+     * A subscription dropped for holding back too many records is removed and its session is asked to join again
+     */
+    private void replay(ChatSubscription subscription, ChatRoute route) {
+        Map<TopicPartition, Long> ends = null;
+        try {
+            ends = replayHistory(subscription, route);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.error("Replay of chat " + subscription.getChat() + " to " + subscription.getSessionId() + " failed", e);
+        } finally {
+            subscription.replayed(template, ends == null ? Collections.emptyMap() : ends, batchMaxSize);
+            if (subscription.isDropped()) {
+                drop(subscription);
+            }
+        }
+    }
+
+    private void drop(ChatSubscription subscription) {
+        List<CompletableFuture<Void>> gates = new ArrayList<>();
+        boolean removed = subscriptionRegistry.remove(subscription, chat -> close(chat, gates));
+        gates.forEach(gate -> gate.complete(null));
+        if (removed) {
+            logger.warn("Session " + subscription.getSessionId() + " held back more than " + maxHeld
+                    + " live records of chat " + subscription.getChat() + " during the replay and was dropped");
+            template.convertAndSendToUser(subscription.getUser(), "/queue/service",
+                    new Message(subscription.getChat(), Message.MessageType.SYSTEM, "REJOIN", "system", "system", "system"),
+                    MessageUtils.sessionHeaders(subscription.getSessionId()));
+        }
+    }
+
+    /**
+     * @return end offsets the history was sent up to
+     */
+    private Map<TopicPartition, Long> replayHistory(ChatSubscription subscription, ChatRoute route) throws InterruptedException {
+        int generation = replayLog == null ? 0 : replayLog.generation(subscription.getChat());
+        boolean assigned = awaitAssignment(subscription.getChat(), route);
+        if (!assigned) {
+            logger.warn("Chat " + subscription.getChat() + " was not assigned in " + assignmentTimeout + " ms, replaying anyway");
+        }
+        Map<Integer, Long> readOffsets = readOffsetService.find(subscription.getUser(), subscription.getChat(), route.getTopic());
+        if (replayLog != null) {
+            Map<TopicPartition, Long> ends = replayFromLog(subscription, route, readOffsets);
+            if (ends != null) {
+                replayLog.hit();
+                return ends;
+            }
+            replayLog.miss();
+        }
+        return replayFromKafka(subscription, route, readOffsets, assigned ? generation : -1);
+    }
+
+    /**
+     * Replaying without kafka, possible while the log holds everything of the chat up to its live records
+     *
+     * @return end offsets of the replay, null if kafka has to be read
+     */
+    private Map<TopicPartition, Long> replayFromLog(ChatSubscription subscription, ChatRoute route,
+                                                    Map<Integer, Long> readOffsets) {
+        Map<Integer, Long> ends = replayLog.liveEnds(subscription.getChat(), route);
+        if (ends == null) {
+            return null;
+        }
+        Map<Integer, List<Message>> messages = new HashMap<>();
+        for (Map.Entry<Integer, Long> end : ends.entrySet()) {
+            long start = route.isMultiplexed()
+                    ? start(readOffsets.get(end.getKey()),
+                    replayLog.offsetBefore(subscription.getChat(), route.getTopic(), end.getKey(), end.getValue(), replayWindow),
+                    replayLog.offsetBefore(subscription.getChat(), route.getTopic(), end.getKey(), end.getValue(), replayMax))
+                    : start(readOffsets.get(end.getKey()), end.getValue() - replayWindow, Math.max(end.getValue() - replayMax, 0));
+            List<Message> partitionMessages = new ArrayList<>();
+            if (replayLog.read(subscription.getChat(), route.getTopic(), end.getKey(), start, end.getValue(),
+                    partitionMessages) < end.getValue() && start < end.getValue()) {
+                return null;
+            }
+            messages.put(end.getKey(), partitionMessages);
+        }
+        int replayed = 0;
+        for (List<Message> chunk : messages.values()) {
+            if (!chunk.isEmpty() && isSubscribed(subscription)) {
+                subscription.send(template, chunk, batchMaxSize);
+                replayed += chunk.size();
+            }
+        }
+        if (isSubscribed(subscription)) {
+            ends.forEach((partition, end) -> readOffsetService.delivered(
+                    subscription.getUser(), subscription.getChat(), new TopicPartition(route.getTopic(), partition), end));
+        }
+        logger.info("Replayed " + replayed + " messages of chat " + subscription.getChat()
+                + " to " + subscription.getSessionId() + " from the replay log");
+        return ends.entrySet().stream().collect(Collectors.toMap(
+                end -> new TopicPartition(route.getTopic(), end.getKey()), Map.Entry::getValue));
+    }
+
+    /**
+     * Replaying from kafka what the log does not hold, records read from kafka are appended to the log,
+     * with a generation of an assigned chat they are bridged to the live records, -1 otherwise
+     * A replay running longer than replay.timeout gives up, the session gets live records only
+     * and the read offsets stay where they were
+     *
+     * @return end offsets of the replay
+     */
+    private Map<TopicPartition, Long> replayFromKafka(ChatSubscription subscription, ChatRoute route,
+                                                      Map<Integer, Long> readOffsets, int generation) {
+        try (Consumer<String, Message> consumer = consumerFactory.createConsumer()) {
+            List<PartitionInfo> partitionInfos = consumer.partitionsFor(route.getTopic());
+            if (partitionInfos == null || partitionInfos.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            List<TopicPartition> partitions = partitionInfos.stream()
+                    .filter(info -> !route.isMultiplexed() || info.partition() == route.getPartition())
+                    .map(info -> new TopicPartition(info.topic(), info.partition()))
+                    .collect(Collectors.toList());
+            if (partitions.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            consumer.assign(partitions);
+            Map<TopicPartition, Long> beginningOffsets = consumer.beginningOffsets(partitions);
+            Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+            Map<TopicPartition, Long> kafkaStarts = new HashMap<>();
+            long deadline = System.currentTimeMillis() + replayTimeout;
+            int replayed = 0;
+            for (TopicPartition partition : partitions) {
+                long end = endOffsets.get(partition);
+                long start = route.isMultiplexed()
+                        ? chatStart(consumer, partition, subscription.getChat(), readOffsets.get(partition.partition()),
+                        end, beginningOffsets.get(partition), deadline)
+                        : start(readOffsets.get(partition.partition()), end - replayWindow,
+                        Math.max(end - replayMax, beginningOffsets.get(partition)));
+                if (replayLog != null) {
+                    List<Message> chunk = new ArrayList<>();
+                    start = replayLog.read(subscription.getChat(), partition.topic(), partition.partition(), start, end, chunk);
+                    if (!chunk.isEmpty()) {
+                        subscription.send(template, chunk, batchMaxSize);
+                        replayed += chunk.size();
+                    }
+                }
+                kafkaStarts.put(partition, start);
+                consumer.seek(partition, start);
+            }
+            while (isSubscribed(subscription) && !reached(consumer, endOffsets) && System.currentTimeMillis() < deadline) {
+                List<ConsumerRecord<String, Message>> records = new ArrayList<>();
+                List<Message> chunk = new ArrayList<>();
+                long timeout = Math.max(1, Math.min(500, deadline - System.currentTimeMillis()));
+                for (ConsumerRecord<String, Message> record : consumer.poll(Duration.ofMillis(timeout))) {
+                    if (record.offset() < endOffsets.get(new TopicPartition(record.topic(), record.partition()))
+                            && record.value() != null && subscription.getChat().equals(record.value().getChatId())) {
+                        records.add(record);
+                        chunk.add(record.value());
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    if (replayLog != null) {
+                        replayLog.append(subscription.getChat(), records);
+                    }
+                    subscription.send(template, chunk, batchMaxSize);
+                    replayed += chunk.size();
+                }
+            }
+            if (isSubscribed(subscription) && !reached(consumer, endOffsets)) {
+                logger.warn("Replay of chat " + subscription.getChat() + " to " + subscription.getSessionId()
+                        + " did not finish in " + replayTimeout + " ms, going on with live records only");
+            } else if (isSubscribed(subscription)) {
+                endOffsets.forEach((partition, end) -> readOffsetService.delivered(
+                        subscription.getUser(), subscription.getChat(), partition, end));
+                if (replayLog != null && generation >= 0) {
+                    kafkaStarts.forEach((partition, start) -> replayLog.bridge(subscription.getChat(), partition.topic(),
+                            partitionInfos.size(), partition.partition(), generation, start, endOffsets.get(partition)));
+                }
+            }
+            logger.info("Replayed " + replayed + " messages of chat " + subscription.getChat()
+                    + " to " + subscription.getSessionId());
+            return endOffsets;
+        }
+    }
+
+    private static boolean reached(Consumer<String, Message> consumer, Map<TopicPartition, Long> endOffsets) {
+        return endOffsets.entrySet().stream().allMatch(end -> consumer.position(end.getKey()) >= end.getValue());
+    }
+
+    /**
+     * Replay starts at the user's read offset, at least replay.window and at most replay.max records of the chat before the end
+     *
+     * @param windowStart offset replay.window records of the chat before the end
+     * @param maxStart    offset replay.max records of the chat before the end
+     */
+    private static long start(Long read, long windowStart, long maxStart) {
+        long start = read == null ? windowStart : Math.min(read, windowStart);
+        return Math.max(start, maxStart);
+    }
+
+    /**
+     * Start of the replay on a partition shared with other chats, where only records keyed by the chat count
+     * The partition is read backwards in steps of replay.max offsets until the window and the read offset are covered,
+     * replay.max records of the chat are found or the beginning or the deadline is reached
+     */
+    long chatStart(Consumer<String, Message> consumer, TopicPartition partition, String chat, Long read,
+                           long end, long beginning, long deadline) {
+        List<Long> offsets = new ArrayList<>();
+        long position = end;
+        while (position > beginning && offsets.size() < replayMax && System.currentTimeMillis() < deadline
+                && (offsets.size() < replayWindow || read != null && read < position)) {
+            long from = Math.max(beginning, position - replayMax);
+            List<Long> step = new ArrayList<>();
+            consumer.seek(partition, from);
+            while (consumer.position(partition) < position && System.currentTimeMillis() < deadline) {
+                for (ConsumerRecord<String, Message> record : consumer.poll(Duration.ofMillis(100)).records(partition)) {
+                    if (record.offset() < position && chat.equals(record.key())) {
+                        step.add(record.offset());
+                    }
+                }
+            }
+            offsets.addAll(0, step);
+            position = from;
+        }
+        long windowStart = offsets.size() < replayWindow ? position : offsets.get(offsets.size() - replayWindow);
+        long maxStart = offsets.size() < replayMax ? position : offsets.get(offsets.size() - replayMax);
+        return start(read, windowStart, maxStart);
+    }
+
+    private boolean isSubscribed(ChatSubscription subscription) {
+        return !subscription.isDropped() && subscriptionRegistry.contains(subscription);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        replayExecutor.shutdownNow();
+        teardownExecutor.shutdown();
+        containersMap.values().forEach(UserListenerContainer::stopContainer);
+        containersMap.clear();
+        partitionContainers.values().forEach(PartitionListenerContainer::stopContainer);
+        partitionContainers.clear();
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.utils.MessageUtils;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.util.MimeType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * One websocket session subscribed to one chat
+ * While history is replayed to the session its live records are held back, then only those after the replay are sent,
+ * so the session gets the chat in order
+ * A subscription holding back more than its limit is dropped, the session has to join the chat again
+ */
+public class ChatSubscription {
+
+    private final String sessionId, user, chat;
+    private final boolean batching;
+    private final MimeType contentType;
+    private List<ConsumerRecord<String, Message>> held;
+    private int maxHeld;
+    private boolean dropped;
+
+    /**
+     * @param contentType payload content type negotiated for the session, null for json
+     */
+    public ChatSubscription(String sessionId, String user, String chat, boolean batching, MimeType contentType) {
+        this.sessionId = sessionId;
+        this.user = user;
+        this.chat = chat;
+        this.batching = batching;
+        this.contentType = contentType;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getChat() {
+        return chat;
+    }
+
+    /**
+     * @return true if the session accepts several messages in one frame
+     */
+    public boolean isBatching() {
+        return batching;
+    }
+
+    /**
+     * Sending payload to the chat queue of this session only, other sessions of the same user are not affected
+     */
+    public void send(SimpMessagingTemplate template, Object payload) {
+        template.convertAndSendToUser(user, "/queue/" + chat, payload, MessageUtils.sessionHeaders(sessionId, contentType));
+    }
+
+    /**
+     * Sending messages in order, a batching session gets them as frames with arrays of at most maxBatch messages,
+     * other sessions get a frame per message
+     */
+    public void send(SimpMessagingTemplate template, List<Message> messages, int maxBatch) {
+        if (!batching || messages.size() == 1) {
+            messages.forEach(message -> send(template, message));
+            return;
+        }
+        for (int from = 0; from < messages.size(); from += maxBatch) {
+            send(template, messages.subList(from, Math.min(from + maxBatch, messages.size())));
+        }
+    }
+
+    /**
+     * Holding back up to maxHeld live records until {@link #replayed} is called
+     */
+    public synchronized void holdLive(int maxHeld) {
+        this.maxHeld = maxHeld;
+        if (held == null && !dropped) {
+            held = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Sending live records of the chat, or holding them back while history is replayed
+     * Records over the limit drop the subscription, nothing is sent to it anymore
+     */
+    public synchronized void deliver(SimpMessagingTemplate template, List<ConsumerRecord<String, Message>> records,
+                                     List<Message> messages, int maxBatch) {
+        if (dropped) {
+            return;
+        }
+        if (held != null) {
+            if (held.size() + records.size() > maxHeld) {
+                held = null;
+                dropped = true;
+                return;
+            }
+            held.addAll(records);
+            return;
+        }
+        send(template, messages, maxBatch);
+    }
+
+    public synchronized boolean isDropped() {
+        return dropped;
+    }
+
+    /**
+     * History up to the given end offsets was sent, held records from there on are sent now and live records are not held anymore
+     * Held records of partitions without an end are all sent
+     */
+    public synchronized void replayed(SimpMessagingTemplate template, Map<TopicPartition, Long> ends, int maxBatch) {
+        if (held == null) {
+            return;
+        }
+        List<Message> messages = new ArrayList<>(held.size());
+        for (ConsumerRecord<String, Message> record : held) {
+            Long end = ends.get(new TopicPartition(record.topic(), record.partition()));
+            if (end == null || record.offset() >= end) {
+                messages.add(record.value());
+            }
+        }
+        held = null;
+        if (!messages.isEmpty()) {
+            send(template, messages, maxBatch);
+        }
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof ChatSubscription)) {
+            return false;
+        }
+        ChatSubscription subscription = (ChatSubscription) object;
+        return sessionId.equals(subscription.sessionId) && chat.equals(subscription.chat);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sessionId, chat);
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.services.InboxService;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Moving the last activity of the chat lists forward from all chat topics, once per cluster: every node joins the
+ * same consumer group, independent of the history writer so chat lists stay ordered with the history disabled
+ */
+@Component
+@ConditionalOnProperty(name = "chat.inbox.enabled", havingValue = "true", matchIfMissing = true)
+public class InboxActivityListener extends TopicPatternListener {
+
+    private final InboxService inboxService;
+
+    public InboxActivityListener(InboxService inboxService,
+                                 ConcurrentKafkaListenerContainerFactory<String, Message> factory,
+                                 @Value("${chat.history.topic-pattern:[0-9a-f]{32}|main|chats-[0-9]+}") String topicPattern,
+                                 @Value("${chat.inbox.group:chat-inbox}") String group,
+                                 @Value("${chat.history.metadata-max-age:30000}") String metadataMaxAge) {
+        super(factory, topicPattern, group, metadataMaxAge);
+        this.inboxService = inboxService;
+    }
+
+    @Override
+    public void onMessage(List<ConsumerRecord<String, Message>> data) {
+        inboxService.touched(data);
+    }
+
+}
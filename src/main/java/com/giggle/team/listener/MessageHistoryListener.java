@@ -0,0 +1,36 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.services.MessageHistoryService;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Writing all chat topics into the mongo history, once per cluster: every node joins the same consumer group
+ */
+@Component
+@ConditionalOnProperty(name = "chat.history.enabled", havingValue = "true", matchIfMissing = true)
+public class MessageHistoryListener extends TopicPatternListener {
+
+    private final MessageHistoryService messageHistoryService;
+
+    public MessageHistoryListener(MessageHistoryService messageHistoryService,
+                                  ConcurrentKafkaListenerContainerFactory<String, Message> factory,
+                                  @Value("${chat.history.topic-pattern:[0-9a-f]{32}|main|chats-[0-9]+}") String topicPattern,
+                                  @Value("${chat.history.group:chat-history}") String group,
+                                  @Value("${chat.history.metadata-max-age:30000}") String metadataMaxAge) {
+        super(factory, topicPattern, group, metadataMaxAge);
+        this.messageHistoryService = messageHistoryService;
+    }
+
+    @Override
+    public void onMessage(List<ConsumerRecord<String, Message>> data) {
+        messageHistoryService.store(data);
+    }
+
+}
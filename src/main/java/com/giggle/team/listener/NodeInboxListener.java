@@ -0,0 +1,37 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.services.KafkaUserDestinationTransport;
+import com.giggle.team.services.UserMessagingService;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Delivering user destination messages forwarded by other nodes to the sessions of this node
+ */
+@Component
+@ConditionalOnExpression("${chat.routing.enabled:false} and '${chat.routing.transport:kafka}' == 'kafka'")
+public class NodeInboxListener {
+
+    private final UserMessagingService userMessagingService;
+
+    public NodeInboxListener(UserMessagingService userMessagingService) {
+        this.userMessagingService = userMessagingService;
+    }
+
+    @KafkaListener(topics = "#{'${chat.routing.inbox-topic-prefix:node-inbox}-' + @nodeIdentity.id}",
+            groupId = "#{@nodeIdentity.id}-inbox")
+    public void onForwarded(ConsumerRecord<String, Message> record) {
+        Header destination = record.headers().lastHeader(KafkaUserDestinationTransport.DESTINATION_HEADER);
+        if (destination == null || record.value() == null) {
+            return;
+        }
+        userMessagingService.sendLocally(record.key(), new String(destination.value(), StandardCharsets.UTF_8), record.value());
+    }
+
+}
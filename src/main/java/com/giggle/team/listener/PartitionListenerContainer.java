@@ -0,0 +1,123 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.services.MessageMetrics;
+import com.giggle.team.services.ReadOffsetService;
+import com.giggle.team.services.ReplayLog;
+import com.giggle.team.utils.ChatRoute;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.listener.BatchMessageListener;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.ConsumerSeekAware;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.support.TopicPartitionOffset;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kafka listener container of one partition of a multiplexed topic on this node, shared by all chats of that partition
+ * The partition is assigned directly and read from its end, records of one poll are handed to the listeners
+ * of their chats, records of chats without sessions on this node are skipped
+ */
+public class PartitionListenerContainer implements BatchMessageListener<String, Message>, ConsumerSeekAware {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionListenerContainer.class);
+
+    private final ConcurrentMessageListenerContainer<String, Message> container;
+    private final ChatRoute route;
+    private final SimpMessagingTemplate template;
+    private final ReadOffsetService readOffsetService;
+    private final MessageMetrics messageMetrics;
+    private final ReplayLog replayLog;
+    private final int batchMaxSize;
+    private final Map<String, UserListener> listeners = new ConcurrentHashMap<>();
+    private final CountDownLatch assigned = new CountDownLatch(1);
+
+    public PartitionListenerContainer(ChatRoute route, String groupId,
+                                      ConcurrentKafkaListenerContainerFactory<String, Message> factory,
+                                      SimpMessagingTemplate template, ReadOffsetService readOffsetService,
+                                      MessageMetrics messageMetrics, ReplayLog replayLog, int batchMaxSize,
+                                      long batchWindow) {
+        this.route = route;
+        this.template = template;
+        this.readOffsetService = readOffsetService;
+        this.messageMetrics = messageMetrics;
+        this.replayLog = replayLog;
+        this.batchMaxSize = batchMaxSize;
+        container = factory.createContainer(new TopicPartitionOffset(route.getTopic(), route.getPartition(),
+                TopicPartitionOffset.SeekPosition.END));
+        container.getContainerProperties().setGroupId(groupId);
+        container.getContainerProperties().setIdleBetweenPolls(batchWindow);
+        // positions are never committed, the group id only names the consumer
+        container.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+        container.getContainerProperties().setAssignmentCommitOption(ContainerProperties.AssignmentCommitOption.NEVER);
+        container.getContainerProperties().setMessageListener(this);
+    }
+
+    public void start() {
+        container.start();
+        logger.info("Started listener for partition " + route);
+    }
+
+    public void addChat(String chat, Set<ChatSubscription> subscribers) {
+        listeners.put(chat, new UserListener(template, readOffsetService, messageMetrics, replayLog, chat, subscribers,
+                batchMaxSize, logger));
+    }
+
+    /**
+     * @return true when no chat is left
+     */
+    public boolean removeChat(String chat) {
+        listeners.remove(chat);
+        messageMetrics.releaseChat(chat);
+        return listeners.isEmpty();
+    }
+
+    /**
+     * Positions of a directly assigned partition are resolved before this is called
+     */
+    @Override
+    public void onPartitionsAssigned(Map<TopicPartition, Long> assignments, ConsumerSeekCallback callback) {
+        assigned.countDown();
+    }
+
+    public boolean awaitAssignment(long timeout) throws InterruptedException {
+        return assigned.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onMessage(List<ConsumerRecord<String, Message>> data) {
+        Map<String, List<ConsumerRecord<String, Message>>> byChat = new HashMap<>();
+        for (ConsumerRecord<String, Message> record : data) {
+            if (record.key() != null && listeners.containsKey(record.key())) {
+                byChat.computeIfAbsent(record.key(), chat -> new ArrayList<>()).add(record);
+            }
+        }
+        byChat.forEach((chat, records) -> {
+            UserListener listener = listeners.get(chat);
+            if (listener != null) {
+                listener.onMessage(records);
+            }
+        });
+    }
+
+    public void stopContainer() {
+        logger.info("Stopping listener for partition " + route);
+        container.stop();
+        listeners.keySet().forEach(messageMetrics::releaseChat);
+        logger.info("Stopped listener for partition " + route);
+    }
+
+}
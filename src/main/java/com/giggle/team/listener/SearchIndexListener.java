@@ -0,0 +1,54 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.services.SearchIndex;
+import com.giggle.team.utils.NodeIdentity;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Feeding all chat topics into the search index of this node, every node reads them in its own group
+ * Assigned partitions are positioned at the offsets committed with the index, not at the group offsets,
+ * so the index never misses records it lost in a crash
+ */
+@Component
+@ConditionalOnProperty(name = "chat.search.enabled", havingValue = "true", matchIfMissing = true)
+public class SearchIndexListener extends TopicPatternListener implements ConsumerAwareRebalanceListener {
+
+    private final SearchIndex searchIndex;
+
+    public SearchIndexListener(SearchIndex searchIndex, NodeIdentity nodeIdentity,
+                               ConcurrentKafkaListenerContainerFactory<String, Message> factory,
+                               @Value("${chat.history.topic-pattern:[0-9a-f]{32}|main|chats-[0-9]+}") String topicPattern,
+                               @Value("${chat.history.metadata-max-age:30000}") String metadataMaxAge) {
+        super(factory, topicPattern, nodeIdentity.getId() + "-search", metadataMaxAge);
+        this.searchIndex = searchIndex;
+    }
+
+    @Override
+    public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        for (TopicPartition partition : partitions) {
+            Long position = searchIndex.committedPosition(partition);
+            if (position == null) {
+                consumer.seekToBeginning(List.of(partition));
+            } else {
+                consumer.seek(partition, position);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(List<ConsumerRecord<String, Message>> data) {
+        searchIndex.index(data);
+    }
+
+}
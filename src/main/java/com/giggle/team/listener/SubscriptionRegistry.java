@@ -0,0 +1,188 @@
+package com.giggle.team.listener;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent registry of chat subscriptions of this node, indexed by session, by user and by chat
+ * Changes of a chat index entry are atomic, so the first and the last subscription of a chat are seen exactly once
+ * Removed sessions are remembered for chat.closed-sessions.expire-after-write, a join racing the disconnect is undone
+ */
+@Component
+public class SubscriptionRegistry {
+
+    private final Map<String, Set<ChatSubscription>> bySession = new ConcurrentHashMap<>();
+    private final Map<String, Set<ChatSubscription>> byUser = new ConcurrentHashMap<>();
+    private final Map<String, Set<ChatSubscription>> byChat = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriptions = new AtomicInteger();
+    private final Cache<String, Boolean> closedSessions;
+
+    public SubscriptionRegistry(MeterRegistry meterRegistry,
+                                @Value("${chat.closed-sessions.expire-after-write:60000}") long expireAfterWrite) {
+        this.closedSessions = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMillis(expireAfterWrite))
+                .build();
+        Gauge.builder("chat.sessions", bySession, Map::size)
+                .description("Websocket sessions having joined at least one chat on this node")
+                .register(meterRegistry);
+        Gauge.builder("chat.users", byUser, Map::size)
+                .description("Users having at least one session joined to a chat on this node")
+                .register(meterRegistry);
+        Gauge.builder("chat.chats", byChat, Map::size)
+                .description("Chats having at least one session on this node")
+                .register(meterRegistry);
+        Gauge.builder("chat.subscriptions", subscriptions, AtomicInteger::get)
+                .description("Session to chat subscriptions on this node")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Registering subscription, onFirst gets the live subscribers set of the chat
+     * when the subscription is the first one of its chat and is called before the subscription becomes visible
+     * The session and user indexes are written first, a session removed meanwhile or before
+     * takes the subscription out again, onLast is called if that leaves the chat without subscribers
+     *
+     * @return false if the session has already joined the chat or was removed meanwhile
+     */
+    public boolean add(ChatSubscription subscription, Consumer<Set<ChatSubscription>> onFirst, Consumer<String> onLast) {
+        if (!addTo(bySession, subscription.getSessionId(), subscription)) {
+            return false;
+        }
+        addTo(byUser, subscription.getUser(), subscription);
+        byChat.compute(subscription.getChat(), (chat, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = ConcurrentHashMap.newKeySet();
+                onFirst.accept(subscribers);
+            }
+            if (subscribers.add(subscription)) {
+                subscriptions.incrementAndGet();
+            }
+            return subscribers;
+        });
+        if (closedSessions.getIfPresent(subscription.getSessionId()) != null) {
+            // removeSession may have taken the session before the chat index had the subscription
+            removeFrom(bySession, subscription.getSessionId(), subscription);
+            removeFromChat(subscription, onLast);
+            removeFrom(byUser, subscription.getUser(), subscription);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removing all subscriptions of the session, later joins of the session are rejected
+     * onLast is called with the chat id for every chat left without subscribers
+     *
+     * @return removed subscriptions
+     */
+    public Set<ChatSubscription> removeSession(String sessionId, Consumer<String> onLast) {
+        closedSessions.put(sessionId, Boolean.TRUE);
+        Set<ChatSubscription> removed = bySession.remove(sessionId);
+        if (removed == null) {
+            return Collections.emptySet();
+        }
+        for (ChatSubscription subscription : removed) {
+            removeFromChat(subscription, onLast);
+            removeFrom(byUser, subscription.getUser(), subscription);
+        }
+        return removed;
+    }
+
+    /**
+     * Removing one subscription, the session stays open and may join the chat again
+     * onLast is called with the chat id if the chat is left without subscribers
+     *
+     * @return false if the subscription was not registered
+     */
+    public boolean remove(ChatSubscription subscription, Consumer<String> onLast) {
+        boolean[] removed = new boolean[1];
+        bySession.computeIfPresent(subscription.getSessionId(), (k, set) -> {
+            removed[0] = set.remove(subscription);
+            return set.isEmpty() ? null : set;
+        });
+        if (removed[0]) {
+            removeFromChat(subscription, onLast);
+            removeFrom(byUser, subscription.getUser(), subscription);
+        }
+        return removed[0];
+    }
+
+    private void removeFromChat(ChatSubscription subscription, Consumer<String> onLast) {
+        byChat.computeIfPresent(subscription.getChat(), (chat, subscribers) -> {
+            if (subscribers.remove(subscription)) {
+                subscriptions.decrementAndGet();
+            }
+            if (subscribers.isEmpty()) {
+                onLast.accept(chat);
+                return null;
+            }
+            return subscribers;
+        });
+    }
+
+    /**
+     * Running the action with the live subscribers set of the chat if it has any,
+     * atomically with respect to the first and the last subscription of the chat
+     */
+    public void withChat(String chat, Consumer<Set<ChatSubscription>> action) {
+        byChat.computeIfPresent(chat, (key, subscribers) -> {
+            action.accept(subscribers);
+            return subscribers;
+        });
+    }
+
+    public boolean contains(ChatSubscription subscription) {
+        return getByChat(subscription.getChat()).contains(subscription);
+    }
+
+    public Set<ChatSubscription> getBySession(String sessionId) {
+        return unmodifiable(bySession.get(sessionId));
+    }
+
+    public Set<ChatSubscription> getByUser(String user) {
+        return unmodifiable(byUser.get(user));
+    }
+
+    public Set<ChatSubscription> getByChat(String chat) {
+        return unmodifiable(byChat.get(chat));
+    }
+
+    /**
+     * @return false if the subscription was there already
+     */
+    private static boolean addTo(Map<String, Set<ChatSubscription>> index, String key, ChatSubscription subscription) {
+        boolean[] added = new boolean[1];
+        index.compute(key, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = set.add(subscription);
+            return set;
+        });
+        return added[0];
+    }
+
+    private static void removeFrom(Map<String, Set<ChatSubscription>> index, String key, ChatSubscription subscription) {
+        index.computeIfPresent(key, (k, set) -> {
+            set.remove(subscription);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static Set<ChatSubscription> unmodifiable(Set<ChatSubscription> set) {
+        return set == null ? Collections.emptySet() : Collections.unmodifiableSet(set);
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.listener.BatchMessageListener;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Batch listener of all topics matching a pattern, in its own listener container
+ * The container is started with the other lifecycle beans once the context is refreshed and stopped before they are
+ * New topics are picked up by the pattern when the consumer refreshes its metadata
+ */
+public abstract class TopicPatternListener implements SmartLifecycle, BatchMessageListener<String, Message> {
+
+    private static final Logger logger = LoggerFactory.getLogger(TopicPatternListener.class);
+
+    private final ConcurrentMessageListenerContainer<String, Message> container;
+    private final String topicPattern;
+
+    /**
+     * A subclass implementing ConsumerAwareRebalanceListener positions the assigned partitions itself,
+     * others start from the group offsets
+     */
+    protected TopicPatternListener(ConcurrentKafkaListenerContainerFactory<String, Message> factory, String topicPattern,
+                                   String group, String metadataMaxAge) {
+        this.topicPattern = topicPattern;
+        container = factory.createContainer(Pattern.compile(topicPattern));
+        container.getContainerProperties().setGroupId(group);
+        Properties properties = new Properties();
+        properties.setProperty(ConsumerConfig.METADATA_MAX_AGE_CONFIG, metadataMaxAge);
+        container.getContainerProperties().setKafkaConsumerProperties(properties);
+        if (this instanceof ConsumerAwareRebalanceListener) {
+            container.getContainerProperties().setConsumerRebalanceListener((ConsumerAwareRebalanceListener) this);
+        }
+        container.getContainerProperties().setMessageListener(this);
+    }
+
+    @Override
+    public void start() {
+        container.start();
+        logger.info("Started " + getClass().getSimpleName() + " for topics " + topicPattern);
+    }
+
+    @Override
+    public void stop() {
+        container.stop();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return container.isRunning();
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.services.UnreadCounters;
+import com.giggle.team.utils.NodeIdentity;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Feeding all chat topics into the unread counters of this node, every node reads them in its own group
+ * Chats are read from their end when the node starts, chats created later from their beginning,
+ * partitions assigned again after a rebalance continue from the committed position
+ */
+@Component
+@ConditionalOnProperty(name = "chat.unread.enabled", havingValue = "true", matchIfMissing = true)
+public class UnreadListener extends TopicPatternListener implements ConsumerAwareRebalanceListener {
+
+    private final UnreadCounters unreadCounters;
+    private final Set<TopicPartition> known = new HashSet<>();
+
+    public UnreadListener(UnreadCounters unreadCounters, NodeIdentity nodeIdentity,
+                          ConcurrentKafkaListenerContainerFactory<String, Message> factory,
+                          @Value("${chat.history.topic-pattern:[0-9a-f]{32}|main|chats-[0-9]+}") String topicPattern,
+                          @Value("${chat.history.metadata-max-age:30000}") String metadataMaxAge) {
+        super(factory, topicPattern, nodeIdentity.getId() + "-unread", metadataMaxAge);
+        this.unreadCounters = unreadCounters;
+    }
+
+    @Override
+    public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        List<TopicPartition> added = partitions.stream().filter(partition -> !known.contains(partition))
+                .collect(Collectors.toList());
+        if (added.isEmpty()) {
+            return;
+        }
+        if (known.isEmpty()) {
+            consumer.seekToEnd(added);
+        } else {
+            consumer.seekToBeginning(added);
+        }
+        known.addAll(added);
+        Map<TopicPartition, Long> positions = added.stream()
+                .collect(Collectors.toMap(Function.identity(), consumer::position));
+        unreadCounters.assigned(consumer.beginningOffsets(added), positions);
+    }
+
+    @Override
+    public void onMessage(List<ConsumerRecord<String, Message>> data) {
+        unreadCounters.onRecords(data);
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.UserEvent;
+import com.giggle.team.services.ChatRouting;
+import com.giggle.team.services.UserCache;
+import com.giggle.team.services.UsernameIndex;
+import com.giggle.team.utils.ChatRoute;
+import com.giggle.team.utils.NodeIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applying user changes and chat route changes made on other nodes to the caches and chat listeners of this node
+ * Every node reads the user events topic in its own group, starting from the latest event and never committing
+ */
+@Component
+public class UserEventsListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserEventsListener.class);
+
+    private final UserCache userCache;
+    private final UsernameIndex usernameIndex;
+    private final NodeIdentity nodeIdentity;
+    private final ChatRouting chatRouting;
+    private final ChatFanoutHub chatFanoutHub;
+
+    public UserEventsListener(UserCache userCache, UsernameIndex usernameIndex, NodeIdentity nodeIdentity,
+                              ChatRouting chatRouting, ChatFanoutHub chatFanoutHub) {
+        this.userCache = userCache;
+        this.usernameIndex = usernameIndex;
+        this.nodeIdentity = nodeIdentity;
+        this.chatRouting = chatRouting;
+        this.chatFanoutHub = chatFanoutHub;
+    }
+
+    @KafkaListener(topics = "${chat.user-events.topic:user-events}",
+            groupId = "#{@nodeIdentity.id}-user-events",
+            containerFactory = "uncommittedListenerContainerFactory",
+            properties = {"auto.offset.reset=latest",
+                    "spring.deserializer.value.delegate.class=org.springframework.kafka.support.serializer.JsonDeserializer",
+                    "spring.json.value.default.type=com.giggle.team.models.UserEvent",
+                    "spring.json.use.type.headers=false"})
+    public void onUserEvent(UserEvent event) {
+        if (event == null || event.getType() == null || nodeIdentity.getId().equals(event.getNode())) {
+            return;
+        }
+        switch (event.getType()) {
+            case ROUTE_CHANGED:
+                chatRouting.evict(event.getChat());
+                chatFanoutHub.reroute(event.getChat(), ChatRoute.parse(event.getRoute()));
+                break;
+            case USER_CREATED:
+                logger.debug("User " + event.getUser() + " created on node " + event.getNode());
+                userCache.evict(event.getUser());
+                usernameIndex.add(event.getUsername(), event.getUser());
+                break;
+            case USER_CHANGED:
+                logger.debug("User " + event.getUser() + " changed on node " + event.getNode());
+                userCache.evict(event.getUser());
+                break;
+        }
+    }
+
+}
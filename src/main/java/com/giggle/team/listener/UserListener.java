@@ -1,49 +1,141 @@
 package com.giggle.team.listener;
 
 import com.giggle.team.models.Message;
+import com.giggle.team.services.MessageMetrics;
+import com.giggle.team.services.ReadOffsetService;
+import com.giggle.team.services.ReplayLog;
+import io.micrometer.core.instrument.Counter;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
-import org.springframework.kafka.listener.ConsumerSeekAware;
-import org.springframework.kafka.listener.MessageListener;
+import org.springframework.kafka.listener.BatchMessageListener;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Implementing MessageListener to put it into Listener Container
- * Implementing ConsumerSeekAware to be able to set offset in kafka topic to 0 for each new listener
+ * Implementing BatchMessageListener to put it into Listener Container, records of one poll are dispatched together
+ * Implementing ConsumerAwareRebalanceListener to start reading the chat from its current end when it is opened on this node,
+ * history is replayed to each joining session separately from the user's read offset
+ * There is only one listener per chat on a node, it dispatches every record to all sessions subscribed to the chat
+ * and appends it to the replay log first, if there is one
  **/
-public class UserListener implements ConsumerSeekAware, MessageListener<String, String> {
+public class UserListener implements ConsumerAwareRebalanceListener, BatchMessageListener<String, Message> {
 
-    SimpMessagingTemplate template;
-    String chat, user, id;
-    Logger logger;
+    private final SimpMessagingTemplate template;
+    private final ReadOffsetService readOffsetService;
+    private final MessageMetrics messageMetrics;
+    private final ReplayLog replayLog;
+    private final Counter chatMessages;
+    private final String chat;
+    private final Set<ChatSubscription> subscribers;
+    private final int batchMaxSize;
+    private final Logger logger;
+    private final CountDownLatch assigned = new CountDownLatch(1);
+    private final Map<TopicPartition, Long> positions = new ConcurrentHashMap<>();
 
-    public UserListener(SimpMessagingTemplate template, String chat, String user, Logger logger, String id) {
+    public UserListener(SimpMessagingTemplate template, ReadOffsetService readOffsetService, MessageMetrics messageMetrics,
+                        ReplayLog replayLog, String chat, Set<ChatSubscription> subscribers, int batchMaxSize, Logger logger) {
         this.template = template;
+        this.readOffsetService = readOffsetService;
+        this.messageMetrics = messageMetrics;
+        this.replayLog = replayLog;
+        this.chatMessages = messageMetrics.chatMessages(chat);
         this.chat = chat;
-        this.user = user;
+        this.subscribers = subscribers;
+        this.batchMaxSize = batchMaxSize;
         this.logger = logger;
-        this.id = id;
     }
 
-    public void onPartitionsAssigned(Map<TopicPartition, Long> assignments, ConsumerSeekCallback callback) {
-        callback.seekToBeginning(assignments.keySet());
+    /**
+     * Positions are resolved right here, so every replay started after the assignment ends where live delivery begins
+     * Nothing is committed, later reassignments continue after the last dispatched record of each partition
+     */
+    @Override
+    public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (assigned.getCount() > 0) {
+            consumer.seekToEnd(partitions);
+            partitions.forEach(consumer::position);
+            assigned.countDown();
+            return;
+        }
+        for (TopicPartition partition : partitions) {
+            Long position = positions.get(partition);
+            if (position != null) {
+                consumer.seek(partition, position);
+            } else {
+                consumer.seekToEnd(List.of(partition));
+            }
+        }
+    }
+
+    public boolean awaitAssignment(long timeout) throws InterruptedException {
+        return assigned.await(timeout, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Receiving message from kafka topic and checking if that message is belongs to the listeners chat
-     * Then sending it to the STOMP topic that user subscribed
+     * Receiving messages of one poll from kafka topic and keeping those belonging to the listeners chat
+     * Then sending them to the STOMP queue of every session subscribed to the chat, as one frame to batching sessions
      */
     @Override
-    public void onMessage(ConsumerRecord<String, String> data) {
-        String[] message = data.value().split("-");
-        if (message[0].equals(chat)) {
-            logger.info("Got a new message for " + this.user + " ; From chat " + this.chat + " with listener " + id);
-            template.convertAndSendToUser(user, "/queue/" + chat,
-                    new Message(message[0], Message.MessageType.valueOf(message[1]), message[2], message[3], message[4], message[5]));
-            //template.convertAndSend("/topic/user/" + user + "/" + chat, new ChatMessage(message[0], ChatMessage.MessageType.valueOf(message[1]), message[2], message[3]));
+    public void onMessage(List<ConsumerRecord<String, Message>> data) {
+        long received = System.nanoTime();
+        track(data);
+        List<ConsumerRecord<String, Message>> records = new ArrayList<>(data.size());
+        List<Message> messages = new ArrayList<>(data.size());
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        for (ConsumerRecord<String, Message> record : data) {
+            Message message = record.value();
+            if (message != null && chat.equals(message.getChatId())) {
+                records.add(record);
+                messages.add(message);
+                offsets.merge(new TopicPartition(record.topic(), record.partition()), record.offset() + 1, Math::max);
+            }
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        chatMessages.increment(messages.size());
+        if (replayLog != null) {
+            replayLog.append(chat, records);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Got " + messages.size() + " new messages in chat " + chat + " for " + subscribers.size() + " sessions");
+        }
+        int sessions = 0;
+        for (ChatSubscription subscription : subscribers) {
+            subscription.deliver(template, records, messages, batchMaxSize);
+            offsets.forEach((partition, offset) -> readOffsetService.delivered(subscription.getUser(), chat, partition, offset));
+            sessions++;
+        }
+        for (ConsumerRecord<String, Message> record : records) {
+            messageMetrics.dispatched(received, record.timestamp(), sessions);
+        }
+    }
+
+    /**
+     * Remembering the position after the last record of each partition in the poll, records of other chats included
+     */
+    private void track(List<ConsumerRecord<String, Message>> data) {
+        ConsumerRecord<String, Message> previous = null;
+        for (ConsumerRecord<String, Message> record : data) {
+            if (previous != null && (previous.partition() != record.partition() || !previous.topic().equals(record.topic()))) {
+                positions.put(new TopicPartition(previous.topic(), previous.partition()), previous.offset() + 1);
+            }
+            previous = record;
+        }
+        if (previous != null) {
+            positions.put(new TopicPartition(previous.topic(), previous.partition()), previous.offset() + 1);
         }
     }
 
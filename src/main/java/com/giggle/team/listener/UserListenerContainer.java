@@ -1,5 +1,9 @@
 package com.giggle.team.listener;
 
+import com.giggle.team.models.Message;
+import com.giggle.team.services.MessageMetrics;
+import com.giggle.team.services.ReadOffsetService;
+import com.giggle.team.services.ReplayLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
@@ -7,45 +11,56 @@ import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
 import org.springframework.kafka.listener.ContainerProperties;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 
+import java.util.Set;
+
+/**
+ * Kafka listener container of one chat on this node
+ */
 public class UserListenerContainer {
 
-    private ConcurrentMessageListenerContainer<String, String> container;
+    private final ConcurrentMessageListenerContainer<String, Message> container;
     private static final Logger logger = LoggerFactory.getLogger(UserListenerContainer.class);
-    private final String user, chat;
+    private final String chat;
+    private final UserListener listener;
+    private final MessageMetrics messageMetrics;
 
-    public UserListenerContainer(String kafkaTopic, String user, String chat,
-                                 ConcurrentKafkaListenerContainerFactory<String, String> factory,
-                                 SimpMessagingTemplate template, String id) {
-        this.user = user;
+    public UserListenerContainer(String kafkaTopic, String chat, String groupId,
+                                 ConcurrentKafkaListenerContainerFactory<String, Message> factory,
+                                 SimpMessagingTemplate template, ReadOffsetService readOffsetService,
+                                 MessageMetrics messageMetrics, ReplayLog replayLog, Set<ChatSubscription> subscribers,
+                                 int batchMaxSize, long batchWindow) {
         this.chat = chat;
+        this.messageMetrics = messageMetrics;
+        listener = new UserListener(template, readOffsetService, messageMetrics, replayLog, chat, subscribers, batchMaxSize, logger);
         container = factory.createContainer(kafkaTopic);
-        container.getContainerProperties().setGroupId(user);
+        container.getContainerProperties().setGroupId(groupId);
+        // records arriving while the consumer waits between polls are dispatched together
+        container.getContainerProperties().setIdleBetweenPolls(batchWindow);
+        // nothing is committed, so the group of a node that is gone leaves no offsets behind
+        container.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
         container.getContainerProperties().setAssignmentCommitOption(ContainerProperties.AssignmentCommitOption.NEVER);
-        container.getContainerProperties().setMessageListener(new UserListener(template, chat, user, logger, id));
-        logger.info("Starting new listener for " + user + " in chat " + chat);
+        container.getContainerProperties().setConsumerRebalanceListener(listener);
+        container.getContainerProperties().setMessageListener(listener);
+    }
+
+    public void start() {
+        logger.info("Starting new listener for chat " + chat);
         container.start();
-        logger.info("Started new listener for " + user + " in chat " + chat);
+        logger.info("Started new listener for chat " + chat);
     }
 
-    public UserListenerContainer(String user, String chat) {
-        this.user = user;
-        this.chat = chat;
+    /**
+     * Waiting until the chat is assigned to the container and its live position is known
+     */
+    public boolean awaitAssignment(long timeout) throws InterruptedException {
+        return listener.awaitAssignment(timeout);
     }
 
     public void stopContainer() {
-        logger.info("Stopping listener for " + user + " in chat " + chat);
+        logger.info("Stopping listener for chat " + chat);
         container.stop();
-        logger.info("Stopped listener for " + user + " in chat " + chat);
-    }
-
-    @Override
-    public boolean equals(Object object) {
-        boolean isEqual = false;
-        if (object instanceof UserListenerContainer) {
-            isEqual = (this.user.equals(((UserListenerContainer) object).user)) && (this.chat.equals(((UserListenerContainer) object).chat));
-        }
-        return isEqual;
+        messageMetrics.releaseChat(chat);
+        logger.info("Stopped listener for chat " + chat);
     }
 
 }
-
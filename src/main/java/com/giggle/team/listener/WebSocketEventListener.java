@@ -8,17 +8,14 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.socket.messaging.SessionConnectedEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 
-import java.util.ArrayList;
-import java.util.Map;
-
 @Component
 public class WebSocketEventListener {
 
   private static final Logger logger = LoggerFactory.getLogger(WebSocketEventListener.class);
-  private final Map<String, ArrayList<UserListenerContainer>> listenersMap;
+  private final ChatFanoutHub chatFanoutHub;
 
-  public WebSocketEventListener(Map<String, ArrayList<UserListenerContainer>> listenersMap) {
-    this.listenersMap = listenersMap;
+  public WebSocketEventListener(ChatFanoutHub chatFanoutHub) {
+    this.chatFanoutHub = chatFanoutHub;
   }
 
   @EventListener
@@ -28,21 +25,15 @@ public class WebSocketEventListener {
   }
 
   /**
-   * Removing all of the user`s listeners on it disconnection from websocket
+   * Removing all of the session`s subscriptions on it disconnection from websocket
    */
   @EventListener
   public void handleWebSocketDisconnectListener(SessionDisconnectEvent event) {
     logger.info("WebSocketEventListener.handleWebSocketDisconnectListener");
     StompHeaderAccessor headerAccessor = StompHeaderAccessor.wrap(event.getMessage());
     assert (headerAccessor.getSessionAttributes() != null);
-    if(listenersMap.get(event.getSessionId()) != null){
-      for (int i = 0; i < listenersMap.get(event.getSessionId()).size(); i++) {
-        listenersMap.get(event.getSessionId()).get(i).stopContainer();
-        logger.info("Listener removed");
-      }
-      listenersMap.remove(event.getSessionId());
-      logger.info("User Disconnected : " + event.getSessionId(), ", Listeners Removed");
-    }
+    chatFanoutHub.leave(event.getSessionId());
+    logger.info("User Disconnected : " + event.getSessionId() + ", Subscriptions Removed");
   }
 
 }
\ No newline at end of file
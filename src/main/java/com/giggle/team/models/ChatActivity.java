@@ -0,0 +1,24 @@
+package com.giggle.team.models;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Time of the newest message of one chat, shared by the chat list entries of all its members
+ */
+@Document(collection = "chat_activity")
+@TypeAlias("chatActivity")
+@NoArgsConstructor
+@Getter
+@Setter
+public class ChatActivity {
+    @Id
+    private String id;
+    private Date lastActivity;
+}
@@ -0,0 +1,18 @@
+package com.giggle.team.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+
+/**
+ * Users of the directory changed since a version, username -> email in the order of their changes
+ * version is the one to ask for the next delta, more is set when the delta was cut at chat.directory.max-delta
+ */
+@AllArgsConstructor
+@Getter
+public class DirectoryDelta {
+    private final long version;
+    private final Map<String, String> users;
+    private final boolean more;
+}
@@ -0,0 +1,17 @@
+package com.giggle.team.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Page of chat history, oldest message first
+ * next is the cursor of the older page, null when the start of the history is reached
+ */
+@AllArgsConstructor
+@Getter
+public class HistoryPage {
+    private final List<MessageBucket.Entry> messages;
+    private final String next;
+}
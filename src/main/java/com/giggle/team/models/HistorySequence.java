@@ -0,0 +1,40 @@
+package com.giggle.team.models;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Number of messages of the chat written to the history so far, and per topic partition the offset after the last of them
+ * A record below its partition's position got its number before and is not numbered again
+ * bucket is the seq of the bucket being filled, with the start of its time window and its number of messages
+ */
+@Document(collection = "history_sequences")
+@TypeAlias("historySequence")
+@NoArgsConstructor
+@Getter
+@Setter
+public class HistorySequence {
+    @Id
+    private String id;
+    private long value;
+    private long bucket = -1;
+    private long bucketStart;
+    private int bucketCount;
+    private Map<String, Long> positions = new HashMap<>();
+
+    public HistorySequence(String chat) {
+        this.id = chat;
+    }
+
+    public static String positionOf(String topic, int partition) {
+        return topic + "-" + partition;
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.giggle.team.models;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One chat in the chat list of one user, kept up to date by chat creation, adding users and chat removal
+ * Members of the main chat are not listed, it has every user
+ * The last activity of the chat is kept once per chat in {@link ChatActivity}
+ */
+@Document(collection = "inbox")
+@TypeAlias("inbox")
+@NoArgsConstructor
+@Getter
+@Setter
+public class InboxEntry {
+    @Id
+    private String id;
+    @Indexed
+    private String user;
+    @Indexed
+    private String chat;
+    /**
+     * Usernames of the chat members
+     */
+    private List<String> members = new ArrayList<>();
+
+    public static String idOf(String user, String chat) {
+        return user + ":" + chat;
+    }
+
+}
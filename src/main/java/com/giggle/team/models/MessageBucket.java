@@ -0,0 +1,93 @@
+package com.giggle.team.models;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Up to chat.history.bucket-size consecutive messages of one chat, all from one chat.history.bucket-span time window
+ * Buckets of a chat are numbered by seq in the order they are filled, see {@link HistorySequence},
+ * so writing a record again after a redelivery changes nothing
+ */
+@Document(collection = "message_buckets")
+@TypeAlias("bucket")
+@CompoundIndex(name = "chat_seq", def = "{'chatId': 1, 'seq': -1}")
+@NoArgsConstructor
+@Getter
+@Setter
+public class MessageBucket {
+    @Id
+    private String id;
+    private String chatId;
+    private long seq;
+    /**
+     * Start of the time window, every message of the bucket is younger than bucketStart + bucket-span
+     */
+    private Date bucketStart;
+    private List<Entry> messages = new ArrayList<>();
+
+    public static String idOf(String chatId, long seq) {
+        return chatId + ":" + seq;
+    }
+
+    /**
+     * Message with its kafka timestamp and position, ordered by time, then by partition and offset within a bucket
+     * seq of the bucket is not stored with the entry, it is set when the entry is read for a page
+     */
+    @NoArgsConstructor
+    @Getter
+    @Setter
+    public static class Entry {
+        public static final Comparator<Entry> ORDER = Comparator.comparingLong(Entry::getTime)
+                .thenComparingInt(Entry::getPartition)
+                .thenComparingLong(Entry::getOffset);
+
+        private long time;
+        private int partition;
+        private long offset;
+        private Message message;
+        @Transient
+        private long seq = -1;
+
+        public Entry(long time, int partition, long offset, Message message) {
+            this.time = time;
+            this.partition = partition;
+            this.offset = offset;
+            this.message = message;
+        }
+
+        /**
+         * @return history cursor pointing right before this message
+         */
+        public String getCursor() {
+            return seq + "-" + time + "-" + partition + "-" + offset;
+        }
+
+        /**
+         * Parsing a cursor made by {@link #getCursor()} or plain epoch millis, meaning before everything of that time
+         * The seq of a millis cursor is unknown, -1
+         */
+        public static Entry ofCursor(String cursor) {
+            String[] parts = cursor.split("-");
+            if (parts.length == 1) {
+                return new Entry(Long.parseLong(parts[0]), -1, -1, null);
+            }
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("Malformed history cursor " + cursor);
+            }
+            Entry entry = new Entry(Long.parseLong(parts[1]), Integer.parseInt(parts[2]), Long.parseLong(parts[3]), null);
+            entry.setSeq(Long.parseLong(parts[0]));
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.giggle.team.models;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Last sign of life of an application node, nodes without a recent heartbeat are not routed to
+ */
+@Document(collection = "nodes")
+@TypeAlias("node")
+@NoArgsConstructor
+@Getter
+@Setter
+public class NodeHeartbeat {
+    @Id
+    private String id;
+    @Indexed
+    private Date heartbeat;
+}
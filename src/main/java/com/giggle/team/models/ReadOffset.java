@@ -0,0 +1,46 @@
+package com.giggle.team.models;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Position of the next message of the chat to deliver to the user, per kafka topic and partition
+ * Offsets of a route the chat was moved away from stay under their own topic, they never mix with the new route's
+ */
+@Document(collection = "offsets")
+@TypeAlias("offset")
+@NoArgsConstructor
+@Getter
+@Setter
+public class ReadOffset {
+    @Id
+    private String id;
+    private String user;
+    private String chat;
+    /**
+     * topic -> partition -> offset
+     */
+    private Map<String, Map<String, Long>> positions = new HashMap<>();
+    /**
+     * partition -> offset written before offsets were kept per topic, they belong to the chat's current route
+     */
+    private Map<String, Long> offsets = new HashMap<>();
+
+    public ReadOffset(String user, String chat) {
+        this.id = idOf(user, chat);
+        this.user = user;
+        this.chat = chat;
+    }
+
+    public static String idOf(String user, String chat) {
+        return user + ":" + chat;
+    }
+
+}
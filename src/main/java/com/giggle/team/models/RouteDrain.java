@@ -0,0 +1,30 @@
+package com.giggle.team.models;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Old topic of a chat moved to a multiplexed partition, still copied to the new route until no node can send to it anymore
+ * Positions are the offsets of the next records to copy, per partition of the old topic
+ */
+@Document(collection = "route_drains")
+@TypeAlias("routeDrain")
+@NoArgsConstructor
+@Getter
+@Setter
+public class RouteDrain {
+    @Id
+    private String id;
+    private String from;
+    private String to;
+    private Map<String, Long> positions = new HashMap<>();
+    private Date until;
+}
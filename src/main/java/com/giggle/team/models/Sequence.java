@@ -0,0 +1,28 @@
+package com.giggle.team.models;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cluster-wide counter, incremented atomically in mongo
+ * Values taken by writers that have not written them yet are pending, by the time they were taken
+ */
+@Document(collection = "sequences")
+@TypeAlias("sequence")
+@NoArgsConstructor
+@Getter
+@Setter
+public class Sequence {
+    @Id
+    private String id;
+    private long value;
+    private Map<String, Date> pending = new HashMap<>();
+}
@@ -6,10 +6,16 @@ import lombok.Setter;
 import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.TreeSet;
 
 @Document(collection = "topics")
 @TypeAlias("topic")
@@ -22,6 +28,11 @@ public class Topic {
     private List<UserEntity> users = new LinkedList<>();
     private String kafkaTopic;
     private String stompDestination;
+    /**
+     * Hash of the sorted member ids, unique among chats, not set for the main chat
+     */
+    @Indexed(unique = true, sparse = true)
+    private String membersKey;
 
     public Topic(String kafkaTopic, String stompDestination) {
         this.kafkaTopic = kafkaTopic;
@@ -32,4 +43,26 @@ public class Topic {
         users.add(user);
     }
 
+    public void updateMembersKey() {
+        membersKey = membersKeyOf(users);
+    }
+
+    public static String membersKeyOf(Collection<UserEntity> members) {
+        TreeSet<String> ids = new TreeSet<>();
+        for (UserEntity member : members) {
+            ids.add(member.getId().toHexString());
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(String.join(",", ids).getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
 }
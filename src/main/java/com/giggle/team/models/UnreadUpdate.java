@@ -0,0 +1,18 @@
+package com.giggle.team.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+
+/**
+ * Unread message counters of the user's chats sent to /queue/service, only the chats changed since the previous update
+ */
+@AllArgsConstructor
+@Getter
+public class UnreadUpdate {
+    public static final String UNREAD_UPDATE = "UNREAD_UPDATE";
+
+    private final String content = UNREAD_UPDATE;
+    private final Map<String, Integer> unread;
+}
@@ -8,6 +8,7 @@ import lombok.Setter;
 import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
@@ -33,6 +34,11 @@ public class UserEntity implements UserDetails {
     @JsonView(View.Rest.class)
     private String password;
     private List<ObjectId> topics = new LinkedList<>();
+    /**
+     * Version of the user directory in which the user last changed, see UserDirectory
+     */
+    @Indexed(sparse = true)
+    private Long directoryVersion;
 
     public UserEntity(String username, String password, String email) {
         this.username = username;
@@ -0,0 +1,48 @@
+package com.giggle.team.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Change made on one node that the other nodes apply to their caches, sent through the user events topic as json
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class UserEvent {
+
+    public enum Type {
+        /** the user signed up, the event carries the username for the username index */
+        USER_CREATED,
+        /** the user was saved, cached copies and memberships of the user are stale, the username did not change */
+        USER_CHANGED,
+        /** the chat moved to another kafka route */
+        ROUTE_CHANGED
+    }
+
+    private Type type;
+    /** node the change was made on, it does not apply its own events */
+    private String node;
+    /** e-mail of the changed user */
+    private String user;
+    /** username of the created user */
+    private String username;
+    private String chat;
+    /** new route of the chat, see ChatRoute */
+    private String route;
+
+    public static UserEvent userCreated(String node, String user, String username) {
+        return new UserEvent(Type.USER_CREATED, node, user, username, null, null);
+    }
+
+    public static UserEvent userChanged(String node, String user) {
+        return new UserEvent(Type.USER_CHANGED, node, user, null, null, null);
+    }
+
+    public static UserEvent routeChanged(String node, String chat, String route) {
+        return new UserEvent(Type.ROUTE_CHANGED, node, null, null, chat, route);
+    }
+}
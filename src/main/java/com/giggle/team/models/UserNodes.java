@@ -0,0 +1,27 @@
+package com.giggle.team.models;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Application nodes holding at least one websocket session of the user
+ */
+@Document(collection = "user_nodes")
+@TypeAlias("userNodes")
+@NoArgsConstructor
+@Getter
+@Setter
+public class UserNodes {
+    @Id
+    private String user;
+    @Indexed
+    private Set<String> nodes = new HashSet<>();
+}
@@ -0,0 +1,14 @@
+package com.giggle.team.repositories;
+
+import com.giggle.team.models.InboxEntry;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface InboxRepository extends MongoRepository<InboxEntry, String> {
+    List<InboxEntry> findByUser(String user);
+
+    void deleteByChat(String chat);
+}
@@ -0,0 +1,9 @@
+package com.giggle.team.repositories;
+
+import com.giggle.team.models.ReadOffset;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ReadOffsetRepository extends MongoRepository<ReadOffset, String> {
+}
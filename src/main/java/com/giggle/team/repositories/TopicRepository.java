@@ -15,5 +15,9 @@ public interface TopicRepository extends MongoRepository<Topic, ObjectId> {
 
     Topic findByStompDestination(String destination);
 
+    boolean existsByMembersKey(String membersKey);
+
+    List<Topic> findByMembersKeyIsNullAndStompDestinationNot(String destination);
+
     void removeTopicById(ObjectId id);
 }
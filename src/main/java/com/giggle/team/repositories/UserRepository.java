@@ -2,7 +2,9 @@ package com.giggle.team.repositories;
 
 import com.giggle.team.models.UserEntity;
 import org.bson.types.ObjectId;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -11,7 +13,14 @@ import java.util.List;
 public interface UserRepository extends MongoRepository<UserEntity, ObjectId> {
     UserEntity findByEmail(String email);
 
-    List<UserEntity> findByUsernameIgnoreCaseStartsWith(String query);
+    @Query(value = "{}", fields = "{ 'username' : 1, 'email' : 1 }")
+    List<UserEntity> findAllUsernames();
 
     List<UserEntity> findAll();
+
+    @Query(value = "{ 'directoryVersion' : { $gt : ?0, $lte : ?1 } }", fields = "{ 'username' : 1, 'email' : 1, 'directoryVersion' : 1 }")
+    List<UserEntity> findDirectoryBetween(long after, long upTo, Pageable pageable);
+
+    @Query(value = "{ 'directoryVersion' : { $exists : false } }", fields = "{ '_id' : 1 }")
+    List<UserEntity> findWithoutDirectoryVersion();
 }
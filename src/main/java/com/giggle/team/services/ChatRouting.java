@@ -0,0 +1,174 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.models.Topic;
+import com.giggle.team.repositories.TopicRepository;
+import com.giggle.team.utils.ChatRoute;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.admin.TopicDescription;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.errors.TopicExistsException;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Kafka routes of chats
+ * By default every chat gets its own topic named after the chat id, created by the broker on first use
+ * With chat.multiplex.enabled new chats are spread over the partitions of chat.multiplex.topics topics
+ * named chat.multiplex.topic-prefix-N, records are keyed by chat id, so the order of one chat is kept
+ * Routes are stored with the chat, so both kinds of chats work side by side, see ChatTopicMigration
+ */
+@Service
+public class ChatRouting {
+
+    /**
+     * Header of records copied from the own topic of a chat to its multiplexed partition
+     */
+    public static final String MIGRATED_HEADER = "migrated";
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatRouting.class);
+
+    private final TopicRepository topicRepository;
+    private final KafkaAdmin kafkaAdmin;
+    private final boolean multiplexed;
+    private final String topicPrefix;
+    private final int topics;
+    private final int partitions;
+    private final short replicationFactor;
+    private final LoadingCache<String, ChatRoute> routes;
+
+    public ChatRouting(TopicRepository topicRepository, KafkaAdmin kafkaAdmin, MeterRegistry meterRegistry,
+                       @Value("${chat.multiplex.enabled:false}") boolean multiplexed,
+                       @Value("${chat.multiplex.topic-prefix:chats}") String topicPrefix,
+                       @Value("${chat.multiplex.topics:1}") int topics,
+                       @Value("${chat.multiplex.partitions:64}") int partitions,
+                       @Value("${chat.multiplex.replication-factor:1}") short replicationFactor,
+                       @Value("${chat.route-cache.maximum-size:100000}") long maximumSize,
+                       @Value("${chat.route-cache.expire-after-write:600000}") long expireAfterWrite) {
+        this.topicRepository = topicRepository;
+        this.kafkaAdmin = kafkaAdmin;
+        this.multiplexed = multiplexed;
+        this.topicPrefix = topicPrefix;
+        this.topics = topics;
+        this.partitions = partitions;
+        this.replicationFactor = replicationFactor;
+        this.routes = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofMillis(expireAfterWrite))
+                .recordStats()
+                .build(this::load), "routes");
+    }
+
+    /**
+     * Creating the multiplexed topics with chat.multiplex.partitions partitions, broker defaults would give them one
+     */
+    @PostConstruct
+    public void createTopics() {
+        if (!multiplexed) {
+            return;
+        }
+        List<NewTopic> newTopics = new ArrayList<>();
+        for (int topic = 0; topic < topics; topic++) {
+            newTopics.add(new NewTopic(topicPrefix + "-" + topic, partitions, replicationFactor));
+        }
+        try (AdminClient admin = AdminClient.create(kafkaAdmin.getConfigurationProperties())) {
+            for (NewTopic newTopic : newTopics) {
+                try {
+                    admin.createTopics(List.of(newTopic)).all().get(10, TimeUnit.SECONDS);
+                    logger.info("Created multiplexed topic " + newTopic.name() + " with " + partitions + " partitions");
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof TopicExistsException)) {
+                        throw e;
+                    }
+                }
+            }
+            Map<String, TopicDescription> descriptions = admin.describeTopics(
+                    newTopics.stream().map(NewTopic::name).collect(Collectors.toList())).all().get(10, TimeUnit.SECONDS);
+            descriptions.forEach((name, description) -> {
+                if (description.partitions().size() != partitions) {
+                    logger.error("Multiplexed topic " + name + " has " + description.partitions().size()
+                            + " partitions instead of " + partitions + ", chats routed to missing partitions can not be sent to");
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.error("Multiplexed topics " + topicPrefix + "-* could not be checked", e);
+        }
+    }
+
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    /**
+     * Route for a chat being created, its own topic or a partition chosen by the hash of the chat id
+     */
+    public ChatRoute newRoute(String chat) {
+        if (!multiplexed) {
+            return new ChatRoute(chat, null);
+        }
+        int hash = Utils.toPositive(Utils.murmur2(chat.getBytes(StandardCharsets.UTF_8)));
+        // the partition comes from the bits left over by the topic, so chats of one topic use all of its partitions
+        return new ChatRoute(topicPrefix + "-" + (hash % topics), (hash / topics) % partitions);
+    }
+
+    /**
+     * Route of an existing chat, chats without a stored route have their own topic
+     */
+    public ChatRoute routeOf(String chat) {
+        return routes.get(chat);
+    }
+
+    /**
+     * Dropping the cached route of a chat moved to another route
+     */
+    public void evict(String chat) {
+        routes.invalidate(chat);
+    }
+
+    /**
+     * Chat of a record read by pattern from chat topics: the topic of a chat having its own topic,
+     * the record key of a multiplexed topic, null when the message does not belong to that chat
+     * Records copied by the migration are skipped as well, they were read from the own topic of their chat before
+     */
+    public String chatOf(ConsumerRecord<String, Message> record) {
+        Message message = record.value();
+        if (message == null || message.getChatId() == null || record.headers().lastHeader(MIGRATED_HEADER) != null) {
+            return null;
+        }
+        if (record.topic().equals(message.getChatId())) {
+            return message.getChatId();
+        }
+        if (record.topic().startsWith(topicPrefix + "-") && message.getChatId().equals(record.key())) {
+            return message.getChatId();
+        }
+        return null;
+    }
+
+    private ChatRoute load(String chat) {
+        Topic topic = topicRepository.findByStompDestination(chat);
+        return topic == null || topic.getKafkaTopic() == null ? new ChatRoute(chat, null) : ChatRoute.parse(topic.getKafkaTopic());
+    }
+
+}
@@ -0,0 +1,262 @@
+package com.giggle.team.services;
+
+import com.giggle.team.listener.ChatFanoutHub;
+import com.giggle.team.models.Message;
+import com.giggle.team.models.RouteDrain;
+import com.giggle.team.models.Topic;
+import com.giggle.team.models.UserEntity;
+import com.giggle.team.utils.ChatRoute;
+import com.giggle.team.utils.NodeIdentity;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Moving chats having their own topic to a partition of the multiplexed topics, enabled on one node with chat.multiplex.migrate
+ * Only chats without messages for chat.multiplex.migrate-idle are moved, up to chat.multiplex.migrate-batch per run:
+ * their records are copied to the new partition with the migrated header, so history, search and unread counters
+ * do not take them again, then read offsets are translated to the copies, the route is switched
+ * and the other nodes are told to move their sessions of the chat through the user events topic
+ * Records sent to the old topic after the copy, by this node before the switch or by nodes still holding the old route,
+ * are copied by the following runs until the route caches of all nodes have expired, see {@link RouteDrain}
+ */
+@Service
+@ConditionalOnProperty(name = "chat.multiplex.migrate", havingValue = "true")
+public class ChatTopicMigration {
+
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatTopicMigration.class);
+    private static final int TAIL_ROUNDS = 3;
+
+    private final MongoTemplate mongoTemplate;
+    private final ConsumerFactory<String, Message> consumerFactory;
+    private final KafkaProducer kafkaProducer;
+    private final ChatRouting chatRouting;
+    private final ReadOffsetService readOffsetService;
+    private final ChatFanoutHub chatFanoutHub;
+    private final NodeIdentity nodeIdentity;
+    private final UserEventPublisher userEventPublisher;
+    private final long idle;
+    private final int batch;
+    private final long routeExpiry;
+
+    public ChatTopicMigration(MongoTemplate mongoTemplate, ConsumerFactory<String, Message> consumerFactory,
+                              KafkaProducer kafkaProducer, ChatRouting chatRouting, ReadOffsetService readOffsetService,
+                              ChatFanoutHub chatFanoutHub, NodeIdentity nodeIdentity,
+                              UserEventPublisher userEventPublisher,
+                              @Value("${chat.multiplex.migrate-idle:600000}") long idle,
+                              @Value("${chat.multiplex.migrate-batch:10}") int batch,
+                              @Value("${chat.route-cache.expire-after-write:600000}") long routeExpiry) {
+        this.mongoTemplate = mongoTemplate;
+        this.consumerFactory = consumerFactory;
+        this.kafkaProducer = kafkaProducer;
+        this.chatRouting = chatRouting;
+        this.readOffsetService = readOffsetService;
+        this.chatFanoutHub = chatFanoutHub;
+        this.nodeIdentity = nodeIdentity;
+        this.userEventPublisher = userEventPublisher;
+        this.idle = idle;
+        this.batch = batch;
+        this.routeExpiry = routeExpiry;
+    }
+
+    @Scheduled(fixedDelayString = "${chat.multiplex.migrate-interval:60000}")
+    public void migrate() {
+        if (!chatRouting.isMultiplexed()) {
+            return;
+        }
+        for (RouteDrain drain : mongoTemplate.findAll(RouteDrain.class)) {
+            try {
+                drain(drain);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | RuntimeException e) {
+                logger.error("Draining topic " + drain.getFrom() + " of chat " + drain.getId() + " failed", e);
+            }
+        }
+        List<Topic> topics = mongoTemplate.find(Query.query(Criteria.where("kafkaTopic").exists(true).not().regex(":"))
+                .limit(batch), Topic.class);
+        int moved = 0;
+        for (Topic topic : topics) {
+            try {
+                if (move(topic)) {
+                    moved++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | RuntimeException e) {
+                logger.error("Moving chat " + topic.getStompDestination() + " from topic " + topic.getKafkaTopic() + " failed", e);
+            }
+        }
+        if (moved > 0) {
+            logger.info("Moved " + moved + " chats to multiplexed topics");
+        }
+    }
+
+    private boolean move(Topic topic) throws ExecutionException, InterruptedException {
+        String chat = topic.getStompDestination();
+        ChatRoute route = chatRouting.newRoute(chat);
+        TopicPartition target = new TopicPartition(route.getTopic(), route.getPartition());
+        Map<TopicPartition, NavigableMap<Long, Long>> copies = new HashMap<>();
+        RouteDrain drain = new RouteDrain();
+        drain.setId(chat);
+        drain.setFrom(topic.getKafkaTopic());
+        drain.setTo(route.toString());
+        try (Consumer<String, Message> consumer = consumerFactory.createConsumer(nodeIdentity.getId() + "-migration", null)) {
+            List<PartitionInfo> partitionInfos = consumer.partitionsFor(topic.getKafkaTopic());
+            List<TopicPartition> partitions = partitionInfos == null ? new ArrayList<>() : partitionInfos.stream()
+                    .map(info -> new TopicPartition(info.topic(), info.partition()))
+                    .collect(Collectors.toList());
+            if (!partitions.isEmpty()) {
+                consumer.assign(partitions);
+                Map<TopicPartition, Long> since = partitions.stream()
+                        .collect(Collectors.toMap(partition -> partition, partition -> System.currentTimeMillis() - idle));
+                Map<TopicPartition, OffsetAndTimestamp> recent = consumer.offsetsForTimes(since);
+                if (recent.values().stream().anyMatch(Objects::nonNull)) {
+                    return false;
+                }
+                consumer.seekToBeginning(partitions);
+                for (int round = 0; round < TAIL_ROUNDS && copy(consumer, partitions, chat, route, copies); round++) {
+                    logger.debug("Copied records of chat " + chat + ", checking for newer ones");
+                }
+                partitions.forEach(partition -> drain.getPositions().put(String.valueOf(partition.partition()),
+                        consumer.position(partition)));
+            }
+            long end = consumer.endOffsets(List.of(target)).get(target);
+            drain.setUntil(new Date(System.currentTimeMillis() + routeExpiry));
+            mongoTemplate.save(drain);
+            if (mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(topic.getId()).and("kafkaTopic").is(topic.getKafkaTopic())),
+                    Update.update("kafkaTopic", route.toString()), Topic.class).getModifiedCount() == 0) {
+                mongoTemplate.remove(drain);
+                return false;
+            }
+            for (UserEntity user : topic.getUsers()) {
+                Map<Integer, Long> read = readOffsetService.find(user.getEmail(), chat, topic.getKafkaTopic());
+                if (!read.isEmpty()) {
+                    readOffsetService.replace(user.getEmail(), chat, target, translate(read, copies, end));
+                }
+            }
+        }
+        chatRouting.evict(chat);
+        chatFanoutHub.reroute(chat, route);
+        userEventPublisher.routeChanged(chat, route.toString());
+        logger.info("Chat " + chat + " moved from topic " + topic.getKafkaTopic() + " to " + route);
+        return true;
+    }
+
+    /**
+     * Copying records sent to the old topic of a moved chat since the previous run, the drain is dropped after the first run
+     * past its end, or when the chat has been moved again or removed
+     */
+    private void drain(RouteDrain drain) throws ExecutionException, InterruptedException {
+        Topic topic = mongoTemplate.findOne(Query.query(Criteria.where("stompDestination").is(drain.getId())), Topic.class);
+        if (topic == null || !drain.getTo().equals(topic.getKafkaTopic())) {
+            mongoTemplate.remove(drain);
+            return;
+        }
+        boolean last = drain.getUntil().before(new Date());
+        try (Consumer<String, Message> consumer = consumerFactory.createConsumer(nodeIdentity.getId() + "-migration", null)) {
+            List<PartitionInfo> partitionInfos = consumer.partitionsFor(drain.getFrom());
+            List<TopicPartition> partitions = partitionInfos == null ? new ArrayList<>() : partitionInfos.stream()
+                    .map(info -> new TopicPartition(info.topic(), info.partition()))
+                    .collect(Collectors.toList());
+            if (!partitions.isEmpty()) {
+                consumer.assign(partitions);
+                for (TopicPartition partition : partitions) {
+                    Long position = drain.getPositions().get(String.valueOf(partition.partition()));
+                    if (position == null) {
+                        consumer.seekToBeginning(List.of(partition));
+                    } else {
+                        consumer.seek(partition, position);
+                    }
+                }
+                if (copy(consumer, partitions, drain.getId(), ChatRoute.parse(drain.getTo()), new HashMap<>())) {
+                    logger.info("Copied records sent to the old topic " + drain.getFrom() + " of chat " + drain.getId());
+                }
+                partitions.forEach(partition -> drain.getPositions().put(String.valueOf(partition.partition()),
+                        consumer.position(partition)));
+            }
+        }
+        if (last) {
+            mongoTemplate.remove(drain);
+        } else {
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(drain.getId())),
+                    Update.update("positions", drain.getPositions()), RouteDrain.class);
+        }
+    }
+
+    /**
+     * Copying records of the chat up to the current end of its topic, waiting for all of them to be acknowledged
+     *
+     * @return false when there was nothing to copy
+     */
+    private boolean copy(Consumer<String, Message> consumer, List<TopicPartition> partitions, String chat, ChatRoute route,
+                         Map<TopicPartition, NavigableMap<Long, Long>> copies) throws ExecutionException, InterruptedException {
+        Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+        Map<ConsumerRecord<String, Message>, ListenableFuture<SendResult<String, Message>>> sent = new HashMap<>();
+        while (partitions.stream().anyMatch(partition -> consumer.position(partition) < endOffsets.get(partition))) {
+            for (ConsumerRecord<String, Message> record : consumer.poll(Duration.ofMillis(500))) {
+                if (record.value() != null && chat.equals(record.value().getChatId())) {
+                    RecordHeaders headers = new RecordHeaders();
+                    headers.add(ChatRouting.MIGRATED_HEADER, record.topic().getBytes(StandardCharsets.UTF_8));
+                    sent.put(record, kafkaProducer.send(new ProducerRecord<>(route.getTopic(), route.getPartition(),
+                            record.timestamp(), chat, record.value(), headers)));
+                }
+            }
+        }
+        for (Map.Entry<ConsumerRecord<String, Message>, ListenableFuture<SendResult<String, Message>>> copy : sent.entrySet()) {
+            ConsumerRecord<String, Message> record = copy.getKey();
+            copies.computeIfAbsent(new TopicPartition(record.topic(), record.partition()), partition -> new TreeMap<>())
+                    .put(record.offset(), copy.getValue().get().getRecordMetadata().offset());
+        }
+        return !sent.isEmpty();
+    }
+
+    /**
+     * Offset of the copy of the first record not read yet, the earliest one over all old partitions
+     */
+    private static long translate(Map<Integer, Long> read, Map<TopicPartition, NavigableMap<Long, Long>> copies, long end) {
+        long translated = end;
+        for (Map.Entry<TopicPartition, NavigableMap<Long, Long>> partition : copies.entrySet()) {
+            Long offset = read.get(partition.getKey().partition());
+            Map.Entry<Long, Long> firstUnread = partition.getValue().ceilingEntry(offset == null ? 0 : offset);
+            if (firstUnread != null) {
+                translated = Math.min(translated, firstUnread.getValue());
+            }
+        }
+        return translated;
+    }
+
+}
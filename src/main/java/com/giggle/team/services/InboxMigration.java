@@ -0,0 +1,47 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Topic;
+import com.giggle.team.repositories.InboxRepository;
+import com.giggle.team.repositories.TopicRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * Filling the chat lists of the users from the existing chats, when there are none yet
+ * Upserts are idempotent, so nodes starting together do not conflict
+ */
+@Service
+public class InboxMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(InboxMigration.class);
+
+    private final InboxRepository inboxRepository;
+    private final TopicRepository topicRepository;
+    private final InboxService inboxService;
+
+    public InboxMigration(InboxRepository inboxRepository, TopicRepository topicRepository, InboxService inboxService) {
+        this.inboxRepository = inboxRepository;
+        this.topicRepository = topicRepository;
+        this.inboxService = inboxService;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        if (inboxRepository.count() > 0) {
+            return;
+        }
+        List<Topic> topics = topicRepository.findAll();
+        for (Topic topic : topics) {
+            inboxService.saved(topic, topic.getUsers());
+        }
+        if (!topics.isEmpty()) {
+            logger.info("Chat lists filled from " + topics.size() + " chats");
+        }
+    }
+
+}
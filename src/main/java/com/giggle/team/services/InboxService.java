@@ -0,0 +1,114 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.ChatActivity;
+import com.giggle.team.models.InboxEntry;
+import com.giggle.team.models.Message;
+import com.giggle.team.models.Topic;
+import com.giggle.team.models.UserEntity;
+import com.giggle.team.repositories.InboxRepository;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Chat lists of the users, see {@link InboxEntry}
+ * A chat list is read with one query over the user index, joined with the {@link ChatActivity} of its chats by one more
+ * query and ordered by it in memory, so a message costs one write per chat instead of one per member
+ */
+@Service
+public class InboxService {
+
+    private final InboxRepository inboxRepository;
+    private final MongoTemplate mongoTemplate;
+    private final ChatRouting chatRouting;
+
+    public InboxService(InboxRepository inboxRepository, MongoTemplate mongoTemplate, ChatRouting chatRouting) {
+        this.inboxRepository = inboxRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.chatRouting = chatRouting;
+    }
+
+    /**
+     * @return chat id -> usernames of the members, most recently active chat first
+     */
+    public Map<String, List<String>> find(String user) {
+        List<InboxEntry> entries = inboxRepository.findByUser(user);
+        Map<String, Date> activity = new HashMap<>();
+        mongoTemplate.find(Query.query(Criteria.where("_id").in(entries.stream().map(InboxEntry::getChat)
+                .collect(Collectors.toList()))), ChatActivity.class)
+                .forEach(chat -> activity.put(chat.getId(), chat.getLastActivity()));
+        entries.sort(Comparator.comparing((InboxEntry entry) -> activity.get(entry.getChat()),
+                Comparator.nullsLast(Comparator.reverseOrder())));
+        Map<String, List<String>> chats = new LinkedHashMap<>();
+        for (InboxEntry entry : entries) {
+            chats.put(entry.getChat(), entry.getMembers());
+        }
+        return chats;
+    }
+
+    /**
+     * Adding the chat to the lists of the given users and updating its members in them, one upsert per user
+     * Every member has to be given when the members have changed
+     * A new chat is active from now on
+     */
+    public void saved(Topic topic, Collection<UserEntity> users) {
+        if (users.isEmpty()) {
+            return;
+        }
+        String chat = topic.getStompDestination();
+        List<String> members = "main".equals(chat) ? Collections.emptyList()
+                : topic.getUsers().stream().map(UserEntity::getUsername).collect(Collectors.toList());
+        Date now = new Date();
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, InboxEntry.class);
+        for (UserEntity user : users) {
+            operations.upsert(Query.query(Criteria.where("_id").is(InboxEntry.idOf(user.getEmail(), chat))), new Update()
+                    .setOnInsert("user", user.getEmail())
+                    .setOnInsert("chat", chat)
+                    .set("members", members));
+        }
+        operations.execute();
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(chat)), new Update().setOnInsert("lastActivity", now),
+                ChatActivity.class);
+    }
+
+    public void removed(Topic topic) {
+        inboxRepository.deleteByChat(topic.getStompDestination());
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(topic.getStompDestination())), ChatActivity.class);
+    }
+
+    /**
+     * Moving the last activity of chats forward to their newest records, one update per chat
+     * Records whose message does not belong to the chat of the topic are skipped
+     */
+    public void touched(List<ConsumerRecord<String, Message>> records) {
+        Map<String, Long> newest = new HashMap<>();
+        for (ConsumerRecord<String, Message> record : records) {
+            String chat = chatRouting.chatOf(record);
+            if (chat != null) {
+                newest.merge(chat, record.timestamp(), Math::max);
+            }
+        }
+        if (newest.isEmpty()) {
+            return;
+        }
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ChatActivity.class);
+        newest.forEach((chat, time) -> operations.upsert(Query.query(Criteria.where("_id").is(chat)),
+                new Update().max("lastActivity", new Date(time))));
+        operations.execute();
+    }
+
+}
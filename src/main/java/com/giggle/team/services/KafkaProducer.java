@@ -1,25 +1,83 @@
 package com.giggle.team.services;
 
+import com.giggle.team.models.Message;
+import com.giggle.team.utils.ChatRoute;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.kafka.clients.producer.ProducerRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous sending to kafka, batching, linger, compression and idempotence are set in spring.kafka.producer
+ * Producer client metrics (batch size, record rates) are bound to the meter registry by spring boot
+ */
 @Service
 public class KafkaProducer {
 
     private static final Logger logger = LoggerFactory.getLogger(KafkaProducer.class);
 
-    private final KafkaTemplate<String, String> kafkaTemplate;
+    private final KafkaTemplate<String, Message> kafkaTemplate;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Timer ackTimer;
+    private final Timer errorTimer;
 
-    public KafkaProducer(KafkaTemplate<String, String> kafkaTemplate) {
+    public KafkaProducer(KafkaTemplate<String, Message> kafkaTemplate, MeterRegistry meterRegistry) {
         this.kafkaTemplate = kafkaTemplate;
+        Gauge.builder("kafka.send.in.flight", inFlight, AtomicInteger::get)
+                .description("Messages sent to kafka and not acknowledged yet")
+                .register(meterRegistry);
+        this.ackTimer = ackTimer(meterRegistry, "ack");
+        this.errorTimer = ackTimer(meterRegistry, "error");
+    }
+
+    /**
+     * Returns immediately, the future completes when the broker acknowledges the record
+     */
+    public ListenableFuture<SendResult<String, Message>> send(String topic, Message data) {
+        return send(new ProducerRecord<>(topic, data));
+    }
+
+    /**
+     * Sending to the route of a chat, records of multiplexed chats are keyed by the chat id
+     */
+    public ListenableFuture<SendResult<String, Message>> send(ChatRoute route, Message data) {
+        return send(route.isMultiplexed()
+                ? new ProducerRecord<>(route.getTopic(), route.getPartition(), data.getChatId(), data)
+                : new ProducerRecord<>(route.getTopic(), data));
+    }
+
+    public ListenableFuture<SendResult<String, Message>> send(ProducerRecord<String, Message> record) {
+        String topic = record.topic();
+        logger.debug("KafkaProducer.send:: Topic : {}", topic);
+        long start = System.nanoTime();
+        inFlight.incrementAndGet();
+        ListenableFuture<SendResult<String, Message>> future = kafkaTemplate.send(record);
+        future.addCallback(result -> {
+            inFlight.decrementAndGet();
+            ackTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }, failure -> {
+            inFlight.decrementAndGet();
+            errorTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            logger.error("KafkaProducer.send:: Topic : {} failed", topic, failure);
+        });
+        return future;
     }
 
-    public void send(String topic, String data) {
-        logger.info("KafkaProducer.send:: Topic : {} Data: {}", topic, data);
-        kafkaTemplate.send(topic, data);
+    private static Timer ackTimer(MeterRegistry meterRegistry, String result) {
+        return Timer.builder("kafka.send.ack")
+                .description("Time from sending a record to kafka to its acknowledgement")
+                .tag("result", result)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
     }
 
-}
\ No newline at end of file
+}
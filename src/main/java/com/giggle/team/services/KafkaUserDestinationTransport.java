@@ -0,0 +1,43 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Message;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Every node reads its own inbox topic chat.routing.inbox-topic-prefix-nodeId
+ * Record key is the receiving user, the STOMP destination is carried in the destination header
+ */
+@Service
+@ConditionalOnExpression("${chat.routing.enabled:false} and '${chat.routing.transport:kafka}' == 'kafka'")
+public class KafkaUserDestinationTransport implements UserDestinationTransport {
+
+    public static final String DESTINATION_HEADER = "destination";
+
+    private static final Logger logger = LoggerFactory.getLogger(KafkaUserDestinationTransport.class);
+
+    private final KafkaTemplate<String, Message> kafkaTemplate;
+    private final String inboxTopicPrefix;
+
+    public KafkaUserDestinationTransport(KafkaTemplate<String, Message> kafkaTemplate,
+                                         @Value("${chat.routing.inbox-topic-prefix:node-inbox}") String inboxTopicPrefix) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.inboxTopicPrefix = inboxTopicPrefix;
+    }
+
+    @Override
+    public void send(String node, String user, String destination, Message payload) {
+        ProducerRecord<String, Message> record = new ProducerRecord<>(inboxTopicPrefix + "-" + node, user, payload);
+        record.headers().add(DESTINATION_HEADER, destination.getBytes(StandardCharsets.UTF_8));
+        kafkaTemplate.send(record).addCallback(result -> {
+        }, failure -> logger.error("Forwarding " + destination + " to node " + node + " failed", failure));
+    }
+
+}
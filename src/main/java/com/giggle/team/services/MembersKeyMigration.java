@@ -0,0 +1,47 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Topic;
+import com.giggle.team.repositories.TopicRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * Filling membersKey of chats created before it existed
+ * Chats having the same members as an already keyed chat are left without key and reported
+ */
+@Service
+public class MembersKeyMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(MembersKeyMigration.class);
+
+    private final TopicRepository topicRepository;
+
+    public MembersKeyMigration(TopicRepository topicRepository) {
+        this.topicRepository = topicRepository;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        List<Topic> topics = topicRepository.findByMembersKeyIsNullAndStompDestinationNot("main");
+        int migrated = 0;
+        for (Topic topic : topics) {
+            topic.updateMembersKey();
+            try {
+                topicRepository.save(topic);
+                migrated++;
+            } catch (DuplicateKeyException e) {
+                logger.warn("Chat " + topic.getStompDestination() + " duplicates members of another chat, members key not set");
+            }
+        }
+        if (!topics.isEmpty()) {
+            logger.info("Members key set for " + migrated + " of " + topics.size() + " chats");
+        }
+    }
+
+}
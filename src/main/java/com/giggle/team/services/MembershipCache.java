@@ -0,0 +1,68 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Topic;
+import com.giggle.team.models.UserEntity;
+import com.giggle.team.repositories.TopicRepository;
+import com.giggle.team.repositories.UserRepository;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory index user email -> STOMP destinations of the user's chats
+ * Entries are loaded from mongo on first access and must be invalidated whenever chat membership changes
+ */
+@Service
+public class MembershipCache {
+
+    private final UserRepository userRepository;
+    private final TopicRepository topicRepository;
+    private final LoadingCache<String, Set<String>> cache;
+
+    public MembershipCache(UserRepository userRepository, TopicRepository topicRepository, MeterRegistry meterRegistry,
+                           @Value("${chat.membership-cache.maximum-size:100000}") long maximumSize,
+                           @Value("${chat.membership-cache.expire-after-write:600000}") long expireAfterWrite) {
+        this.userRepository = userRepository;
+        this.topicRepository = topicRepository;
+        this.cache = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofMillis(expireAfterWrite))
+                .recordStats()
+                .build(this::load), "membership");
+    }
+
+    /**
+     * @return destinations of the user's chats or null if there is no such user
+     */
+    public Set<String> getDestinations(String email) {
+        return cache.get(email);
+    }
+
+    public void invalidate(String email) {
+        cache.invalidate(email);
+    }
+
+    public void invalidateAll(Collection<String> emails) {
+        cache.invalidateAll(emails);
+    }
+
+    private Set<String> load(String email) {
+        UserEntity user = userRepository.findByEmail(email);
+        if (user == null) {
+            return null;
+        }
+        return Collections.unmodifiableSet(topicRepository.findAllById(user.getTopics()).stream()
+                .map(Topic::getStompDestination)
+                .collect(Collectors.toSet()));
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.HistoryPage;
+import com.giggle.team.models.HistorySequence;
+import com.giggle.team.models.Message;
+import com.giggle.team.models.MessageBucket;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Chat history kept in mongo buckets, see {@link MessageBucket}
+ * Pages are read with one cursor over the (chatId, seq) index, newest bucket first,
+ * it stops as soon as the page is full, so a page reads about limit / bucket-size buckets
+ */
+@Service
+public class MessageHistoryService {
+
+    private final MongoTemplate mongoTemplate;
+    private final ChatRouting chatRouting;
+    private final int bucketSize;
+    private final long bucketSpan;
+    private final int maxPage;
+
+    public MessageHistoryService(MongoTemplate mongoTemplate, ChatRouting chatRouting,
+                                 @Value("${chat.history.bucket-size:100}") int bucketSize,
+                                 @Value("${chat.history.bucket-span:86400000}") long bucketSpan,
+                                 @Value("${chat.history.max-page:200}") int maxPage) {
+        this.mongoTemplate = mongoTemplate;
+        this.chatRouting = chatRouting;
+        this.bucketSize = bucketSize;
+        this.bucketSpan = bucketSpan;
+        this.maxPage = maxPage;
+    }
+
+    /**
+     * Adding records of chat topics to their buckets, one upsert per bucket
+     * Records whose message does not belong to the chat of the topic are skipped, see {@link ChatRouting#chatOf}
+     * Records are numbered per chat, so a chat sharing a multiplexed partition with others still fills its buckets
+     * The sequence of a chat moves on only after its buckets are written, a redelivery after a failure gets the same numbers
+     */
+    public void store(List<ConsumerRecord<String, Message>> records) {
+        Map<String, List<ConsumerRecord<String, Message>>> byChat = new LinkedHashMap<>();
+        for (ConsumerRecord<String, Message> record : records) {
+            String chat = chatRouting.chatOf(record);
+            if (chat != null) {
+                byChat.computeIfAbsent(chat, key -> new ArrayList<>()).add(record);
+            }
+        }
+        if (byChat.isEmpty()) {
+            return;
+        }
+        Map<String, HistorySequence> sequences = mongoTemplate.find(Query.query(Criteria.where("_id").in(byChat.keySet())),
+                HistorySequence.class).stream().collect(Collectors.toMap(HistorySequence::getId, Function.identity()));
+        byChat.forEach((chat, chatRecords) -> {
+            HistorySequence sequence = sequences.getOrDefault(chat, new HistorySequence(chat));
+            while (!store(sequence, chatRecords)) {
+                HistorySequence current = mongoTemplate.findById(chat, HistorySequence.class);
+                sequence = current == null ? new HistorySequence(chat) : current;
+            }
+        });
+    }
+
+    /**
+     * Numbering the records of one chat after the sequence, writing them and moving the sequence on
+     *
+     * @return false when the sequence was moved on by another writer meanwhile, e.g. during a rebalance
+     */
+    private boolean store(HistorySequence sequence, List<ConsumerRecord<String, Message>> records) {
+        Map<String, Long> positions = new HashMap<>(sequence.getPositions());
+        long next = sequence.getValue();
+        long bucket = sequence.getBucket();
+        long bucketStart = sequence.getBucketStart();
+        int bucketCount = sequence.getBucketCount();
+        Map<Long, List<MessageBucket.Entry>> buckets = new LinkedHashMap<>();
+        Map<Long, Long> starts = new HashMap<>();
+        for (ConsumerRecord<String, Message> record : records) {
+            String position = HistorySequence.positionOf(record.topic(), record.partition());
+            if (record.offset() < positions.getOrDefault(position, 0L)) {
+                continue;
+            }
+            positions.put(position, record.offset() + 1);
+            next++;
+            long window = windowOf(record.timestamp());
+            if (bucket < 0 || window != bucketStart || bucketCount >= bucketSize) {
+                bucket++;
+                bucketStart = window;
+                bucketCount = 0;
+                starts.put(bucket, window);
+            }
+            bucketCount++;
+            Message message = record.value();
+            // a plain copy, the codec's lazily decoded message is not a type mongo can read back
+            Message copy = new Message(message.getChatId(), message.getType(), message.getContent(), message.getSender(),
+                    message.getSenderName(), message.getMessageId());
+            buckets.computeIfAbsent(bucket, key -> new ArrayList<>())
+                    .add(new MessageBucket.Entry(record.timestamp(), record.partition(), record.offset(), copy));
+        }
+        if (buckets.isEmpty()) {
+            return true;
+        }
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MessageBucket.class);
+        long firstStart = sequence.getBucketStart();
+        buckets.forEach((seq, entries) -> operations.upsert(
+                Query.query(Criteria.where("_id").is(MessageBucket.idOf(sequence.getId(), seq))), new Update()
+                        .setOnInsert("chatId", sequence.getId())
+                        .setOnInsert("seq", seq)
+                        .setOnInsert("bucketStart", new Date(starts.getOrDefault(seq, firstStart)))
+                        .addToSet("messages").each(entries.toArray())));
+        operations.execute();
+        // the upsert inserts a new sequence, or fails on its id when the sequence no longer has the value it was read with
+        try {
+            mongoTemplate.upsert(Query.query(Criteria.where("_id").is(sequence.getId()).and("value").is(sequence.getValue())),
+                    new Update().set("value", next).set("positions", positions)
+                            .set("bucket", bucket).set("bucketStart", bucketStart).set("bucketCount", bucketCount),
+                    HistorySequence.class);
+            return true;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Buckets are read by seq, newest first, entries of a bucket by time
+     * A cursor of {@link MessageBucket.Entry#getCursor()} starts in its own bucket, epoch millis start in the newest
+     * bucket whose time window starts before them and skip younger messages
+     *
+     * @param before cursor of {@link MessageBucket.Entry#getCursor()} or epoch millis, null for the newest messages
+     * @param limit  page size, capped by chat.history.max-page
+     */
+    public HistoryPage page(String chatId, String before, int limit) {
+        MessageBucket.Entry cursor = before == null ? null : MessageBucket.Entry.ofCursor(before);
+        limit = Math.max(1, Math.min(limit, maxPage));
+        Criteria criteria = Criteria.where("chatId").is(chatId);
+        if (cursor != null && cursor.getSeq() >= 0) {
+            criteria = criteria.and("seq").lte(cursor.getSeq());
+        } else if (cursor != null) {
+            criteria = criteria.and("bucketStart").lte(new Date(cursor.getTime()));
+        }
+        Query query = Query.query(criteria)
+                .with(Sort.by(Sort.Direction.DESC, "seq"))
+                .cursorBatchSize(limit / bucketSize + 2);
+        List<MessageBucket.Entry> newest = new ArrayList<>();
+        try (CloseableIterator<MessageBucket> buckets = mongoTemplate.stream(query, MessageBucket.class)) {
+            while (buckets.hasNext() && newest.size() <= limit) {
+                MessageBucket bucket = buckets.next();
+                List<MessageBucket.Entry> entries = new ArrayList<>(bucket.getMessages());
+                entries.sort(MessageBucket.Entry.ORDER.reversed());
+                for (MessageBucket.Entry entry : entries) {
+                    entry.setSeq(bucket.getSeq());
+                    if (cursor == null || cursor.getSeq() < 0 && entry.getTime() < cursor.getTime()
+                            || bucket.getSeq() < cursor.getSeq()
+                            || bucket.getSeq() == cursor.getSeq() && MessageBucket.Entry.ORDER.compare(entry, cursor) < 0) {
+                        newest.add(entry);
+                    }
+                }
+            }
+        }
+        boolean more = newest.size() > limit;
+        List<MessageBucket.Entry> page = new ArrayList<>(newest.subList(0, Math.min(limit, newest.size())));
+        Collections.reverse(page);
+        return new HistoryPage(page, more ? page.get(0).getCursor() : null);
+    }
+
+    private long windowOf(long time) {
+        return time - Math.floorMod(time, bucketSpan);
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.giggle.team.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters of the chat message path:
+ * chat.message.send - STOMP receive to kafka acknowledgement, tagged result=ack|error
+ * chat.message.dispatch - kafka record to the last convertAndSendToUser of its subscribers
+ * chat.message.lag - kafka record timestamp to dispatch, the delivery lag to alert on
+ * chat.message.deliveries - messages handed to sessions
+ * chat.messages - records per chat, only chat.metrics.max-chats chats get their own tag, the rest are counted as chat=other
+ */
+@Service
+public class MessageMetrics {
+
+    private static final String OTHER = "other";
+
+    private final MeterRegistry meterRegistry;
+    private final int maxChats;
+    private final Timer sendAck;
+    private final Timer sendError;
+    private final Timer dispatch;
+    private final Timer lag;
+    private final Counter deliveries;
+    private final Counter otherChats;
+    private final Map<String, Counter> chatCounters = new ConcurrentHashMap<>();
+    private final AtomicInteger taggedChats = new AtomicInteger();
+
+    public MessageMetrics(MeterRegistry meterRegistry, @Value("${chat.metrics.max-chats:100}") int maxChats) {
+        this.meterRegistry = meterRegistry;
+        this.maxChats = maxChats;
+        this.sendAck = sendTimer("ack");
+        this.sendError = sendTimer("error");
+        this.dispatch = Timer.builder("chat.message.dispatch")
+                .description("Time from receiving a kafka record to handing it to all subscribed sessions")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.lag = Timer.builder("chat.message.lag")
+                .description("Time from producing a kafka record to handing it to the subscribed sessions")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.deliveries = Counter.builder("chat.message.deliveries")
+                .description("Messages handed to websocket sessions")
+                .register(meterRegistry);
+        this.otherChats = chatCounter(OTHER);
+    }
+
+    public void sent(long receivedNanos, boolean acknowledged) {
+        (acknowledged ? sendAck : sendError).record(System.nanoTime() - receivedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void dispatched(long receivedNanos, long recordTimestamp, int sessions) {
+        dispatch.record(System.nanoTime() - receivedNanos, TimeUnit.NANOSECONDS);
+        if (recordTimestamp > 0) {
+            lag.record(Math.max(0, System.currentTimeMillis() - recordTimestamp), TimeUnit.MILLISECONDS);
+        }
+        deliveries.increment(sessions);
+    }
+
+    /**
+     * Counter of records of the chat, shared chat=other counter once max-chats chats have their own
+     * Must be released when the chat is no longer consumed on this node
+     * A tag is reserved on taggedChats before its counter is registered, so concurrent chats never get more than max-chats tags
+     */
+    public Counter chatMessages(String chat) {
+        Counter counter = chatCounters.get(chat);
+        if (counter != null) {
+            return counter;
+        }
+        counter = chatCounters.compute(chat, (key, existing) -> {
+            if (existing != null) {
+                return existing;
+            }
+            if (taggedChats.incrementAndGet() > maxChats) {
+                taggedChats.decrementAndGet();
+                return null;
+            }
+            return chatCounter(key);
+        });
+        return counter == null ? otherChats : counter;
+    }
+
+    public void releaseChat(String chat) {
+        Counter counter = chatCounters.remove(chat);
+        if (counter != null) {
+            taggedChats.decrementAndGet();
+            meterRegistry.remove(counter);
+        }
+    }
+
+    private Counter chatCounter(String chat) {
+        return Counter.builder("chat.messages")
+                .description("Chat messages received from kafka on this node")
+                .tag("chat", chat)
+                .register(meterRegistry);
+    }
+
+    private Timer sendTimer(String result) {
+        return Timer.builder("chat.message.send")
+                .description("Time from receiving a STOMP message to its kafka acknowledgement")
+                .tag("result", result)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.NodeHeartbeat;
+import com.giggle.team.models.UserNodes;
+import com.giggle.team.utils.NodeIdentity;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import javax.annotation.PreDestroy;
+import java.security.Principal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Shared user -> nodes registry of the multi-node mode
+ * A node adds itself to the user's entry with the user's first local session and removes itself with the last one,
+ * mongo writes are queued on one thread, so they are applied in the order of the session events
+ * Nodes heartbeat every chat.routing.heartbeat-interval, entries of nodes silent for chat.routing.node-timeout are ignored and cleaned up
+ * Nodes of a user are cached for chat.routing.user-nodes-cache.expire-after-write, a session opened on another node
+ * gets user destination messages sent from this one at the latest after that
+ */
+@Service
+@ConditionalOnProperty(name = "chat.routing.enabled", havingValue = "true")
+public class NodeSessionRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodeSessionRegistry.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final String nodeId;
+    private final long nodeTimeout;
+    private final Map<String, Set<String>> localSessions = new ConcurrentHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final LoadingCache<String, Set<String>> userNodes;
+    private volatile Set<String> liveNodes = Collections.emptySet();
+
+    public NodeSessionRegistry(MongoTemplate mongoTemplate, NodeIdentity nodeIdentity, MeterRegistry meterRegistry,
+                               @Value("${chat.routing.node-timeout:30000}") long nodeTimeout,
+                               @Value("${chat.routing.user-nodes-cache.maximum-size:100000}") long maximumSize,
+                               @Value("${chat.routing.user-nodes-cache.expire-after-write:1000}") long expireAfterWrite) {
+        this.mongoTemplate = mongoTemplate;
+        this.nodeId = nodeIdentity.getId();
+        this.nodeTimeout = nodeTimeout;
+        this.userNodes = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofMillis(expireAfterWrite))
+                .recordStats()
+                .build(this::loadNodes), "userNodes");
+        heartbeat();
+    }
+
+    @EventListener
+    public void connected(SessionConnectedEvent event) {
+        Principal user = event.getUser();
+        String sessionId = (String) event.getMessage().getHeaders().get("simpSessionId");
+        if (user == null || sessionId == null) {
+            return;
+        }
+        localSessions.compute(user.getName(), (key, sessions) -> {
+            if (sessions == null) {
+                sessions = ConcurrentHashMap.newKeySet();
+                writer.execute(() -> mongoTemplate.upsert(Query.query(Criteria.where("_id").is(key)),
+                        new Update().addToSet("nodes", nodeId), UserNodes.class));
+            }
+            sessions.add(sessionId);
+            return sessions;
+        });
+    }
+
+    /**
+     * Disconnect events may come more than once per session, only the first one counts
+     */
+    @EventListener
+    public void disconnected(SessionDisconnectEvent event) {
+        Principal user = event.getUser();
+        if (user == null) {
+            return;
+        }
+        localSessions.computeIfPresent(user.getName(), (key, sessions) -> {
+            if (sessions.remove(event.getSessionId()) && sessions.isEmpty()) {
+                writer.execute(() -> mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(key)),
+                        new Update().pull("nodes", nodeId), UserNodes.class));
+                return null;
+            }
+            return sessions;
+        });
+    }
+
+    /**
+     * @return live nodes other than this one holding sessions of the user
+     */
+    public Set<String> remoteNodesOf(String user) {
+        Set<String> nodes = userNodes.get(user);
+        if (nodes.isEmpty()) {
+            return nodes;
+        }
+        Set<String> live = liveNodes;
+        return nodes.stream()
+                .filter(node -> !node.equals(nodeId) && live.contains(node))
+                .collect(Collectors.toSet());
+    }
+
+    private Set<String> loadNodes(String user) {
+        UserNodes entry = mongoTemplate.findById(user, UserNodes.class);
+        return entry == null || entry.getNodes() == null ? Collections.emptySet() : Set.copyOf(entry.getNodes());
+    }
+
+    /**
+     * @return live nodes other than this one
+     */
+    public Set<String> remoteNodes() {
+        return liveNodes.stream().filter(node -> !node.equals(nodeId)).collect(Collectors.toSet());
+    }
+
+    @Scheduled(fixedDelayString = "${chat.routing.heartbeat-interval:5000}")
+    public void heartbeat() {
+        Date now = new Date();
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(nodeId)), new Update().set("heartbeat", now),
+                NodeHeartbeat.class);
+        liveNodes = mongoTemplate.find(Query.query(Criteria.where("heartbeat").gte(new Date(now.getTime() - nodeTimeout))),
+                NodeHeartbeat.class).stream()
+                .map(NodeHeartbeat::getId)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Removing nodes without heartbeat from user entries, e.g. after a crash
+     */
+    @Scheduled(fixedDelayString = "${chat.routing.cleanup-interval:60000}")
+    public void cleanup() {
+        List<String> live = new ArrayList<>(liveNodes);
+        long updated = mongoTemplate.updateMulti(new BasicQuery(new Document("nodes", new Document("$elemMatch", new Document("$nin", live)))),
+                new Update().pull("nodes", new Document("$nin", live)), UserNodes.class).getModifiedCount();
+        mongoTemplate.remove(Query.query(Criteria.where("nodes").size(0)), UserNodes.class);
+        mongoTemplate.remove(Query.query(Criteria.where("_id").nin(live)), NodeHeartbeat.class);
+        if (updated > 0) {
+            logger.info("Removed dead nodes from " + updated + " users");
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(5, TimeUnit.SECONDS);
+        mongoTemplate.updateMulti(Query.query(Criteria.where("nodes").is(nodeId)), new Update().pull("nodes", nodeId),
+                UserNodes.class);
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(nodeId)), NodeHeartbeat.class);
+    }
+
+}
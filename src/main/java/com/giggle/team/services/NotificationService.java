@@ -0,0 +1,65 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalescing USERS_UPDATE and CHATS_UPDATE notifications
+ * Events are collected during chat.notifications.window and then sent once:
+ * USERS_UPDATE as a single broadcast to /topic/service, CHATS_UPDATE once per affected user to /queue/service
+ * Both reach sessions on other nodes too when the multi-node mode is enabled
+ */
+@Service
+public class NotificationService {
+
+    public static final String USERS_UPDATE = "USERS_UPDATE";
+    public static final String CHATS_UPDATE = "CHATS_UPDATE";
+
+    private static final Logger logger = LoggerFactory.getLogger(NotificationService.class);
+
+    private final UserMessagingService userMessagingService;
+    private final AtomicBoolean usersUpdated = new AtomicBoolean();
+    private final Set<String> chatsUpdated = ConcurrentHashMap.newKeySet();
+
+    public NotificationService(UserMessagingService userMessagingService) {
+        this.userMessagingService = userMessagingService;
+    }
+
+    public void usersUpdated() {
+        usersUpdated.set(true);
+    }
+
+    public void chatsUpdated(Collection<String> emails) {
+        chatsUpdated.addAll(emails);
+    }
+
+    @Scheduled(fixedDelayString = "${chat.notifications.window:500}")
+    public void flush() {
+        if (usersUpdated.getAndSet(false)) {
+            userMessagingService.broadcast("/topic/service", serviceMessage(USERS_UPDATE));
+        }
+        int notified = 0;
+        for (String email : chatsUpdated) {
+            if (chatsUpdated.remove(email)) {
+                userMessagingService.convertAndSendToUser(email, "/queue/service", serviceMessage(CHATS_UPDATE));
+                notified++;
+            }
+        }
+        if (notified > 0) {
+            logger.debug("Sent " + CHATS_UPDATE + " to " + notified + " users");
+        }
+    }
+
+    private static Message serviceMessage(String content) {
+        return new Message("service", Message.MessageType.SYSTEM, content, "system", "system", "system");
+    }
+
+}
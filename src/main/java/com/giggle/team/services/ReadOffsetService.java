@@ -0,0 +1,176 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.ReadOffset;
+import com.giggle.team.repositories.ReadOffsetRepository;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Keeping the last delivered kafka offset of every (user, chat)
+ * Offsets are collected in memory on delivery and periodically flushed to mongo
+ * They are kept per topic, so flushes of a route the chat was moved away from do not touch the offsets of the new route
+ */
+@Service
+public class ReadOffsetService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadOffsetService.class);
+
+    private final ReadOffsetRepository readOffsetRepository;
+    private final MongoTemplate mongoTemplate;
+    private final Map<String, ReadOffset> pending = new ConcurrentHashMap<>();
+
+    public ReadOffsetService(ReadOffsetRepository readOffsetRepository, MongoTemplate mongoTemplate) {
+        this.readOffsetRepository = readOffsetRepository;
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * @return partition of the topic -> offset of the next message to deliver, empty if the user has never read the chat
+     */
+    public Map<Integer, Long> find(String user, String chat, String topic) {
+        Map<Integer, Long> result = new HashMap<>();
+        String id = ReadOffset.idOf(user, chat);
+        readOffsetRepository.findById(id).ifPresent(offset -> merge(result, offset, topic));
+        ReadOffset notFlushed = pending.get(id);
+        if (notFlushed != null) {
+            synchronized (notFlushed) {
+                merge(result, notFlushed, topic);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Offsets of several chats of the user in the own topics of the chats, in one query
+     *
+     * @return chat -> partition -> offset of the next message to deliver, chats never read are missing
+     */
+    public Map<String, Map<Integer, Long>> find(String user, Collection<String> chats) {
+        Map<String, Map<Integer, Long>> result = new HashMap<>();
+        List<String> ids = chats.stream().map(chat -> ReadOffset.idOf(user, chat)).collect(Collectors.toList());
+        for (ReadOffset offset : mongoTemplate.find(Query.query(Criteria.where("_id").in(ids)), ReadOffset.class)) {
+            merge(result.computeIfAbsent(offset.getChat(), chat -> new HashMap<>()), offset, offset.getChat());
+        }
+        for (String id : ids) {
+            ReadOffset notFlushed = pending.get(id);
+            if (notFlushed != null) {
+                synchronized (notFlushed) {
+                    merge(result.computeIfAbsent(notFlushed.getChat(), chat -> new HashMap<>()), notFlushed, notFlushed.getChat());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remembering that all messages of the partition before nextOffset were delivered to the user
+     */
+    public void delivered(String user, String chat, TopicPartition partition, long nextOffset) {
+        pending.compute(ReadOffset.idOf(user, chat), (id, offset) -> {
+            if (offset == null) {
+                offset = new ReadOffset(user, chat);
+            }
+            synchronized (offset) {
+                offset.getPositions().computeIfAbsent(partition.topic(), topic -> new HashMap<>())
+                        .merge(String.valueOf(partition.partition()), nextOffset, Math::max);
+            }
+            return offset;
+        });
+    }
+
+    /**
+     * Setting the offset of the user's chat in the partition of the route the chat was moved to
+     * Offsets of the old route stay under their topic, where flushes still running on other nodes can only reach them
+     */
+    public void replace(String user, String chat, TopicPartition partition, long nextOffset) {
+        String id = ReadOffset.idOf(user, chat);
+        pending.remove(id);
+        Map<String, Long> offsets = new HashMap<>();
+        offsets.put(String.valueOf(partition.partition()), nextOffset);
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(id)), new Update()
+                .setOnInsert("user", user)
+                .setOnInsert("chat", chat)
+                .set("positions." + partition.topic(), offsets)
+                .unset("offsets"), ReadOffset.class);
+    }
+
+    /**
+     * Offsets only grow, so concurrent flushes from several nodes are merged with $max
+     * An offset stays pending until it is stored, a failed upsert is retried by the next flush
+     */
+    @Scheduled(fixedDelayString = "${chat.offsets.flush-interval:5000}")
+    @PreDestroy
+    public void flush() {
+        int flushed = 0, failed = 0;
+        RuntimeException error = null;
+        for (Map.Entry<String, ReadOffset> entry : pending.entrySet()) {
+            ReadOffset offset = entry.getValue();
+            Map<String, Map<String, Long>> positions = new HashMap<>();
+            Update update = new Update()
+                    .setOnInsert("user", offset.getUser())
+                    .setOnInsert("chat", offset.getChat());
+            synchronized (offset) {
+                offset.getPositions().forEach((topic, offsets) -> offsets.forEach((partition, value) -> {
+                    positions.computeIfAbsent(topic, key -> new HashMap<>()).put(partition, value);
+                    update.max("positions." + topic + "." + partition, value);
+                }));
+            }
+            try {
+                mongoTemplate.upsert(Query.query(Criteria.where("_id").is(entry.getKey())), update, ReadOffset.class);
+            } catch (RuntimeException e) {
+                error = e;
+                failed++;
+                continue;
+            }
+            pending.computeIfPresent(entry.getKey(), (id, current) -> flushed(current, positions));
+            flushed++;
+        }
+        if (flushed > 0) {
+            logger.debug("Flushed read offsets of " + flushed + " user chats");
+        }
+        if (failed > 0) {
+            logger.warn("Read offsets of " + failed + " user chats were not flushed, they stay pending", error);
+        }
+    }
+
+    /**
+     * @return offset without the positions stored by the flush, null if nothing was delivered after them
+     */
+    private static ReadOffset flushed(ReadOffset offset, Map<String, Map<String, Long>> stored) {
+        synchronized (offset) {
+            stored.forEach((topic, offsets) -> {
+                Map<String, Long> current = offset.getPositions().get(topic);
+                if (current != null) {
+                    offsets.forEach((partition, value) -> current.remove(partition, value));
+                    if (current.isEmpty()) {
+                        offset.getPositions().remove(topic);
+                    }
+                }
+            });
+            return offset.getPositions().isEmpty() ? null : offset;
+        }
+    }
+
+    private static void merge(Map<Integer, Long> result, ReadOffset offset, String topic) {
+        offset.getOffsets().forEach((partition, value) -> result.merge(Integer.valueOf(partition), value, Math::max));
+        offset.getPositions().getOrDefault(topic, Collections.emptyMap())
+                .forEach((partition, value) -> result.merge(Integer.valueOf(partition), value, Math::max));
+    }
+
+}
@@ -0,0 +1,748 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.utils.ChatRoute;
+import com.giggle.team.utils.MessageCodec;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Local log of the latest records of every chat read on this node, kept in memory-mapped segment files in chat.replay-log.path
+ * Records are appended by the chat listeners and by replays reading kafka, up to chat.replay-log.per-chat records
+ * per (chat, partition) are indexed by offset, older ones are left to the segment retention
+ * Each (chat, partition) has a range of offsets [from, to) of which the log holds every record of the chat:
+ * a replay reading kafka while the chat listener runs bridges its records to the live ones, then the range grows with
+ * every live record and joins are replayed from the log alone, closing the chat writes the range into the log,
+ * so after a restart only the records since that range are read from kafka
+ * Segments of chat.replay-log.segment-size bytes are rolled when full, the oldest are deleted above chat.replay-log.max-size
+ * Every (chat, partition) index has its own lock, appending only shares a short lock placing the entry into the segment
+ * The next segment is mapped ahead, flushing a full segment and the retention run on a background thread
+ * Metrics: chat.replay-log.hits - replays served from the log alone, chat.replay-log.misses - replays reading kafka,
+ * chat.replay-log.size - bytes of the segments
+ */
+@Service
+@ConditionalOnProperty(name = "chat.replay-log.enabled", havingValue = "true", matchIfMissing = true)
+public class ReplayLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplayLog.class);
+
+    private static final String SEGMENT_PREFIX = "segment-", SEGMENT_SUFFIX = ".log";
+    private static final byte RECORD = 0, RANGE = 1;
+
+    private final Path path;
+    private final int segmentSize;
+    private final long maxSize;
+    private final int perChat;
+    private final NavigableMap<Integer, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+    private final Map<String, Map<String, PartitionLog>> chats = new ConcurrentHashMap<>();
+    private final Map<String, ChatState> states = new ConcurrentHashMap<>();
+    private volatile Thread maintenanceThread;
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "replay-log-maintenance");
+        maintenanceThread = thread;
+        return thread;
+    });
+    private final AtomicBoolean retentionQueued = new AtomicBoolean();
+    private final Object writeLock = new Object();
+    private final Counter hits;
+    private final Counter misses;
+    // guarded by writeLock
+    private int segmentId;
+    private MappedByteBuffer segment;
+    private Future<MappedByteBuffer> nextSegment;
+
+    public ReplayLog(MeterRegistry meterRegistry,
+                     @Value("${chat.replay-log.path:replay-log}") String path,
+                     @Value("${chat.replay-log.segment-size:67108864}") int segmentSize,
+                     @Value("${chat.replay-log.max-size:1073741824}") long maxSize,
+                     @Value("${chat.replay-log.per-chat:1000}") int perChat) throws IOException {
+        this.path = Paths.get(path);
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.perChat = perChat;
+        Files.createDirectories(this.path);
+        long start = System.currentTimeMillis();
+        load();
+        logger.info("Opened replay log " + path + " with " + segments.size() + " segments of " + chats.size()
+                + " chats in " + (System.currentTimeMillis() - start) + " ms");
+        hits = Counter.builder("chat.replay-log.hits")
+                .description("Replays served from the replay log alone")
+                .register(meterRegistry);
+        misses = Counter.builder("chat.replay-log.misses")
+                .description("Replays reading kafka")
+                .register(meterRegistry);
+        Gauge.builder("chat.replay-log.size", this, log -> log.size())
+                .description("Bytes of the replay log segments")
+                .register(meterRegistry);
+    }
+
+    /**
+     * The chat listener is started, its records are appended until the chat is closed
+     */
+    public void opened(String chat) {
+        ChatState state = state(chat);
+        synchronized (state) {
+            state.generation++;
+            state.open = true;
+        }
+    }
+
+    /**
+     * The chat listener is stopped, ranges of the chat stop growing and are written into the log
+     */
+    public void closed(String chat) {
+        ChatState state = state(chat);
+        synchronized (state) {
+            state.generation++;
+            state.open = false;
+            for (PartitionLog partitionLog : partitionLogs(chat)) {
+                partitionLog.lock.lock();
+                try {
+                    partitionLog.bridged = false;
+                    writeRange(partitionLog);
+                } finally {
+                    partitionLog.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes with every open and close of the chat, a replay bridges its records only within one generation
+     */
+    public int generation(String chat) {
+        ChatState state = state(chat);
+        synchronized (state) {
+            return state.generation;
+        }
+    }
+
+    /**
+     * Appending records of the chat, records already in the log or evicted from it are skipped
+     */
+    public void append(String chat, List<ConsumerRecord<String, Message>> records) {
+        for (ConsumerRecord<String, Message> record : records) {
+            PartitionLog partitionLog = lock(chat, record.topic(), record.partition());
+            try {
+                if (record.offset() < partitionLog.floor || partitionLog.entries.containsKey(record.offset())) {
+                    continue;
+                }
+                byte[] payload = MessageCodec.encode(record.value());
+                long location = write(RECORD, chat, record.topic(), record.partition(), record.offset(), record.timestamp(), payload);
+                if (location < 0) {
+                    continue;
+                }
+                partitionLog.add(record.offset(), location);
+                if (partitionLog.bridged) {
+                    partitionLog.to = Math.max(partitionLog.to, record.offset() + 1);
+                }
+            } finally {
+                partitionLog.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Ends of the chat ranges on every partition of the route, if all of them grow with the live records of the chat
+     *
+     * @return null when the replay needs kafka
+     */
+    public Map<Integer, Long> liveEnds(String chat, ChatRoute route) {
+        ChatState state = states.get(chat);
+        Map<String, PartitionLog> partitionLogs = chats.get(chat);
+        if (state == null || partitionLogs == null) {
+            return null;
+        }
+        synchronized (state) {
+            if (!state.open) {
+                return null;
+            }
+            List<Integer> partitions = new ArrayList<>();
+            if (route.isMultiplexed()) {
+                partitions.add(route.getPartition());
+            } else {
+                PartitionLog first = partitionLogs.get(key(route.getTopic(), 0));
+                int count = first == null ? 0 : first.partitionCount();
+                for (int partition = 0; partition < count; partition++) {
+                    partitions.add(partition);
+                }
+            }
+            Map<Integer, Long> ends = new HashMap<>();
+            for (int partition : partitions) {
+                PartitionLog partitionLog = partitionLogs.get(key(route.getTopic(), partition));
+                if (partitionLog == null) {
+                    return null;
+                }
+                partitionLog.lock.lock();
+                try {
+                    if (!partitionLog.bridged) {
+                        return null;
+                    }
+                    ends.put(partition, partitionLog.to);
+                } finally {
+                    partitionLog.lock.unlock();
+                }
+            }
+            return ends.isEmpty() ? null : ends;
+        }
+    }
+
+    /**
+     * Offset of the count-th newest record of the chat before end, for partitions shared with other chats
+     *
+     * @return start of the range if the log holds fewer records of the chat there, end if it has no range there
+     */
+    public long offsetBefore(String chat, String topic, int partition, long end, int count) {
+        Map<String, PartitionLog> partitionLogs = chats.get(chat);
+        PartitionLog partitionLog = partitionLogs == null ? null : partitionLogs.get(key(topic, partition));
+        if (partitionLog == null) {
+            return end;
+        }
+        partitionLog.lock.lock();
+        try {
+            if (partitionLog.removed || end <= partitionLog.from || end > partitionLog.to) {
+                return end;
+            }
+            int seen = 0;
+            for (long offset : partitionLog.entries.subMap(partitionLog.from, true, end, false).descendingKeySet()) {
+                if (++seen == count) {
+                    return offset;
+                }
+            }
+            return partitionLog.from;
+        } finally {
+            partitionLog.lock.unlock();
+        }
+    }
+
+    /**
+     * Adding messages of the chat between start and end held by the log, the locations are taken under the lock
+     * of the partition index and the payloads are copied out of the mapped segments and decoded after releasing it
+     *
+     * @return offset up to which the records were read from the log, start if the log does not hold the start
+     */
+    public long read(String chat, String topic, int partition, long start, long end, List<Message> messages) {
+        Map<String, PartitionLog> partitionLogs = chats.get(chat);
+        PartitionLog partitionLog = partitionLogs == null ? null : partitionLogs.get(key(topic, partition));
+        if (partitionLog == null) {
+            return start;
+        }
+        List<ByteBuffer> buffers;
+        long until;
+        partitionLog.lock.lock();
+        try {
+            if (partitionLog.removed || start < partitionLog.from || start >= partitionLog.to) {
+                return start;
+            }
+            until = Math.min(end, partitionLog.to);
+            Collection<Long> locations = partitionLog.entries.subMap(start, until).values();
+            buffers = new ArrayList<>(locations.size());
+            // entries leave the index before their segment is deleted, and the mapping outlives the file
+            for (long location : locations) {
+                ByteBuffer buffer = segments.get(segmentOf(location)).duplicate();
+                buffer.position(positionOf(location));
+                buffers.add(buffer);
+            }
+        } finally {
+            partitionLog.lock.unlock();
+        }
+        for (ByteBuffer buffer : buffers) {
+            messages.add(readPayload(buffer));
+        }
+        return until;
+    }
+
+    /**
+     * A replay has appended every record of the chat between from and to read from kafka, after the chat listener got
+     * its live position, so the range of the partition grows with the live records from now on
+     */
+    public void bridge(String chat, String topic, int partitions, int partition, int generation, long from, long to) {
+        ChatState state = state(chat);
+        synchronized (state) {
+            if (generation != state.generation || !state.open) {
+                return;
+            }
+            PartitionLog partitionLog = lock(chat, topic, partition);
+            try {
+                if (from < partitionLog.from || from > partitionLog.to) {
+                    partitionLog.from = Math.max(from, partitionLog.floor);
+                    partitionLog.to = partitionLog.from;
+                }
+                partitionLog.to = Math.max(partitionLog.to, to);
+                partitionLog.partitions = partitions;
+                partitionLog.bridged = true;
+            } finally {
+                partitionLog.lock.unlock();
+            }
+        }
+    }
+
+    public void hit() {
+        hits.increment();
+    }
+
+    public void miss() {
+        misses.increment();
+    }
+
+    /**
+     * Ranges of the chats still open are written, so a restart finds them
+     */
+    @PreDestroy
+    public void shutdown() {
+        states.forEach((chat, state) -> {
+            if (state.isOpen()) {
+                closed(chat);
+            }
+        });
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+    }
+
+    private long size() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    private ChatState state(String chat) {
+        return states.computeIfAbsent(chat, key -> new ChatState());
+    }
+
+    private List<PartitionLog> partitionLogs(String chat) {
+        Map<String, PartitionLog> partitionLogs = chats.get(chat);
+        return partitionLogs == null ? new ArrayList<>() : new ArrayList<>(partitionLogs.values());
+    }
+
+    /**
+     * @return index of the chat on the partition, locked by the caller's thread
+     */
+    private PartitionLog lock(String chat, String topic, int partition) {
+        while (true) {
+            Map<String, PartitionLog> partitionLogs = chats.computeIfAbsent(chat, key -> new ConcurrentHashMap<>());
+            PartitionLog partitionLog = partitionLogs.computeIfAbsent(key(topic, partition),
+                    key -> new PartitionLog(chat, topic, partition));
+            partitionLog.lock.lock();
+            // the retention may have dropped the index or the map of the chat in the meantime
+            if (!partitionLog.removed && chats.get(chat) == partitionLogs) {
+                return partitionLog;
+            }
+            partitionLog.lock.unlock();
+        }
+    }
+
+    private void writeRange(PartitionLog partitionLog) {
+        write(RANGE, partitionLog.chat, partitionLog.topic, partitionLog.partition, partitionLog.from, partitionLog.to,
+                ByteBuffer.allocate(4).putInt(partitionLog.partitions).array());
+    }
+
+    /**
+     * Entry: int length, type, chat, topic, int partition, two longs (offset and timestamp of a record, from and to of a range),
+     * payload; the length goes in last, so a torn entry ends the segment
+     *
+     * @return location of the entry, -1 if it does not fit into a segment
+     */
+    private long write(byte type, String chat, String topic, int partition, long first, long second, byte[] payload) {
+        byte[] chatBytes = chat.getBytes(StandardCharsets.UTF_8);
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + chatBytes.length + 2 + topicBytes.length + 4 + 8 + 8 + payload.length;
+        if (4 + length + 4 > segmentSize) {
+            logger.warn("Record of chat " + chat + " does not fit into a replay log segment: " + length + " bytes");
+            return -1;
+        }
+        synchronized (writeLock) {
+            if (segment == null || segment.position() + 4 + length + 4 > segmentSize) {
+                roll();
+            }
+            int position = segment.position();
+            segment.position(position + 4);
+            segment.put(type)
+                    .putShort((short) chatBytes.length).put(chatBytes)
+                    .putShort((short) topicBytes.length).put(topicBytes)
+                    .putInt(partition).putLong(first).putLong(second)
+                    .put(payload);
+            segment.putInt(position, length);
+            return location(segmentId, position);
+        }
+    }
+
+    /**
+     * Decoding the payload of the entry the buffer is positioned at, it is copied out of the segment first
+     */
+    private static Message readPayload(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        int end = buffer.position() + length;
+        buffer.get();
+        skipString(buffer);
+        skipString(buffer);
+        buffer.position(buffer.position() + 4 + 8 + 8);
+        byte[] payload = new byte[end - buffer.position()];
+        buffer.get(payload);
+        return MessageCodec.decode(payload);
+    }
+
+    /**
+     * Switching to the next segment, mapped ahead by the background thread unless it is busy,
+     * then flushing the full segment and deleting the oldest segments over the size limit there
+     */
+    private void roll() {
+        MappedByteBuffer full = segment;
+        Future<MappedByteBuffer> ahead = nextSegment;
+        nextSegment = null;
+        segmentId++;
+        segment = ahead != null && ahead.isDone() ? mapped(ahead) : null;
+        if (segment == null) {
+            if (ahead != null) {
+                ahead.cancel(false);
+            }
+            segment = map(segmentId);
+        }
+        segments.put(segmentId, segment);
+        int next = segmentId + 1;
+        try {
+            nextSegment = maintenance.submit(() -> map(next));
+            if (full != null) {
+                maintenance.execute(full::force);
+            }
+            // rolled by the ranges of a retention pass, which must not delete more on its own
+            if (Thread.currentThread() != maintenanceThread && retentionQueued.compareAndSet(false, true)) {
+                maintenance.execute(() -> {
+                    retentionQueued.set(false);
+                    retain();
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            // shutting down, the retention waits for the next start
+            if (full != null) {
+                full.force();
+            }
+        }
+    }
+
+    /**
+     * Deleting the oldest segments over the size limit, never the segment written when the pass starts
+     * Entries of the deleted segments leave the index first, ranges holding them start after them
+     * and are written once per index before the files go
+     * Indexes left without entries and ranges are dropped
+     */
+    private void retain() {
+        int newest;
+        synchronized (writeLock) {
+            newest = segmentId;
+        }
+        List<Integer> deleted = new ArrayList<>();
+        long excess = size() - maxSize;
+        for (int id : segments.headMap(newest).keySet()) {
+            if (excess <= 0) {
+                break;
+            }
+            deleted.add(id);
+            excess -= segmentSize;
+        }
+        if (deleted.isEmpty()) {
+            return;
+        }
+        for (Map<String, PartitionLog> partitionLogs : chats.values()) {
+            for (PartitionLog partitionLog : partitionLogs.values()) {
+                partitionLog.lock.lock();
+                try {
+                    boolean removed = false;
+                    for (int id : deleted) {
+                        removed |= partitionLog.removeSegment(id);
+                    }
+                    if (removed) {
+                        writeRange(partitionLog);
+                    }
+                } finally {
+                    partitionLog.lock.unlock();
+                }
+            }
+        }
+        for (int id : deleted) {
+            segments.remove(id);
+            try {
+                Files.deleteIfExists(segmentPath(id));
+                logger.info("Deleted replay log segment " + id);
+            } catch (IOException e) {
+                logger.error("Replay log segment " + id + " could not be deleted", e);
+            }
+        }
+        for (String chat : chats.keySet()) {
+            chats.computeIfPresent(chat, (key, partitionLogs) -> {
+                partitionLogs.values().removeIf(PartitionLog::retire);
+                return partitionLogs.isEmpty() ? null : partitionLogs;
+            });
+        }
+    }
+
+    /**
+     * Waiting for the maintenance queued so far: mapping, flushing and retention
+     */
+    void awaitMaintenance() throws InterruptedException, ExecutionException {
+        maintenance.submit(() -> {
+        }).get();
+    }
+
+    private MappedByteBuffer mapped(Future<MappedByteBuffer> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | CancellationException e) {
+            logger.warn("Replay log segment " + segmentId + " was not mapped ahead", e);
+            return null;
+        }
+    }
+
+    private MappedByteBuffer map(int id) {
+        try (FileChannel channel = FileChannel.open(segmentPath(id),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Rebuilding the index from the segments, the last range written for a partition is its range
+     * Appending continues in the last segment
+     */
+    private void load() throws IOException {
+        List<Integer> ids;
+        try (Stream<Path> files = Files.list(path)) {
+            ids = files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int id : ids) {
+            if (Files.size(segmentPath(id)) != segmentSize) {
+                logger.warn("Deleting replay log segment " + id + " of another segment size");
+                Files.delete(segmentPath(id));
+                continue;
+            }
+            segmentId = id;
+            segment = map(id);
+            segments.put(id, segment);
+            scan(id, segment);
+        }
+    }
+
+    private void scan(int id, MappedByteBuffer buffer) {
+        int position = 0;
+        try {
+            while (position + 4 <= segmentSize) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + 4 + length > segmentSize) {
+                    break;
+                }
+                ByteBuffer entry = buffer.duplicate();
+                entry.position(position + 4);
+                byte type = entry.get();
+                String chat = getString(entry);
+                String topic = getString(entry);
+                int partition = entry.getInt();
+                long first = entry.getLong();
+                long second = entry.getLong();
+                if (type != RECORD && type != RANGE) {
+                    break;
+                }
+                PartitionLog partitionLog = lock(chat, topic, partition);
+                try {
+                    if (type == RECORD) {
+                        if (first >= partitionLog.floor) {
+                            partitionLog.add(first, location(id, position));
+                        }
+                    } else {
+                        partitionLog.partitions = entry.getInt();
+                        partitionLog.from = Math.max(first, partitionLog.floor);
+                        partitionLog.to = Math.max(partitionLog.from, second);
+                    }
+                } finally {
+                    partitionLog.lock.unlock();
+                }
+                position += 4 + length;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            logger.warn("Replay log segment " + id + " is broken at " + position + ", appending from there");
+        }
+        buffer.position(position);
+    }
+
+    private Path segmentPath(int id) {
+        return path.resolve(SEGMENT_PREFIX + String.format("%010d", id) + SEGMENT_SUFFIX);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] value = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        buffer.position(buffer.position() + length);
+    }
+
+    private static String key(String topic, int partition) {
+        return topic + ":" + partition;
+    }
+
+    private static long location(int segment, int position) {
+        return ((long) segment << 32) | position;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int positionOf(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Opens and closes of one chat, guarded by its monitor
+     */
+    private static class ChatState {
+
+        private int generation;
+        private boolean open;
+
+        private synchronized boolean isOpen() {
+            return open;
+        }
+
+    }
+
+    /**
+     * Index of one chat on one partition: offsets to locations, and the range [from, to) of which every record is held
+     * Offsets below floor were evicted and are not taken again
+     * Every field is guarded by lock, a removed index is no longer in the map of its chat
+     */
+    private class PartitionLog {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final String chat;
+        private final String topic;
+        private final int partition;
+        private final TreeMap<Long, Long> entries = new TreeMap<>();
+        private int partitions = 1;
+        private long from;
+        private long to;
+        private long floor;
+        private boolean bridged;
+        private boolean removed;
+
+        private PartitionLog(String chat, String topic, int partition) {
+            this.chat = chat;
+            this.topic = topic;
+            this.partition = partition;
+        }
+
+        private int partitionCount() {
+            lock.lock();
+            try {
+                return partitions;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Marking an index without entries and range as removed, unless it is in use
+         */
+        private boolean retire() {
+            if (!lock.tryLock()) {
+                return false;
+            }
+            try {
+                removed = entries.isEmpty() && from == to && !bridged;
+                return removed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void add(long offset, long location) {
+            entries.put(offset, location);
+            if (entries.size() > perChat) {
+                evictBelow(entries.firstKey() + 1);
+            }
+        }
+
+        /**
+         * @return true if entries of the segment were removed
+         */
+        private boolean removeSegment(int segment) {
+            long removed = -1;
+            for (Map.Entry<Long, Long> entry : entries.entrySet()) {
+                if (segmentOf(entry.getValue()) == segment) {
+                    removed = Math.max(removed, entry.getKey());
+                }
+            }
+            if (removed < 0) {
+                return false;
+            }
+            evictBelow(removed + 1);
+            return true;
+        }
+
+        private void evictBelow(long offset) {
+            entries.headMap(offset).clear();
+            floor = Math.max(floor, offset);
+            from = Math.max(from, floor);
+            to = Math.max(to, from);
+        }
+
+    }
+
+}
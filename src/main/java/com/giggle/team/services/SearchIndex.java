@@ -0,0 +1,256 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.models.MessageBucket;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Local lucene index of chat messages of this node, kept in chat.search.path
+ * Kafka positions of the indexed records are stored in the commit data of every index commit,
+ * after a crash reading resumes from the last commit and records indexed again replace their documents by id
+ * Metrics: chat.search.indexed - indexed messages, chat.search.index - time to index one poll,
+ * chat.search.query - query time, chat.search.documents - documents in the index
+ */
+@Service
+@ConditionalOnProperty(name = "chat.search.enabled", havingValue = "true", matchIfMissing = true)
+public class SearchIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(SearchIndex.class);
+
+    private static final String ID = "id", CHAT = "chatId", CONTENT = "content", SENDER = "sender",
+            SENDER_NAME = "senderName", MESSAGE_ID = "messageId", TIME = "time", PARTITION = "partition", OFFSET = "offset";
+
+    private final ChatRouting chatRouting;
+    private final Analyzer analyzer = new StandardAnalyzer();
+    private final Directory directory;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final Map<String, Long> committedPositions = new HashMap<>();
+    private final Map<String, Long> positions = new ConcurrentHashMap<>();
+    private final Counter indexed;
+    private final Timer indexTime;
+    private final Timer queryTime;
+
+    public SearchIndex(MeterRegistry meterRegistry, ChatRouting chatRouting,
+                       @Value("${chat.search.path:search-index}") String path) throws IOException {
+        this.chatRouting = chatRouting;
+        directory = FSDirectory.open(Paths.get(path));
+        writer = new IndexWriter(directory, new IndexWriterConfig(analyzer).setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+        if (writer.getLiveCommitData() != null) {
+            writer.getLiveCommitData().forEach(entry -> committedPositions.put(entry.getKey(), Long.parseLong(entry.getValue())));
+        }
+        positions.putAll(committedPositions);
+        searcherManager = new SearcherManager(writer, null);
+        logger.info("Opened search index " + path + " with " + writer.getDocStats().numDocs + " messages of "
+                + committedPositions.size() + " partitions");
+        indexed = Counter.builder("chat.search.indexed")
+                .description("Chat messages added to the search index")
+                .register(meterRegistry);
+        indexTime = Timer.builder("chat.search.index")
+                .description("Time to index the chat messages of one poll")
+                .register(meterRegistry);
+        queryTime = Timer.builder("chat.search.query")
+                .description("Time to run a search query")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("chat.search.documents", writer, indexWriter -> indexWriter.getDocStats().numDocs)
+                .description("Chat messages in the search index")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return offset of the next record of the partition to index, null if nothing of it was committed
+     */
+    public Long committedPosition(TopicPartition partition) {
+        synchronized (committedPositions) {
+            return committedPositions.get(key(partition.topic(), partition.partition()));
+        }
+    }
+
+    /**
+     * Adding messages of chat topics, records whose message does not belong to the chat of the topic are skipped
+     */
+    public void index(List<ConsumerRecord<String, Message>> records) {
+        indexTime.record(() -> {
+            int added = 0;
+            for (ConsumerRecord<String, Message> record : records) {
+                Message message = record.value();
+                if (chatRouting.chatOf(record) != null && message.getContent() != null
+                        && message.getType() == Message.MessageType.CHAT) {
+                    String id = record.topic() + "-" + record.partition() + "-" + record.offset();
+                    try {
+                        writer.updateDocument(new Term(ID, id), document(id, record));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    added++;
+                }
+                positions.merge(key(record.topic(), record.partition()), record.offset() + 1, Math::max);
+            }
+            indexed.increment(added);
+        });
+    }
+
+    /**
+     * Messages of the given chats matching all words of the text, best matches first
+     */
+    public List<MessageBucket.Entry> search(String text, Collection<String> chats, int limit) {
+        List<String> terms = terms(text);
+        if (terms.isEmpty() || chats.isEmpty()) {
+            return new ArrayList<>();
+        }
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        terms.forEach(term -> query.add(new TermQuery(new Term(CONTENT, term)), BooleanClause.Occur.MUST));
+        query.add(new TermInSetQuery(CHAT, chats.stream().map(BytesRef::new).collect(Collectors.toList())),
+                BooleanClause.Occur.FILTER);
+        long start = System.nanoTime();
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                TopDocs topDocs = searcher.search(query.build(), limit);
+                List<MessageBucket.Entry> result = new ArrayList<>(topDocs.scoreDocs.length);
+                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                    result.add(entry(searcher.doc(scoreDoc.doc)));
+                }
+                return result;
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            queryTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Making indexed messages visible to searches
+     */
+    @Scheduled(fixedDelayString = "${chat.search.refresh-interval:1000}")
+    public void refresh() throws IOException {
+        searcherManager.maybeRefresh();
+    }
+
+    /**
+     * Committing the index together with the positions of everything added before
+     */
+    @Scheduled(fixedDelayString = "${chat.search.commit-interval:10000}")
+    public void commit() throws IOException {
+        Map<String, Long> snapshot = new HashMap<>(positions);
+        synchronized (committedPositions) {
+            if (snapshot.equals(committedPositions)) {
+                return;
+            }
+        }
+        Map<String, String> commitData = new HashMap<>();
+        snapshot.forEach((key, offset) -> commitData.put(key, Long.toString(offset)));
+        writer.setLiveCommitData(commitData.entrySet());
+        writer.commit();
+        synchronized (committedPositions) {
+            committedPositions.clear();
+            committedPositions.putAll(snapshot);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        commit();
+        searcherManager.close();
+        writer.close();
+        directory.close();
+    }
+
+    private List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        try (TokenStream tokens = analyzer.tokenStream(CONTENT, text)) {
+            CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                terms.add(term.toString());
+            }
+            tokens.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return terms;
+    }
+
+    private static Document document(String id, ConsumerRecord<String, Message> record) {
+        Message message = record.value();
+        Document document = new Document();
+        document.add(new StringField(ID, id, Field.Store.NO));
+        document.add(new StringField(CHAT, message.getChatId(), Field.Store.YES));
+        document.add(new TextField(CONTENT, message.getContent(), Field.Store.YES));
+        document.add(new StoredField(SENDER, nullToEmpty(message.getSender())));
+        document.add(new StoredField(SENDER_NAME, nullToEmpty(message.getSenderName())));
+        document.add(new StoredField(MESSAGE_ID, nullToEmpty(message.getMessageId())));
+        document.add(new StoredField(TIME, record.timestamp()));
+        document.add(new StoredField(PARTITION, record.partition()));
+        document.add(new StoredField(OFFSET, record.offset()));
+        return document;
+    }
+
+    private static MessageBucket.Entry entry(Document document) {
+        Message message = new Message(document.get(CHAT), Message.MessageType.CHAT, document.get(CONTENT),
+                document.get(SENDER), document.get(SENDER_NAME), document.get(MESSAGE_ID));
+        return new MessageBucket.Entry(document.getField(TIME).numericValue().longValue(),
+                document.getField(PARTITION).numericValue().intValue(),
+                document.getField(OFFSET).numericValue().longValue(), message);
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String key(String topic, int partition) {
+        return topic + ":" + partition;
+    }
+
+}
@@ -27,6 +27,9 @@ public class SubscriptionInterceptor implements ChannelInterceptor {
     @Override
     public Message<?> preSend(Message<?> message, MessageChannel channel) {
         StompHeaderAccessor headerAccessor = StompHeaderAccessor.wrap(message);
+        if (Objects.equals(headerAccessor.getCommand(), StompCommand.CONNECT)) {
+            MessageUtils.rememberSessionOptions(headerAccessor);
+        }
         if (Objects.equals(headerAccessor.getCommand(), StompCommand.SUBSCRIBE)) {
             Principal principal = headerAccessor.getUser();
             if (principal != null) {
@@ -0,0 +1,282 @@
+package com.giggle.team.services;
+
+import com.giggle.team.listener.ChatSubscription;
+import com.giggle.team.listener.SubscriptionRegistry;
+import com.giggle.team.models.Message;
+import com.giggle.team.models.UnreadUpdate;
+import com.giggle.team.utils.LongIntMap;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unread message counters of the users subscribed to /user/queue/service on this node, per (user, chat)
+ * A user's counters start from the read offsets when the first session subscribes, then every record of a chat topic
+ * increments the counters of its members having no session joined to the chat, joining the chat resets the counter
+ * Changed counters are pushed every chat.unread.flush-interval as one {@link UnreadUpdate} per user
+ * Chats sharing a partition of a multiplexed topic can not be counted from offsets, their counters start from 0
+ * Users and chats are interned to ints, so the counters are kept in primitive maps keyed by (user, chat)
+ * The ints of a user are released with the last session, the ints of a chat with its last counted member
+ */
+@Service
+@ConditionalOnProperty(name = "chat.unread.enabled", havingValue = "true", matchIfMissing = true)
+public class UnreadCounters {
+
+    private static final Logger logger = LoggerFactory.getLogger(UnreadCounters.class);
+    private static final String SERVICE_DESTINATION = "/user/queue/service";
+
+    private final SimpMessagingTemplate template;
+    private final MembershipCache membershipCache;
+    private final ReadOffsetService readOffsetService;
+    private final SubscriptionRegistry subscriptionRegistry;
+    private final ChatRouting chatRouting;
+
+    private final Interner users = new Interner();
+    private final Interner chats = new Interner();
+    private final Map<String, Set<String>> sessionsByUser = new HashMap<>();
+    private final Map<String, Set<String>> chatsByUser = new HashMap<>();
+    private final Map<String, Set<String>> usersByChat = new HashMap<>();
+    private final Map<String, Map<Integer, Long>> beginnings = new HashMap<>();
+    private final Map<String, Map<Integer, Long>> ends = new HashMap<>();
+    private final LongIntMap counters = new LongIntMap();
+    private final LongIntMap changed = new LongIntMap();
+
+    public UnreadCounters(SimpMessagingTemplate template, MembershipCache membershipCache,
+                          ReadOffsetService readOffsetService, SubscriptionRegistry subscriptionRegistry,
+                          ChatRouting chatRouting, MeterRegistry meterRegistry) {
+        this.template = template;
+        this.membershipCache = membershipCache;
+        this.readOffsetService = readOffsetService;
+        this.subscriptionRegistry = subscriptionRegistry;
+        this.chatRouting = chatRouting;
+        Gauge.builder("chat.unread.counters", counters, LongIntMap::size)
+                .description("Unread counters of (user, chat) kept on this node")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Subscribing to the service queue starts counting for the user and sends all counters to the session
+     * Other subscriptions of a counted user pick up chats the user has joined since
+     */
+    @EventListener
+    public void subscribed(SessionSubscribeEvent event) {
+        Principal user = event.getUser();
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(event.getMessage().getHeaders());
+        if (user == null || sessionId == null) {
+            return;
+        }
+        if (SERVICE_DESTINATION.equals(SimpMessageHeaderAccessor.getDestination(event.getMessage().getHeaders()))) {
+            synchronized (this) {
+                sessionsByUser.computeIfAbsent(user.getName(), key -> new HashSet<>()).add(sessionId);
+                chatsByUser.getOrDefault(user.getName(), Collections.emptySet())
+                        .forEach(chat -> changed.put(key(user.getName(), chat), 1));
+            }
+            addChats(user.getName());
+        } else if (isCounted(user.getName())) {
+            addChats(user.getName());
+        }
+    }
+
+    /**
+     * Counters of the user are dropped with the last session
+     */
+    @EventListener
+    public synchronized void disconnected(SessionDisconnectEvent event) {
+        Principal user = event.getUser();
+        Set<String> sessions = user == null ? null : sessionsByUser.get(user.getName());
+        if (sessions == null || !sessions.remove(event.getSessionId()) || !sessions.isEmpty()) {
+            return;
+        }
+        sessionsByUser.remove(user.getName());
+        Set<String> counted = chatsByUser.remove(user.getName());
+        for (String chat : counted == null ? Collections.<String>emptySet() : counted) {
+            long key = key(user.getName(), chat);
+            counters.remove(key);
+            changed.remove(key);
+            Set<String> members = usersByChat.get(chat);
+            members.remove(user.getName());
+            if (members.isEmpty()) {
+                usersByChat.remove(chat);
+                chats.release(chat);
+            }
+        }
+        users.release(user.getName());
+    }
+
+    /**
+     * Positions of newly assigned chat partitions, every message after beginning is unread for users who never read the chat
+     */
+    public synchronized void assigned(Map<TopicPartition, Long> beginning, Map<TopicPartition, Long> end) {
+        beginning.forEach((partition, offset) ->
+                beginnings.computeIfAbsent(partition.topic(), topic -> new HashMap<>()).put(partition.partition(), offset));
+        end.forEach((partition, offset) ->
+                ends.computeIfAbsent(partition.topic(), topic -> new HashMap<>()).merge(partition.partition(), offset, Math::max));
+    }
+
+    /**
+     * Counting records of chat topics, records whose message does not belong to the chat of the topic are skipped
+     */
+    public synchronized void onRecords(List<ConsumerRecord<String, Message>> records) {
+        for (ConsumerRecord<String, Message> record : records) {
+            ends.computeIfAbsent(record.topic(), topic -> new HashMap<>())
+                    .merge(record.partition(), record.offset() + 1, Math::max);
+            Message message = record.value();
+            String chat = chatRouting.chatOf(record);
+            Set<String> members = chat == null ? null : usersByChat.get(chat);
+            if (members == null) {
+                continue;
+            }
+            for (String user : members) {
+                if (!user.equals(message.getSender()) && !isJoined(user, chat)) {
+                    long key = key(user, chat);
+                    counters.add(key, 1);
+                    changed.put(key, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * The user has joined the chat, so everything of it is delivered
+     */
+    public synchronized void read(String user, String chat) {
+        if (!chatsByUser.getOrDefault(user, Collections.emptySet()).contains(chat)) {
+            return;
+        }
+        long key = key(user, chat);
+        if (counters.get(key) != 0) {
+            counters.put(key, 0);
+            changed.put(key, 1);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${chat.unread.flush-interval:1000}")
+    public void flush() {
+        Map<String, Map<String, Integer>> updates = new HashMap<>();
+        synchronized (this) {
+            changed.forEach((key, ignored) -> updates.computeIfAbsent(users.name(LongIntMap.high(key)), user -> new HashMap<>())
+                    .put(chats.name(LongIntMap.low(key)), counters.get(key)));
+            changed.clear();
+        }
+        updates.forEach((user, unread) -> template.convertAndSendToUser(user, "/queue/service", new UnreadUpdate(unread)));
+        if (!updates.isEmpty()) {
+            logger.debug("Sent unread counters to " + updates.size() + " users");
+        }
+    }
+
+    /**
+     * Starting to count the user's chats not counted yet, from the user's read offsets
+     */
+    private void addChats(String user) {
+        Set<String> destinations = membershipCache.getDestinations(user);
+        if (destinations == null) {
+            return;
+        }
+        Set<String> added = new HashSet<>(destinations);
+        synchronized (this) {
+            added.removeAll(chatsByUser.getOrDefault(user, Collections.emptySet()));
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        Map<String, Map<Integer, Long>> readOffsets = readOffsetService.find(user, added);
+        synchronized (this) {
+            if (!sessionsByUser.containsKey(user)) {
+                return;
+            }
+            for (String chat : added) {
+                if (chatsByUser.computeIfAbsent(user, key -> new HashSet<>()).add(chat)) {
+                    usersByChat.computeIfAbsent(chat, key -> new HashSet<>()).add(user);
+                    long key = key(user, chat);
+                    counters.put(key, unread(chat, readOffsets.getOrDefault(chat, Collections.emptyMap())));
+                    changed.put(key, 1);
+                }
+            }
+        }
+    }
+
+    private int unread(String chat, Map<Integer, Long> readOffsets) {
+        long unread = 0;
+        Map<Integer, Long> beginning = beginnings.getOrDefault(chat, Collections.emptyMap());
+        for (Map.Entry<Integer, Long> end : ends.getOrDefault(chat, Collections.emptyMap()).entrySet()) {
+            long read = readOffsets.getOrDefault(end.getKey(), beginning.getOrDefault(end.getKey(), end.getValue()));
+            unread += Math.max(0, end.getValue() - read);
+        }
+        return (int) Math.min(unread, Integer.MAX_VALUE);
+    }
+
+    private synchronized boolean isCounted(String user) {
+        return sessionsByUser.containsKey(user);
+    }
+
+    private boolean isJoined(String user, String chat) {
+        for (ChatSubscription subscription : subscriptionRegistry.getByUser(user)) {
+            if (subscription.getChat().equals(chat)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long key(String user, String chat) {
+        return LongIntMap.key(users.intern(user), chats.intern(chat));
+    }
+
+    /**
+     * Dense ints of names, released ints are handed out again
+     */
+    private static class Interner {
+
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+        private final Deque<Integer> released = new ArrayDeque<>();
+
+        int intern(String name) {
+            return ids.computeIfAbsent(name, key -> {
+                if (released.isEmpty()) {
+                    names.add(key);
+                    return names.size() - 1;
+                }
+                int id = released.pop();
+                names.set(id, key);
+                return id;
+            });
+        }
+
+        String name(int id) {
+            return names.get(id);
+        }
+
+        void release(String name) {
+            Integer id = ids.remove(name);
+            if (id != null) {
+                names.set(id, null);
+                released.push(id);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.UserEntity;
+import com.giggle.team.repositories.UserRepository;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Collection;
+
+/**
+ * Read-through cache of users by email
+ * Changes of a user are announced to all nodes through the user events kafka topic,
+ * every node then drops its cached copy and the membership of that user, reloading it on the next read
+ */
+@Service
+public class UserCache {
+
+    private final MembershipCache membershipCache;
+    private final UserEventPublisher userEventPublisher;
+    private final LoadingCache<String, UserEntity> cache;
+
+    public UserCache(UserRepository userRepository, MembershipCache membershipCache,
+                     UserEventPublisher userEventPublisher, MeterRegistry meterRegistry,
+                     @Value("${chat.user-cache.maximum-size:100000}") long maximumSize,
+                     @Value("${chat.user-cache.expire-after-write:300000}") long expireAfterWrite) {
+        this.membershipCache = membershipCache;
+        this.userEventPublisher = userEventPublisher;
+        this.cache = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofMillis(expireAfterWrite))
+                .recordStats()
+                .build(userRepository::findByEmail), "users");
+        Gauge.builder("cache.hit.ratio", cache, users -> users.stats().hitRate())
+                .tag("cache", "users")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return user or null if there is no user with such email
+     */
+    public UserEntity get(String email) {
+        return cache.get(email);
+    }
+
+    /**
+     * Dropping the user from caches of this node and announcing the change to other nodes
+     * Must be called after the changed user was saved
+     */
+    public void invalidate(String email) {
+        evict(email);
+        userEventPublisher.userChanged(email);
+    }
+
+    /**
+     * Dropping the new user from caches of this node and announcing it with its username to other nodes
+     * Must be called after the user was saved
+     */
+    public void created(UserEntity user) {
+        evict(user.getEmail());
+        userEventPublisher.userCreated(user.getEmail(), user.getUsername());
+    }
+
+    public void invalidateAll(Collection<String> emails) {
+        emails.forEach(this::invalidate);
+    }
+
+    /**
+     * Dropping the user from caches of this node only
+     */
+    public void evict(String email) {
+        cache.invalidate(email);
+        membershipCache.invalidate(email);
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Message;
+
+/**
+ * Carrying user destination messages to other application nodes
+ * The receiving side hands them to {@link UserMessagingService#sendLocally}
+ */
+public interface UserDestinationTransport {
+
+    /**
+     * @param user receiving user, null to broadcast the destination to all sessions of the node
+     */
+    void send(String node, String user, String destination, Message payload);
+
+}
@@ -0,0 +1,157 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.DirectoryDelta;
+import com.giggle.team.models.Sequence;
+import com.giggle.team.models.UserEntity;
+import com.giggle.team.repositories.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned user directory: every change of a user takes the next value of the cluster-wide "users" sequence
+ * as the user's directoryVersion, so clients can ask for the users changed since the version they have seen
+ * Versions are taken before the user is written, so a change can be stored after a newer one. Deltas only reach the
+ * watermark below the oldest version still being written, a version pending longer than chat.directory.pending-timeout
+ * is given up on by the scheduled {@link #expirePending()}, reading the watermark never writes
+ */
+@Service
+public class UserDirectory {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserDirectory.class);
+    private static final String SEQUENCE = "users";
+
+    private final UserRepository userRepository;
+    private final MongoTemplate mongoTemplate;
+    private final int maxDelta;
+    private final long pendingTimeout;
+
+    public UserDirectory(UserRepository userRepository, MongoTemplate mongoTemplate,
+                         @Value("${chat.directory.max-delta:1000}") int maxDelta,
+                         @Value("${chat.directory.pending-timeout:10000}") long pendingTimeout) {
+        this.userRepository = userRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.maxDelta = maxDelta;
+        this.pendingTimeout = pendingTimeout;
+    }
+
+    /**
+     * Versions users created before the directory was versioned
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        List<UserEntity> users = userRepository.findWithoutDirectoryVersion();
+        for (UserEntity user : users) {
+            long version = nextVersion();
+            try {
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(user.getId()).and("directoryVersion").exists(false)),
+                        Update.update("directoryVersion", version), UserEntity.class);
+            } finally {
+                written(version);
+            }
+        }
+        if (!users.isEmpty()) {
+            logger.info("Directory version set for " + users.size() + " users");
+        }
+    }
+
+    /**
+     * @return version to set on a user being changed, pending until {@link #written(long)}
+     */
+    public long nextVersion() {
+        while (true) {
+            Sequence sequence = mongoTemplate.findById(SEQUENCE, Sequence.class);
+            long value = sequence == null ? 0 : sequence.getValue();
+            try {
+                // taking the value and marking it pending in one write, so no watermark is read between them
+                mongoTemplate.upsert(Query.query(Criteria.where("_id").is(SEQUENCE).and("value").is(value)),
+                        new Update().set("value", value + 1).set("pending." + (value + 1), new Date()), Sequence.class);
+                return value + 1;
+            } catch (DuplicateKeyException e) {
+                // another writer took the value
+            }
+        }
+    }
+
+    /**
+     * The user changed with the version is stored, or will never be
+     */
+    public void written(long version) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(SEQUENCE)), new Update().unset("pending." + version),
+                Sequence.class);
+    }
+
+    /**
+     * Giving up on the versions pending longer than chat.directory.pending-timeout, the only place the watermark
+     * passes a version that was not written
+     */
+    @Scheduled(fixedDelayString = "${chat.directory.expire-interval:5000}")
+    public void expirePending() {
+        Sequence sequence = mongoTemplate.findById(SEQUENCE, Sequence.class);
+        if (sequence == null) {
+            return;
+        }
+        Date expired = new Date(System.currentTimeMillis() - pendingTimeout);
+        for (Map.Entry<String, Date> pending : sequence.getPending().entrySet()) {
+            if (pending.getValue().before(expired)) {
+                logger.warn("Directory version " + pending.getKey() + " was not written in time");
+                written(Long.parseLong(pending.getKey()));
+            }
+        }
+    }
+
+    /**
+     * @return version up to which every change is stored, 0 for an empty directory
+     */
+    public long version() {
+        Sequence sequence = mongoTemplate.findById(SEQUENCE, Sequence.class);
+        if (sequence == null) {
+            return 0;
+        }
+        long watermark = sequence.getValue();
+        for (String pending : sequence.getPending().keySet()) {
+            watermark = Math.min(watermark, Long.parseLong(pending) - 1);
+        }
+        return watermark;
+    }
+
+    /**
+     * Users changed after the version up to the watermark, at most chat.directory.max-delta of them, the oldest changes first
+     */
+    public DirectoryDelta since(long version) {
+        long watermark = version();
+        if (watermark <= version) {
+            return new DirectoryDelta(version, Collections.emptyMap(), false);
+        }
+        List<UserEntity> changed = userRepository.findDirectoryBetween(version, watermark,
+                PageRequest.of(0, maxDelta + 1, Sort.by("directoryVersion")));
+        boolean more = changed.size() > maxDelta;
+        if (more) {
+            changed = changed.subList(0, maxDelta);
+        }
+        Map<String, String> users = new LinkedHashMap<>();
+        for (UserEntity user : changed) {
+            users.put(user.getUsername(), user.getEmail());
+            version = user.getDirectoryVersion();
+        }
+        return new DirectoryDelta(more ? version : watermark, users, more);
+    }
+
+}
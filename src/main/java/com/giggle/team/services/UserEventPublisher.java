@@ -0,0 +1,64 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.UserEvent;
+import com.giggle.team.utils.NodeIdentity;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+
+/**
+ * Sending {@link UserEvent} of this node to the user events topic
+ * The events have a producer of their own, the application producer writes chat messages only
+ */
+@Service
+public class UserEventPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserEventPublisher.class);
+
+    private final DefaultKafkaProducerFactory<String, UserEvent> producerFactory;
+    private final KafkaTemplate<String, UserEvent> kafkaTemplate;
+    private final NodeIdentity nodeIdentity;
+    private final String topic;
+
+    public UserEventPublisher(KafkaProperties kafkaProperties, NodeIdentity nodeIdentity,
+                              @Value("${chat.user-events.topic:user-events}") String topic) {
+        JsonSerializer<UserEvent> serializer = new JsonSerializer<>();
+        serializer.setAddTypeInfo(false);
+        this.producerFactory = new DefaultKafkaProducerFactory<>(kafkaProperties.buildProducerProperties(),
+                new StringSerializer(), serializer);
+        this.kafkaTemplate = new KafkaTemplate<>(producerFactory);
+        this.nodeIdentity = nodeIdentity;
+        this.topic = topic;
+    }
+
+    public void userCreated(String email, String username) {
+        publish(UserEvent.userCreated(nodeIdentity.getId(), email, username));
+    }
+
+    public void userChanged(String email) {
+        publish(UserEvent.userChanged(nodeIdentity.getId(), email));
+    }
+
+    public void routeChanged(String chat, String route) {
+        publish(UserEvent.routeChanged(nodeIdentity.getId(), chat, route));
+    }
+
+    private void publish(UserEvent event) {
+        kafkaTemplate.send(topic, event).addCallback(result -> {
+        }, failure -> logger.error("User event " + event.getType() + " was not sent", failure));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        producerFactory.destroy();
+    }
+
+}
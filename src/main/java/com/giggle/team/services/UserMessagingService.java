@@ -0,0 +1,61 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Message;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Sending to user destinations and broadcasts regardless of the node holding the sessions
+ * Sessions of this node get the message from the local broker, other nodes holding sessions of the user get it
+ * through the {@link UserDestinationTransport}, only when the multi-node mode is enabled with chat.routing.enabled
+ */
+@Service
+public class UserMessagingService {
+
+    private final SimpMessagingTemplate template;
+    private final NodeSessionRegistry nodeSessionRegistry;
+    private final UserDestinationTransport transport;
+
+    public UserMessagingService(SimpMessagingTemplate template,
+                                ObjectProvider<NodeSessionRegistry> nodeSessionRegistry,
+                                ObjectProvider<UserDestinationTransport> transport) {
+        this.template = template;
+        this.nodeSessionRegistry = nodeSessionRegistry.getIfAvailable();
+        this.transport = transport.getIfAvailable();
+    }
+
+    public void convertAndSendToUser(String user, String destination, Message payload) {
+        sendLocally(user, destination, payload);
+        if (isDistributed()) {
+            for (String node : nodeSessionRegistry.remoteNodesOf(user)) {
+                transport.send(node, user, destination, payload);
+            }
+        }
+    }
+
+    public void broadcast(String destination, Message payload) {
+        sendLocally(null, destination, payload);
+        if (isDistributed()) {
+            for (String node : nodeSessionRegistry.remoteNodes()) {
+                transport.send(node, null, destination, payload);
+            }
+        }
+    }
+
+    /**
+     * @param user receiving user, null to broadcast the destination to all sessions of this node
+     */
+    public void sendLocally(String user, String destination, Message payload) {
+        if (user == null) {
+            template.convertAndSend(destination, payload);
+        } else {
+            template.convertAndSendToUser(user, destination, payload);
+        }
+    }
+
+    private boolean isDistributed() {
+        return nodeSessionRegistry != null && transport != null;
+    }
+
+}
@@ -1,7 +1,6 @@
 package com.giggle.team.services;
 
 import com.giggle.team.models.UserEntity;
-import com.giggle.team.repositories.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
@@ -13,11 +12,11 @@ import org.springframework.stereotype.Service;
 public class UserService implements UserDetailsService {
 
     @Autowired
-    private UserRepository userRepository;
+    private UserCache userCache;
 
     @Override
     public UserDetails loadUserByUsername(String email) throws UsernameNotFoundException {
-        final UserEntity customer = userRepository.findByEmail(email);
+        final UserEntity customer = userCache.get(email);
         if (customer == null) {
             throw new UsernameNotFoundException(email);
         }
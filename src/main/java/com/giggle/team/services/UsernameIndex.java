@@ -0,0 +1,94 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.UserEntity;
+import com.giggle.team.repositories.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sorted in-memory index of case-folded usernames for typeahead search
+ * Loaded once on startup and updated on signup on any node, queries never touch mongo
+ */
+@Service
+public class UsernameIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(UsernameIndex.class);
+    private static final char SEPARATOR = '\u0000';
+
+    private final UserRepository userRepository;
+    private final NavigableMap<String, Entry> index = new ConcurrentSkipListMap<>();
+
+    public UsernameIndex(UserRepository userRepository) {
+        this.userRepository = userRepository;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        List<UserEntity> users = userRepository.findAllUsernames();
+        users.forEach(this::add);
+        logger.info("Username index loaded with " + users.size() + " users");
+    }
+
+    public void add(UserEntity user) {
+        add(user.getUsername(), user.getEmail());
+    }
+
+    public void add(String username, String email) {
+        if (username != null && email != null) {
+            index.put(fold(username) + SEPARATOR + email, new Entry(username, email));
+        }
+    }
+
+    /**
+     * @return at most limit users whose username starts with the prefix ignoring case, ordered by username
+     */
+    public List<Entry> findByPrefix(String prefix, int limit) {
+        String folded = fold(prefix);
+        List<Entry> result = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : index.tailMap(folded, true).entrySet()) {
+            if (result.size() >= limit || !entry.getKey().startsWith(folded)) {
+                break;
+            }
+            result.add(entry.getValue());
+        }
+        return result;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    private static String fold(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    public static class Entry {
+
+        private final String username, email;
+
+        public Entry(String username, String email) {
+            this.username = username;
+            this.email = email;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+    }
+
+}
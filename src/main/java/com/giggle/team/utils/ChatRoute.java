@@ -0,0 +1,63 @@
+package com.giggle.team.utils;
+
+import java.util.Objects;
+
+/**
+ * Kafka location of a chat as kept in Topic.kafkaTopic:
+ * "topic" for a chat having its own topic, "topic:partition" for a chat sharing a partition of a multiplexed topic
+ */
+public class ChatRoute {
+
+    private static final char SEPARATOR = ':';
+
+    private final String topic;
+    private final Integer partition;
+
+    public ChatRoute(String topic, Integer partition) {
+        this.topic = topic;
+        this.partition = partition;
+    }
+
+    public static ChatRoute parse(String kafkaTopic) {
+        int separator = kafkaTopic.lastIndexOf(SEPARATOR);
+        if (separator < 0) {
+            return new ChatRoute(kafkaTopic, null);
+        }
+        return new ChatRoute(kafkaTopic.substring(0, separator), Integer.parseInt(kafkaTopic.substring(separator + 1)));
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * @return partition of the multiplexed topic, null when the chat has its own topic
+     */
+    public Integer getPartition() {
+        return partition;
+    }
+
+    public boolean isMultiplexed() {
+        return partition != null;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ChatRoute)) {
+            return false;
+        }
+        ChatRoute route = (ChatRoute) other;
+        return topic.equals(route.topic) && Objects.equals(partition, route.partition);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(topic, partition);
+    }
+
+    @Override
+    public String toString() {
+        return partition == null ? topic : topic + SEPARATOR + partition;
+    }
+
+}
@@ -0,0 +1,249 @@
+package com.giggle.team.utils;
+
+import com.giggle.team.models.Message;
+import org.apache.kafka.common.errors.SerializationException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary format of {@link Message} in kafka topics:
+ * version byte, chatId, type, sender, senderName, messageId, content
+ * Strings are written as length prefixed UTF-8, content has int length, other fields unsigned short length
+ * A null type is written as -1
+ * chatId goes first so it can be read without decoding the rest of the message
+ * Records without version byte are decoded from the legacy "chatId-TYPE-content-sender-name-uuid" string
+ */
+public final class MessageCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final int NULL_SHORT = 0xFFFF;
+    private static final int NULL_INT = -1;
+    private static final byte NULL_TYPE = -1;
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+
+    private MessageCodec() {
+    }
+
+    public static byte[] encode(Message message) {
+        byte[] chatId = bytes(message.getChatId());
+        byte[] sender = bytes(message.getSender());
+        byte[] senderName = bytes(message.getSenderName());
+        byte[] messageId = bytes(message.getMessageId());
+        byte[] content = bytes(message.getContent());
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + length(chatId) + 1 + 2 + length(sender) + 2 + length(senderName)
+                + 2 + length(messageId) + 4 + length(content));
+        buffer.put(VERSION);
+        putShortString(buffer, chatId);
+        buffer.put(message.getType() == null ? NULL_TYPE : (byte) message.getType().ordinal());
+        putShortString(buffer, sender);
+        putShortString(buffer, senderName);
+        putShortString(buffer, messageId);
+        if (content == null) {
+            buffer.putInt(NULL_INT);
+        } else {
+            buffer.putInt(content.length).put(content);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decoding only chatId and checking the type and the field lengths, the rest of the message is decoded on first access
+     *
+     * @throws SerializationException if the record is not a message, so that it fails in the deserializer
+     */
+    public static Message decode(byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        if (data[0] != VERSION) {
+            return decodeLegacy(data);
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 1, data.length - 1);
+            String chatId = getShortString(buffer);
+            int bodyOffset = buffer.position();
+            type(buffer.get());
+            skipShortString(buffer);
+            skipShortString(buffer);
+            skipShortString(buffer);
+            int contentLength = buffer.getInt();
+            if (contentLength != NULL_INT) {
+                skip(buffer, contentLength);
+            }
+            if (buffer.hasRemaining()) {
+                throw new SerializationException("Message of " + data.length + " bytes has " + buffer.remaining()
+                        + " bytes after its content");
+            }
+            return new LazyMessage(chatId, data, bodyOffset);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException e) {
+            throw new SerializationException("Truncated message of " + data.length + " bytes");
+        }
+    }
+
+    private static Message.MessageType type(byte type) {
+        if (type == NULL_TYPE) {
+            return null;
+        }
+        if (type < 0 || type >= TYPES.length) {
+            throw new SerializationException("Unknown message type " + type);
+        }
+        return TYPES[type];
+    }
+
+    private static Message decodeLegacy(byte[] data) {
+        String[] message = new String(data, StandardCharsets.UTF_8).split("-");
+        if (message.length < 6) {
+            throw new SerializationException("Unknown message format, version byte " + data[0]);
+        }
+        try {
+            return new Message(message[0], Message.MessageType.valueOf(message[1]), message[2], message[3], message[4], message[5]);
+        } catch (IllegalArgumentException e) {
+            throw new SerializationException("Unknown legacy message type " + message[1]);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] value) {
+        return value == null ? 0 : value.length;
+    }
+
+    private static void putShortString(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putShort((short) NULL_SHORT);
+            return;
+        }
+        if (value.length >= NULL_SHORT) {
+            throw new SerializationException("Message field is too long: " + value.length + " bytes");
+        }
+        buffer.putShort((short) value.length).put(value);
+    }
+
+    private static String getShortString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        return length == NULL_SHORT ? null : getString(buffer, length);
+    }
+
+    private static void skipShortString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (length != NULL_SHORT) {
+            skip(buffer, length);
+        }
+    }
+
+    private static void skip(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    private static String getString(ByteBuffer buffer, int length) {
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Message with chatId decoded eagerly and other fields decoded from the record bytes on first access
+     */
+    public static final class LazyMessage extends Message {
+
+        private byte[] data;
+        private final int bodyOffset;
+
+        private LazyMessage(String chatId, byte[] data, int bodyOffset) {
+            super();
+            super.setChatId(chatId);
+            this.data = data;
+            this.bodyOffset = bodyOffset;
+        }
+
+        private synchronized void decode() {
+            if (data == null) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data, bodyOffset, data.length - bodyOffset);
+            data = null;
+            super.setType(type(buffer.get()));
+            super.setSender(getShortString(buffer));
+            super.setSenderName(getShortString(buffer));
+            super.setMessageId(getShortString(buffer));
+            int contentLength = buffer.getInt();
+            super.setContent(contentLength == NULL_INT ? null : getString(buffer, contentLength));
+        }
+
+        @Override
+        public MessageType getType() {
+            decode();
+            return super.getType();
+        }
+
+        @Override
+        public void setType(MessageType type) {
+            decode();
+            super.setType(type);
+        }
+
+        @Override
+        public String getContent() {
+            decode();
+            return super.getContent();
+        }
+
+        @Override
+        public void setContent(String content) {
+            decode();
+            super.setContent(content);
+        }
+
+        @Override
+        public String getSender() {
+            decode();
+            return super.getSender();
+        }
+
+        @Override
+        public void setSender(String sender) {
+            decode();
+            super.setSender(sender);
+        }
+
+        @Override
+        public String getSenderName() {
+            decode();
+            return super.getSenderName();
+        }
+
+        @Override
+        public void setSenderName(String senderName) {
+            decode();
+            super.setSenderName(senderName);
+        }
+
+        @Override
+        public String getMessageId() {
+            decode();
+            return super.getMessageId();
+        }
+
+        @Override
+        public void setMessageId(String messageId) {
+            decode();
+            super.setMessageId(messageId);
+        }
+
+        @Override
+        public String toString() {
+            decode();
+            return super.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.giggle.team.utils;
+
+import com.giggle.team.models.Message;
+import org.apache.kafka.common.serialization.Deserializer;
+
+/**
+ * Kafka value deserializer reading {@link Message} in {@link MessageCodec} format
+ * Only chatId is decoded here, the rest of the message is decoded when it is accessed
+ */
+public class MessageDeserializer implements Deserializer<Message> {
+
+    @Override
+    public Message deserialize(String topic, byte[] data) {
+        return MessageCodec.decode(data);
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.giggle.team.utils;
+
+import com.giggle.team.models.Message;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Kafka value serializer writing {@link Message} in {@link MessageCodec} format
+ */
+public class MessageSerializer implements Serializer<Message> {
+
+    @Override
+    public byte[] serialize(String topic, Message data) {
+        return data == null ? null : MessageCodec.encode(data);
+    }
+
+}
@@ -1,34 +1,125 @@
 package com.giggle.team.utils;
 
-import com.giggle.team.models.Topic;
-import com.giggle.team.models.UserEntity;
-import com.giggle.team.repositories.TopicRepository;
-import com.giggle.team.repositories.UserRepository;
+import com.giggle.team.services.MembershipCache;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.stereotype.Service;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
 
 import java.security.Principal;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 @Service
 public class MessageUtils {
 
-    private final UserRepository userRepository;
-    private final TopicRepository topicRepository;
+    /**
+     * CONNECT header of clients accepting arrays of messages in one chat frame
+     */
+    public static final String ACCEPT_BATCH_HEADER = "accept-batch";
+    /**
+     * CONNECT header listing the payload content types the client reads, application/cbor is the only binary one
+     */
+    public static final String ACCEPT_CONTENT_TYPE_HEADER = "accept-content-type";
+    /**
+     * Session attribute of sessions connected to the native websocket endpoint, only they can get binary frames
+     */
+    public static final String NATIVE_ATTRIBUTE = "native";
+    public static final MimeType APPLICATION_CBOR = new MimeType("application", "cbor");
+    private static final String BATCHING_ATTRIBUTE = "batching";
+    private static final String CONTENT_TYPE_ATTRIBUTE = "contentType";
+    private final MembershipCache membershipCache;
 
 
-    public MessageUtils(UserRepository userRepository, TopicRepository topicRepository) {
-        this.userRepository = userRepository;
-        this.topicRepository = topicRepository;
+    public MessageUtils(MembershipCache membershipCache) {
+        this.membershipCache = membershipCache;
+    }
+
+    /**
+     * Chats the user may read, the ones checkDestination grants
+     */
+    public Set<String> getChats(Principal principal) {
+        Set<String> destinations = membershipCache.getDestinations(principal.getName());
+        return Objects.isNull(destinations) ? Collections.emptySet() : destinations;
     }
 
     public boolean checkDestination(Principal principal, String destination) {
-        UserEntity user = userRepository.findByEmail(principal.getName());
+        Set<String> destinations = membershipCache.getDestinations(principal.getName());
         String[] split = destination.split("/");
         if(split[split.length - 1].equals("service")){
-            return !Objects.isNull(user);
+            return !Objects.isNull(destinations);
+        }
+        return !Objects.isNull(destinations) && destinations.contains(split[split.length - 1]);
+    }
+
+    /**
+     * Headers making convertAndSendToUser deliver to one session of the user only
+     */
+    public static MessageHeaders sessionHeaders(String sessionId) {
+        return sessionHeaders(sessionId, null);
+    }
+
+    /**
+     * Headers making convertAndSendToUser deliver to one session of the user only, in the given content type
+     * Without content type the payload is sent as json
+     */
+    public static MessageHeaders sessionHeaders(String sessionId, MimeType contentType) {
+        SimpMessageHeaderAccessor headerAccessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headerAccessor.setSessionId(sessionId);
+        if (contentType != null) {
+            headerAccessor.setContentType(contentType);
+        }
+        headerAccessor.setLeaveMutable(true);
+        return headerAccessor.getMessageHeaders();
+    }
+
+    /**
+     * Remembering in the session attributes what the client advertised in its CONNECT frame:
+     * batch support, and cbor payloads if the session is on the native endpoint
+     */
+    public static void rememberSessionOptions(StompHeaderAccessor connectAccessor) {
+        Map<String, Object> attributes = connectAccessor.getSessionAttributes();
+        if (attributes == null) {
+            return;
+        }
+        if ("true".equals(connectAccessor.getFirstNativeHeader(ACCEPT_BATCH_HEADER))) {
+            attributes.put(BATCHING_ATTRIBUTE, Boolean.TRUE);
+        }
+        String accepted = connectAccessor.getFirstNativeHeader(ACCEPT_CONTENT_TYPE_HEADER);
+        if (accepted != null && attributes.containsKey(NATIVE_ATTRIBUTE)
+                && MimeTypeUtils.parseMimeTypes(accepted).stream().anyMatch(APPLICATION_CBOR::equalsTypeAndSubtype)) {
+            attributes.put(CONTENT_TYPE_ATTRIBUTE, APPLICATION_CBOR);
         }
-        Topic topic = topicRepository.findByStompDestination(split[split.length - 1]);
-        return !Objects.isNull(user) && !Objects.isNull(topic) && user.getTopics().contains(topic.getId());
+    }
+
+    public static boolean isBatching(SimpMessageHeaderAccessor headerAccessor) {
+        Map<String, Object> attributes = headerAccessor.getSessionAttributes();
+        return attributes != null && Boolean.TRUE.equals(attributes.get(BATCHING_ATTRIBUTE));
+    }
+
+    /**
+     * @return content type negotiated for the chat queues of the session, null for json
+     */
+    public static MimeType contentType(SimpMessageHeaderAccessor headerAccessor) {
+        Map<String, Object> attributes = headerAccessor.getSessionAttributes();
+        return attributes == null ? null : (MimeType) attributes.get(CONTENT_TYPE_ATTRIBUTE);
+    }
+
+    /**
+     * Converter of application/cbor payloads, used only for messages having that content type
+     */
+    public static MappingJackson2MessageConverter cborMessageConverter() {
+        MappingJackson2MessageConverter converter = new MappingJackson2MessageConverter(APPLICATION_CBOR);
+        converter.setObjectMapper(Jackson2ObjectMapperBuilder.cbor().build());
+        converter.setStrictContentTypeMatch(true);
+        return converter;
     }
 
 
@@ -0,0 +1,29 @@
+package com.giggle.team.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+/**
+ * Identifier of this application instance
+ * Used to build kafka group ids that must not be shared with other nodes
+ * A random id is only allowed on a single node, the multi-node mode keys shared state and its inbox topic by node-id
+ */
+@Component
+public class NodeIdentity {
+
+    private final String id;
+
+    public NodeIdentity(@Value("${node-id:}") String id, @Value("${chat.routing.enabled:false}") boolean routing) {
+        if (routing && id.isEmpty()) {
+            throw new IllegalStateException("node-id must be set when chat.routing.enabled is true");
+        }
+        this.id = id.isEmpty() ? UUID.randomUUID().toString().replace("-", "") : id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+}
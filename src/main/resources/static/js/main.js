@@ -13,11 +13,15 @@ let chatsAreasMap = new Map();
 let chats = new Map();
 let chatsOnLeft = new Map();
 let users = new Map();
+// version of the user directory the users map is synced to
+let usersVersion = 0;
 
 let stompClient = null;
 let chatName = null;
 let username = null;
 let socket = null;
+let useSockJS = !window.WebSocket;
+let connected = false;
 let ids = [];
 
 let colors = ['#2196F3', '#32c787', '#00BCD4', '#ff5652', '#ffc107',
@@ -25,9 +29,15 @@ let colors = ['#2196F3', '#32c787', '#00BCD4', '#ff5652', '#ffc107',
 
 function connect() {
     //chatPage.classList.remove('hidden');
-    socket = new SockJS('/ws');
+    if (useSockJS) {
+        socket = new SockJS('/ws');
+    } else {
+        // plain websocket, the browser negotiates permessage-deflate
+        socket = new WebSocket((location.protocol === 'https:' ? 'wss://' : 'ws://') + location.host + '/ws-native');
+    }
     stompClient = Stomp.over(socket);
-    stompClient.connect({}, onConnected, onError);
+    // chat frames may carry arrays of messages
+    stompClient.connect({'accept-batch': 'true'}, onConnected, onError);
     window.onbeforeunload = function () {
         stompClient.disconnect();
         socket.onclose = function () {
@@ -37,6 +47,7 @@ function connect() {
 }
 
 function onConnected() {
+    connected = true;
     // Subscribe to the main chat
     let xhr = new XMLHttpRequest();
     xhr.open('GET', '/whoami', false);
@@ -62,19 +73,26 @@ function onConnected() {
     chatNameOnTopSub.textContent = "Everyone"
     // document.getElementById("chat-title").textContent = chatName;
     for (let chatName of Object.keys(chats)) {
-        stompClient.subscribe('/user/' + username + '/queue/' + chatName, onMessageReceived);
+        stompClient.subscribe('/user/queue/' + chatName, onMessageReceived);
         stompClient.send("/app/chat.join", {}, JSON.stringify({
             chatId: chatName,
             content: "",
             type: 'SYSTEM'
         }))
     }
-    stompClient.subscribe('/user/' + username + '/queue/service', onServiceMessageReceived);
+    stompClient.subscribe('/user/queue/service', onServiceMessageReceived);
+    stompClient.subscribe('/topic/service', onServiceMessageReceived);
     connectingElement.style.display = "none";
     updateChats();
 }
 
 function onError(error) {
+    if (!connected && !useSockJS) {
+        // falling back to SockJS when websockets are blocked on the way
+        useSockJS = true;
+        connect();
+        return;
+    }
     connectingElement.style.display = "show";
     connectingElement.textContent = 'Could not connect to WebSocket server. Please refresh this page to try again!';
     connectingElement.style.color = 'red';
@@ -87,6 +105,7 @@ function sendMessage(event) {
             chatId: chatName,
             sender: username,
             content: messageInput.value,
+            messageId: newMessageId(),
             // chatname: chatName,
             type: 'CHAT'
         };
@@ -98,7 +117,13 @@ function sendMessage(event) {
 }
 
 function onMessageReceived(payload) {
-    let message = JSON.parse(payload.body);
+    let body = JSON.parse(payload.body);
+    for (let message of Array.isArray(body) ? body : [body]) {
+        showMessage(message);
+    }
+}
+
+function showMessage(message) {
     if (!ids.includes(message.messageId)) {
         let chatid = message.chatId;
         let sender = message.sender;
@@ -134,10 +159,33 @@ function onServiceMessageReceived(payload) {
     if (serviceMessage.content === 'CHATS_UPDATE') {
         updateChats();
     } else if (serviceMessage.content === 'USERS_UPDATE') {
-        searchUsers();
+        // spreading directory refreshes of all clients over a few seconds
+        setTimeout(searchUsers, Math.random() * 3000);
+    } else if (serviceMessage.content === 'UNREAD_UPDATE') {
+        for (let [chatid, count] of Object.entries(serviceMessage.unread)) {
+            if (chatsOnLeft.has(chatid)) {
+                chatsOnLeft.get(chatid).dataset.unread = count > 0 ? count : '';
+            }
+        }
+    } else if (serviceMessage.content === 'REJOIN') {
+        // the server dropped the chat of this session, joining again replays what was missed
+        stompClient.send("/app/chat.join", {}, JSON.stringify({
+            chatId: serviceMessage.chatId,
+            content: "",
+            type: 'SYSTEM'
+        }))
+    } else if (serviceMessage.content === 'NACK') {
+        console.error('Message ' + serviceMessage.messageId + ' was not delivered to ' + serviceMessage.chatId);
+        alert('Message was not sent, please try again');
     }
 }
 
+function newMessageId() {
+    let bytes = new Uint8Array(16);
+    window.crypto.getRandomValues(bytes);
+    return Array.from(bytes, b => b.toString(16).padStart(2, '0')).join('');
+}
+
 function getAvatarColor(messageSender) {
     let hash = 0;
     for (let i = 0; i < messageSender.length; i++) {
@@ -173,7 +221,7 @@ function updateChats() {
             chatDiv.classList.add('userBg');
             chatDiv.classList.add('Chat1');
             chatsAreasMap.set(chatName, chatDiv);
-            stompClient.subscribe('/user/' + username + '/queue/' + chatName, onMessageReceived);
+            stompClient.subscribe('/user/queue/' + chatName, onMessageReceived);
             stompClient.send("/app/chat.join", {}, JSON.stringify({
                 chatId: chatName,
                 content: "",
@@ -223,15 +271,23 @@ function onChatSelectorClick() {
 
 function searchUsers() {
     var xhr = new XMLHttpRequest();
-    xhr.open("GET", "/show/users", true);
+    xhr.open("GET", "/show/users/delta?since=" + usersVersion, true);
     xhr.onload = function (e) {
         if (xhr.readyState === 4) {
             if (xhr.status === 200) {
+                let delta = JSON.parse(xhr.responseText);
+                for (let [name, email] of Object.entries(delta.users)) {
+                    users.set(name, email);
+                }
+                usersVersion = delta.version;
+                if (delta.more) {
+                    searchUsers();
+                    return;
+                }
                 while (searchResults.hasChildNodes()) {
                     searchResults.firstChild.remove();
                 }
-                users = JSON.parse(xhr.responseText);
-                for (let [name, email] of Object.entries(users)) {
+                for (let [name, email] of users) {
                     if (email !== username) {
                         let result = document.createElement('option');
                         result.value = name;
@@ -239,7 +295,7 @@ function searchUsers() {
                         searchResults.appendChild(result);
                     }
                 }
-            } else {
+            } else if (xhr.status !== 304) {
                 console.error(xhr.statusText);
             }
         }
@@ -287,7 +343,7 @@ document.getElementById("search").addEventListener('input', (e) => {
     let value = e.target.value;
     if (keypress === false) {
         // Clicked on option!
-        createChatWithUser(users[value]);
+        createChatWithUser(users.get(value));
         document.getElementById("search").value = '';
     }
     keypress = false;
@@ -0,0 +1,103 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class ChatFanoutHubTest {
+
+    private static final String CHAT = "0123456789abcdef0123456789abcdef";
+    private static final String OTHER = "fedcba9876543210fedcba9876543210";
+    private static final TopicPartition PARTITION = new TopicPartition("chats-0", 3);
+
+    private final List<ConsumerRecord<String, Message>> partitionRecords = new ArrayList<>();
+    private ChatFanoutHub hub;
+    private MockConsumer<String, Message> consumer;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        // replay.window 5, replay.max 20
+        hub = new ChatFanoutHub(new SubscriptionRegistry(new SimpleMeterRegistry(), 60000), null, null, null, null, null, null,
+                mock(ObjectProvider.class), new SimpleMeterRegistry(), 1, 5, 20, 10000, 1000, 1000, 1, 10, 100, 0);
+        // serving the partition from any position it is seeked to, a few records per poll
+        consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized ConsumerRecords<String, Message> poll(Duration timeout) {
+                int position = (int) position(PARTITION);
+                List<ConsumerRecord<String, Message>> records = new ArrayList<>(
+                        partitionRecords.subList(position, Math.min(position + 7, partitionRecords.size())));
+                seek(PARTITION, position + records.size());
+                return new ConsumerRecords<>(Map.of(PARTITION, records));
+            }
+        };
+        consumer.assign(List.of(PARTITION));
+        consumer.updateBeginningOffsets(Map.of(PARTITION, 0L));
+    }
+
+    @AfterEach
+    void tearDown() {
+        hub.shutdown();
+    }
+
+    @Test
+    void countsTheWindowInRecordsOfTheChatOnASharedPartition() {
+        // the chat wrote every 10th record of 200
+        long end = fill(200, 10);
+
+        assertThat(hub.chatStart(consumer, PARTITION, CHAT, null, end, 0, deadline())).isEqualTo(150);
+        assertThat(hub.chatStart(consumer, PARTITION, CHAT, 120L, end, 0, deadline())).isEqualTo(120);
+        assertThat(hub.chatStart(consumer, PARTITION, CHAT, 0L, end, 0, deadline())).isEqualTo(0);
+    }
+
+    @Test
+    void capsTheReplayInRecordsOfTheChat() {
+        // the chat wrote every other record of 100
+        long end = fill(100, 2);
+
+        assertThat(hub.chatStart(consumer, PARTITION, CHAT, 0L, end, 0, deadline())).isEqualTo(60);
+    }
+
+    @Test
+    void startsAtTheBeginningOfAQuietChat() {
+        // the chat wrote only 2 records of 100
+        long end = fill(100, 50);
+
+        assertThat(hub.chatStart(consumer, PARTITION, CHAT, null, end, 0, deadline())).isEqualTo(0);
+    }
+
+    /**
+     * Records of the chat and of another chat sharing its partition, the chat's every step-th one
+     *
+     * @return end offset
+     */
+    private long fill(int count, int step) {
+        for (long offset = 0; offset < count; offset++) {
+            String chat = offset % step == 0 ? CHAT : OTHER;
+            partitionRecords.add(new ConsumerRecord<>(PARTITION.topic(), PARTITION.partition(), offset, chat,
+                    new Message(chat, Message.MessageType.CHAT, "message " + offset, "user@example.com", "User", "id" + offset)));
+        }
+        return count;
+    }
+
+    private static long deadline() {
+        return System.currentTimeMillis() + 10000;
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.giggle.team.listener;
+
+import com.giggle.team.models.Message;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class ChatSubscriptionTest {
+
+    private static final String CHAT = "0123456789abcdef0123456789abcdef";
+
+    @Test
+    void isDroppedWhenHoldingBackTooManyRecords() {
+        SimpMessagingTemplate template = mock(SimpMessagingTemplate.class);
+        ChatSubscription subscription = new ChatSubscription("session", "user@example.com", CHAT, false, null);
+        subscription.holdLive(10);
+
+        deliver(subscription, template, 0, 6);
+        assertThat(subscription.isDropped()).isFalse();
+        deliver(subscription, template, 6, 6);
+        assertThat(subscription.isDropped()).isTrue();
+
+        subscription.replayed(template, Map.of(), 100);
+        deliver(subscription, template, 12, 1);
+        verifyNoInteractions(template);
+    }
+
+    private static void deliver(ChatSubscription subscription, SimpMessagingTemplate template, long offset, int count) {
+        List<ConsumerRecord<String, Message>> records = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Message message = new Message(CHAT, Message.MessageType.CHAT, "message " + (offset + i), "user@example.com",
+                    "User", "id" + (offset + i));
+            records.add(new ConsumerRecord<>(CHAT, 0, offset + i, CHAT, message));
+            messages.add(message);
+        }
+        subscription.deliver(template, records, messages, 100);
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.giggle.team.listener;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SubscriptionRegistryTest {
+
+    private static final String CHAT = "0123456789abcdef0123456789abcdef";
+
+    @Test
+    void rejectsASecondJoinOfTheSession() {
+        SubscriptionRegistry registry = new SubscriptionRegistry(new SimpleMeterRegistry(), 60000);
+
+        assertThat(registry.add(subscription("session"), subscribers -> {
+        }, chat -> {
+        })).isTrue();
+        assertThat(registry.add(subscription("session"), subscribers -> {
+        }, chat -> {
+        })).isFalse();
+
+        assertThat(registry.getByChat(CHAT)).hasSize(1);
+        assertThat(registry.getBySession("session")).hasSize(1);
+    }
+
+    @Test
+    void rejectsAJoinAfterTheDisconnect() {
+        SubscriptionRegistry registry = new SubscriptionRegistry(new SimpleMeterRegistry(), 60000);
+        registry.removeSession("session", chat -> {
+        });
+
+        assertThat(registry.add(subscription("session"), subscribers -> {
+        }, chat -> {
+        })).isFalse();
+
+        assertThat(registry.getByChat(CHAT)).isEmpty();
+        assertThat(registry.getBySession("session")).isEmpty();
+    }
+
+    @Test
+    void leavesNoSubscriptionOfADisconnectedSession() throws Exception {
+        SubscriptionRegistry registry = new SubscriptionRegistry(new SimpleMeterRegistry(), 60000);
+        AtomicInteger opened = new AtomicInteger();
+        AtomicInteger closed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 20000; i++) {
+                String sessionId = "session" + i;
+                CountDownLatch start = new CountDownLatch(1);
+                Future<Boolean> added = executor.submit(() -> {
+                    start.await();
+                    return registry.add(subscription(sessionId), subscribers -> opened.incrementAndGet(),
+                            chat -> closed.incrementAndGet());
+                });
+                Future<?> removed = executor.submit(() -> {
+                    start.await();
+                    return registry.removeSession(sessionId, chat -> closed.incrementAndGet());
+                });
+                start.countDown();
+                added.get();
+                removed.get();
+
+                assertThat(registry.getByChat(CHAT)).isEmpty();
+                assertThat(registry.getBySession(sessionId)).isEmpty();
+                assertThat(registry.getByUser("user@example.com")).isEmpty();
+                assertThat(closed.get()).isEqualTo(opened.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ChatSubscription subscription(String sessionId) {
+        return new ChatSubscription(sessionId, "user@example.com", CHAT, false, null);
+    }
+
+}
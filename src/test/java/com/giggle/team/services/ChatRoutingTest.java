@@ -0,0 +1,31 @@
+package com.giggle.team.services;
+
+import com.giggle.team.utils.ChatRoute;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChatRoutingTest {
+
+    @Test
+    void spreadsChatsOfEveryTopicOverAllItsPartitions() {
+        ChatRouting chatRouting = new ChatRouting(null, null, new SimpleMeterRegistry(), true, "chats", 4, 8, (short) 1,
+                100, 600000);
+        Map<String, Set<Integer>> partitions = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            ChatRoute route = chatRouting.newRoute(UUID.randomUUID().toString().replace("-", ""));
+            partitions.computeIfAbsent(route.getTopic(), topic -> new HashSet<>()).add(route.getPartition());
+        }
+
+        assertThat(partitions).hasSize(4);
+        partitions.values().forEach(used -> assertThat(used).hasSize(8));
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.ChatActivity;
+import com.giggle.team.models.Message;
+import com.giggle.team.models.Topic;
+import com.giggle.team.models.UserEntity;
+import com.giggle.team.repositories.InboxRepository;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InboxServiceTest {
+
+    private static final String CHAT = "0123456789abcdef0123456789abcdef";
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+    private InboxService service;
+    private final UserEntity alice = new UserEntity("alice", "password", "alice@example.com");
+    private final UserEntity bob = new UserEntity("bob", "password", "bob@example.com");
+
+    @BeforeEach
+    void setUp() {
+        server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://localhost:" + address.getPort());
+        mongoTemplate = new MongoTemplate(client, "inbox");
+        ChatRouting chatRouting = new ChatRouting(null, null, new SimpleMeterRegistry(), false, "chats", 1, 64, (short) 1,
+                100, 600000);
+        service = new InboxService(new MongoRepositoryFactory(mongoTemplate).getRepository(InboxRepository.class),
+                mongoTemplate, chatRouting);
+        Topic main = new Topic("main", "main");
+        service.saved(main, List.of(alice, bob));
+        Topic chat = new Topic(CHAT, CHAT);
+        chat.getUsers().addAll(List.of(alice, bob));
+        service.saved(chat, chat.getUsers());
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        server.shutdownNow();
+    }
+
+    @Test
+    void ordersChatListsByTheActivityOfTheirChats() {
+        service.touched(List.of(record("main", System.currentTimeMillis() + 1000)));
+        assertThat(service.find("alice@example.com").keySet()).containsExactly("main", CHAT);
+
+        service.touched(List.of(record(CHAT, System.currentTimeMillis() + 2000)));
+        assertThat(service.find("alice@example.com").keySet()).containsExactly(CHAT, "main");
+        assertThat(service.find("bob@example.com").keySet()).containsExactly(CHAT, "main");
+        assertThat(service.find("bob@example.com").get(CHAT)).containsExactly("alice", "bob");
+    }
+
+    @Test
+    void keepsOneActivityPerChatAndNeverMovesItBack() {
+        service.touched(List.of(record(CHAT, 2000), record(CHAT, 1000)));
+
+        assertThat(mongoTemplate.findAll(ChatActivity.class)).hasSize(2);
+        assertThat(mongoTemplate.findById(CHAT, ChatActivity.class).getLastActivity().getTime())
+                .isGreaterThan(System.currentTimeMillis() - 60000);
+    }
+
+    @Test
+    void removesTheActivityWithTheChat() {
+        service.removed(new Topic(CHAT, CHAT));
+
+        assertThat(mongoTemplate.findById(CHAT, ChatActivity.class)).isNull();
+        assertThat(service.find("alice@example.com")).containsOnlyKeys("main");
+    }
+
+    private static ConsumerRecord<String, Message> record(String chat, long timestamp) {
+        return new ConsumerRecord<>(chat, 0, 0, timestamp, TimestampType.CREATE_TIME, 0L, 0, 0, null,
+                new Message(chat, Message.MessageType.CHAT, "hi", "carol@example.com", "Carol", "id"));
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.HistoryPage;
+import com.giggle.team.models.Message;
+import com.giggle.team.models.MessageBucket;
+import com.giggle.team.utils.MessageCodec;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageHistoryServiceTest {
+
+    private static final String CHAT = "0123456789abcdef0123456789abcdef";
+    private static final long TIME = 1600000000000L;
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+    private MessageHistoryService service;
+
+    @BeforeEach
+    void setUp() {
+        server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://localhost:" + address.getPort());
+        mongoTemplate = new MongoTemplate(client, "history");
+        ChatRouting chatRouting = new ChatRouting(null, null, new SimpleMeterRegistry(), true, "chats", 1, 64, (short) 1,
+                100, 600000);
+        service = new MessageHistoryService(mongoTemplate, chatRouting, 10, 86400000, 200);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        server.shutdownNow();
+    }
+
+    @Test
+    void readsStoredBucketsBack() {
+        service.store(records(CHAT, 0, 1, 3));
+
+        HistoryPage page = service.page(CHAT, null, 10);
+
+        assertThat(page.getMessages()).extracting(entry -> entry.getMessage().getContent())
+                .containsExactly("message 0", "message 1", "message 2");
+        assertThat(page.getMessages().get(0).getMessage().getClass()).isEqualTo(Message.class);
+        assertThat(page.getMessages().get(0).getMessage().getType()).isEqualTo(Message.MessageType.CHAT);
+        assertThat(page.getMessages().get(0).getMessage().getSender()).isEqualTo("user@example.com");
+    }
+
+    @Test
+    void fillsBucketsOfChatsSharingAPartition() {
+        // every 7th record of the partition belongs to the chat
+        service.store(records(CHAT, 0, 7, 25));
+
+        assertThat(mongoTemplate.findAll(MessageBucket.class)).extracting(bucket -> bucket.getMessages().size())
+                .containsExactlyInAnyOrder(10, 10, 5);
+        assertThat(service.page(CHAT, null, 100).getMessages()).hasSize(25);
+    }
+
+    @Test
+    void ignoresRedeliveredRecords() {
+        List<ConsumerRecord<String, Message>> first = records(CHAT, 0, 1, 15);
+        service.store(first);
+        service.store(first.subList(5, 15));
+        service.store(records(CHAT, 15, 1, 5));
+
+        List<String> contents = service.page(CHAT, null, 100).getMessages().stream()
+                .map(entry -> entry.getMessage().getContent())
+                .collect(Collectors.toList());
+        assertThat(contents).hasSize(20).doesNotHaveDuplicates();
+        assertThat(mongoTemplate.findAll(MessageBucket.class)).hasSize(2);
+    }
+
+    @Test
+    void pagesThroughBucketsOfTheSameDay() {
+        service.store(records(CHAT, 0, 1, 35));
+
+        assertThat(mongoTemplate.findAll(MessageBucket.class)).extracting(MessageBucket::getSeq)
+                .containsExactlyInAnyOrder(0L, 1L, 2L, 3L);
+        List<String> contents = new ArrayList<>();
+        String before = null;
+        int pages = 0;
+        do {
+            HistoryPage page = service.page(CHAT, before, 8);
+            List<String> older = page.getMessages().stream()
+                    .map(entry -> entry.getMessage().getContent())
+                    .collect(Collectors.toList());
+            contents.addAll(0, older);
+            before = page.getNext();
+            pages++;
+        } while (before != null);
+
+        assertThat(pages).isEqualTo(5);
+        assertThat(contents).containsExactlyElementsOf(IntStream.range(0, 35).mapToObj(number -> "message " + number)
+                .collect(Collectors.toList()));
+        assertThat(service.page(CHAT, String.valueOf(TIME + 12), 5).getMessages())
+                .extracting(entry -> entry.getMessage().getContent())
+                .containsExactly("message 7", "message 8", "message 9", "message 10", "message 11");
+    }
+
+    /**
+     * Records of a multiplexed partition keyed by the chat, decoded by the codec like the consumer does
+     */
+    private static List<ConsumerRecord<String, Message>> records(String chat, long firstOffset, long step, int count) {
+        List<ConsumerRecord<String, Message>> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long offset = firstOffset + i * step;
+            long number = step == 1 ? offset : i;
+            Message message = MessageCodec.decode(MessageCodec.encode(new Message(chat, Message.MessageType.CHAT,
+                    "message " + number, "user@example.com", "User", "id" + number)));
+            records.add(new ConsumerRecord<>("chats-0", 3, offset, TIME + number, TimestampType.CREATE_TIME, 0L, 0, 0,
+                    chat, message));
+        }
+        return records;
+    }
+
+}
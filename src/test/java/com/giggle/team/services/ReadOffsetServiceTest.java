@@ -0,0 +1,115 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.ReadOffset;
+import com.giggle.team.repositories.ReadOffsetRepository;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.apache.kafka.common.TopicPartition;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
+
+class ReadOffsetServiceTest {
+
+    private static final String CHAT = "0123456789abcdef0123456789abcdef";
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+    private ReadOffsetService migrating;
+    private ReadOffsetService other;
+
+    @BeforeEach
+    void setUp() {
+        server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://localhost:" + address.getPort());
+        mongoTemplate = new MongoTemplate(client, "offsets");
+        ReadOffsetRepository repository = new MongoRepositoryFactory(mongoTemplate).getRepository(ReadOffsetRepository.class);
+        migrating = new ReadOffsetService(repository, mongoTemplate);
+        other = new ReadOffsetService(repository, mongoTemplate);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        server.shutdownNow();
+    }
+
+    @Test
+    void keepsOffsetsOfEveryTopicApart() {
+        migrating.delivered("user", CHAT, new TopicPartition(CHAT, 0), 10);
+        migrating.delivered("user", CHAT, new TopicPartition("chats-0", 0), 3);
+        migrating.flush();
+        migrating.delivered("user", CHAT, new TopicPartition(CHAT, 0), 12);
+
+        assertThat(migrating.find("user", CHAT, CHAT)).containsExactly(entry(0, 12L));
+        assertThat(migrating.find("user", CHAT, "chats-0")).containsExactly(entry(0, 3L));
+        assertThat(migrating.find("user", List.of(CHAT))).containsExactly(entry(CHAT, Map.of(0, 12L)));
+    }
+
+    @Test
+    void staleFlushesOfTheOldRouteDoNotReachTranslatedOffsets() {
+        other.delivered("user", CHAT, new TopicPartition(CHAT, 0), 500);
+        migrating.replace("user", CHAT, new TopicPartition("chats-0", 0), 7);
+
+        other.flush();
+
+        assertThat(migrating.find("user", CHAT, "chats-0")).containsExactly(entry(0, 7L));
+    }
+
+    @Test
+    void readsOffsetsWrittenWithoutTopicsForTheCurrentRoute() {
+        mongoTemplate.getCollection("offsets").insertOne(new Document("_id", ReadOffset.idOf("user", CHAT))
+                .append("user", "user").append("chat", CHAT).append("offsets", new Document("0", 40L)));
+
+        assertThat(migrating.find("user", CHAT, CHAT)).containsExactly(entry(0, 40L));
+
+        migrating.replace("user", CHAT, new TopicPartition("chats-0", 5), 2);
+
+        assertThat(migrating.find("user", CHAT, "chats-0")).containsExactly(entry(5, 2L));
+    }
+
+    @Test
+    void keepsOffsetsPendingUntilTheyAreStored() {
+        MongoTemplate failing = spy(mongoTemplate);
+        ReadOffsetService service = new ReadOffsetService(
+                new MongoRepositoryFactory(mongoTemplate).getRepository(ReadOffsetRepository.class), failing);
+        service.delivered("alice", CHAT, new TopicPartition(CHAT, 0), 10);
+        service.delivered("bob", CHAT, new TopicPartition(CHAT, 0), 20);
+        doThrow(new DataAccessResourceFailureException("down")).doCallRealMethod()
+                .when(failing).upsert(any(Query.class), any(Update.class), eq(ReadOffset.class));
+
+        service.flush();
+
+        assertThat(service.find("alice", CHAT, CHAT)).containsExactly(entry(0, 10L));
+        assertThat(service.find("bob", CHAT, CHAT)).containsExactly(entry(0, 20L));
+        assertThat(mongoTemplate.findAll(ReadOffset.class)).hasSize(1);
+
+        service.flush();
+
+        assertThat(mongoTemplate.findAll(ReadOffset.class)).hasSize(2);
+        assertThat(migrating.find("alice", CHAT, CHAT)).containsExactly(entry(0, 10L));
+        assertThat(migrating.find("bob", CHAT, CHAT)).containsExactly(entry(0, 20L));
+    }
+
+}
@@ -0,0 +1,266 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.Message;
+import com.giggle.team.utils.ChatRoute;
+import com.giggle.team.utils.MessageCodec;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+class ReplayLogTest {
+
+    private static final String CHAT = "0123456789abcdef0123456789abcdef";
+    private static final ChatRoute ROUTE = new ChatRoute(CHAT, null);
+
+    @TempDir
+    Path path;
+
+    private final List<ReplayLog> logs = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        logs.forEach(ReplayLog::shutdown);
+    }
+
+    @Test
+    void servesBridgedRangesGrowingWithLiveRecords() {
+        ReplayLog log = open(1 << 16, 1 << 20, 100);
+        log.opened(CHAT);
+        int generation = log.generation(CHAT);
+        log.append(CHAT, records(CHAT, 0, 0, 10));
+        log.bridge(CHAT, CHAT, 1, 0, generation, 0, 10);
+        log.append(CHAT, records(CHAT, 0, 10, 5));
+
+        assertThat(log.liveEnds(CHAT, ROUTE)).containsExactly(entry(0, 15L));
+        assertThat(read(log, CHAT, 0, 3, 100)).containsExactly(contents(3, 15));
+        assertThat(log.read(CHAT, CHAT, 0, 15, 100, new ArrayList<>())).isEqualTo(15);
+    }
+
+    @Test
+    void needsEveryPartitionOfTheTopicBridged() {
+        ReplayLog log = open(1 << 16, 1 << 20, 100);
+        log.opened(CHAT);
+        int generation = log.generation(CHAT);
+        log.bridge(CHAT, CHAT, 2, 0, generation, 0, 0);
+
+        assertThat(log.liveEnds(CHAT, ROUTE)).isNull();
+
+        log.bridge(CHAT, CHAT, 2, 1, generation, 0, 0);
+
+        assertThat(log.liveEnds(CHAT, ROUTE)).containsOnly(entry(0, 0L), entry(1, 0L));
+    }
+
+    @Test
+    void ignoresBridgesOfAnEarlierGeneration() {
+        ReplayLog log = open(1 << 16, 1 << 20, 100);
+        log.opened(CHAT);
+        int generation = log.generation(CHAT);
+        log.closed(CHAT);
+        log.opened(CHAT);
+        log.append(CHAT, records(CHAT, 0, 0, 3));
+
+        log.bridge(CHAT, CHAT, 1, 0, generation, 0, 3);
+
+        assertThat(log.liveEnds(CHAT, ROUTE)).isNull();
+        assertThat(log.read(CHAT, CHAT, 0, 0, 3, new ArrayList<>())).isZero();
+    }
+
+    @Test
+    void stopsGrowingRangesOfClosedChats() {
+        ReplayLog log = open(1 << 16, 1 << 20, 100);
+        log.opened(CHAT);
+        log.bridge(CHAT, CHAT, 1, 0, log.generation(CHAT), 0, 0);
+        log.append(CHAT, records(CHAT, 0, 0, 3));
+        log.closed(CHAT);
+        log.append(CHAT, records(CHAT, 0, 3, 2));
+
+        assertThat(log.liveEnds(CHAT, ROUTE)).isNull();
+        assertThat(log.read(CHAT, CHAT, 0, 0, 100, new ArrayList<>())).isEqualTo(3);
+    }
+
+    @Test
+    void keepsTheLatestRecordsOfEveryChat() {
+        ReplayLog log = open(1 << 16, 1 << 20, 3);
+        log.opened(CHAT);
+        log.bridge(CHAT, CHAT, 1, 0, log.generation(CHAT), 0, 0);
+        log.append(CHAT, records(CHAT, 0, 0, 6));
+
+        assertThat(log.read(CHAT, CHAT, 0, 0, 6, new ArrayList<>())).isZero();
+        assertThat(read(log, CHAT, 0, 3, 6)).containsExactly(contents(3, 6));
+    }
+
+    @Test
+    void recoversRecordsAndRangesAfterARestart() {
+        ReplayLog log = open(1 << 16, 1 << 20, 100);
+        log.opened(CHAT);
+        log.bridge(CHAT, CHAT, 1, 0, log.generation(CHAT), 0, 0);
+        log.append(CHAT, records(CHAT, 0, 0, 5));
+        log.shutdown();
+
+        ReplayLog reopened = open(1 << 16, 1 << 20, 100);
+
+        assertThat(reopened.liveEnds(CHAT, ROUTE)).isNull();
+        assertThat(read(reopened, CHAT, 0, 0, 100)).containsExactly(contents(0, 5));
+    }
+
+    @Test
+    void appendsAfterTheLastIntactEntryOfABrokenSegment() throws IOException {
+        ReplayLog log = open(1 << 16, 1 << 20, 100);
+        log.opened(CHAT);
+        log.bridge(CHAT, CHAT, 1, 0, log.generation(CHAT), 0, 0);
+        log.append(CHAT, records(CHAT, 0, 0, 5));
+        log.shutdown();
+        // the type of the third entry, every entry has the same length
+        int entry = 4 + 1 + 2 + CHAT.length() + 2 + CHAT.length() + 4 + 8 + 8 + MessageCodec.encode(message(CHAT, 0)).length;
+        corrupt(segmentFiles().get(0), 2 * entry + 4, (byte) 7);
+
+        ReplayLog reopened = open(1 << 16, 1 << 20, 100);
+        assertThat(reopened.read(CHAT, CHAT, 0, 0, 100, new ArrayList<>())).isZero();
+
+        reopened.opened(CHAT);
+        reopened.bridge(CHAT, CHAT, 1, 0, reopened.generation(CHAT), 5, 5);
+        reopened.append(CHAT, records(CHAT, 0, 5, 2));
+        reopened.closed(CHAT);
+        reopened.shutdown();
+
+        assertThat(read(open(1 << 16, 1 << 20, 100), CHAT, 0, 5, 100)).containsExactly(contents(5, 7));
+    }
+
+    @Test
+    void countsOnlyTheRecordsOfTheChatOnASharedPartition() {
+        ReplayLog log = open(1 << 16, 1 << 20, 100);
+        log.opened(CHAT);
+        int generation = log.generation(CHAT);
+        List<ConsumerRecord<String, Message>> records = new ArrayList<>();
+        // every 7th record of the partition belongs to the chat
+        for (long offset = 0; offset < 140; offset += 7) {
+            records.add(new ConsumerRecord<>("chats-0", 3, offset, CHAT, message(CHAT, offset)));
+        }
+        log.append(CHAT, records);
+        log.bridge(CHAT, "chats-0", 64, 3, generation, 0, 140);
+
+        assertThat(log.offsetBefore(CHAT, "chats-0", 3, 140, 5)).isEqualTo(105);
+        assertThat(log.offsetBefore(CHAT, "chats-0", 3, 140, 50)).isEqualTo(0);
+        assertThat(log.offsetBefore(CHAT, "chats-0", 3, 200, 5)).isEqualTo(200);
+    }
+
+    @Test
+    void deletesTheOldestSegmentsInTheBackground() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ReplayLog log = open(meterRegistry, 1024, 4096, 1000);
+        log.opened(CHAT);
+        log.bridge(CHAT, CHAT, 1, 0, log.generation(CHAT), 0, 0);
+        log.append(CHAT, records(CHAT, 0, 0, 200));
+
+        log.awaitMaintenance();
+        // the ranges written by the last pass may have rolled one more segment
+        assertThat(meterRegistry.get("chat.replay-log.size").gauge().value()).isLessThanOrEqualTo(4096 + 1024);
+        assertThat(log.liveEnds(CHAT, ROUTE)).containsExactly(entry(0, 200L));
+        List<Message> messages = new ArrayList<>();
+        long start = 0;
+        while (start < 200 && log.read(CHAT, CHAT, 0, start, 200, messages) == start) {
+            start++;
+        }
+        // the newest segments survive with their records
+        assertThat(start).isGreaterThan(150).isLessThan(200);
+        assertThat(messages.stream().map(Message::getContent)).containsExactly(contents(start, 200));
+    }
+
+    @Test
+    void appendsAndReadsChatsConcurrently() throws Exception {
+        ReplayLog log = open(1 << 14, 1 << 20, 1000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            String chat = CHAT.substring(1) + thread;
+            futures.add(executor.submit(() -> {
+                log.opened(chat);
+                log.bridge(chat, chat, 1, 0, log.generation(chat), 0, 0);
+                for (int offset = 0; offset < 500; offset += 10) {
+                    log.append(chat, records(chat, 0, offset, 10));
+                    assertThat(read(log, chat, 0, 0, offset + 10)).containsExactly(contents(0, offset + 10));
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private ReplayLog open(int segmentSize, long maxSize, int perChat) {
+        return open(new SimpleMeterRegistry(), segmentSize, maxSize, perChat);
+    }
+
+    private ReplayLog open(SimpleMeterRegistry meterRegistry, int segmentSize, long maxSize, int perChat) {
+        try {
+            ReplayLog log = new ReplayLog(meterRegistry, path.toString(), segmentSize, maxSize, perChat);
+            logs.add(log);
+            return log;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(path)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void corrupt(Path file, int position, byte value) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{value}), position);
+        }
+    }
+
+    private static List<String> read(ReplayLog log, String chat, int partition, long start, long end) {
+        List<Message> messages = new ArrayList<>();
+        log.read(chat, chat, partition, start, end, messages);
+        return messages.stream().map(Message::getContent).collect(Collectors.toList());
+    }
+
+    private static String[] contents(long from, long to) {
+        List<String> contents = new ArrayList<>();
+        for (long offset = from; offset < to; offset++) {
+            contents.add("message " + offset);
+        }
+        return contents.toArray(new String[0]);
+    }
+
+    private static List<ConsumerRecord<String, Message>> records(String chat, int partition, long firstOffset, int count) {
+        List<ConsumerRecord<String, Message>> records = new ArrayList<>();
+        for (long offset = firstOffset; offset < firstOffset + count; offset++) {
+            records.add(new ConsumerRecord<>(chat, partition, offset, 1600000000000L + offset, TimestampType.CREATE_TIME,
+                    0L, 0, 0, null, message(chat, offset)));
+        }
+        return records;
+    }
+
+    private static Message message(String chat, long offset) {
+        return new Message(chat, Message.MessageType.CHAT, "message " + offset, "user@example.com", "User", "id" + offset);
+    }
+
+}
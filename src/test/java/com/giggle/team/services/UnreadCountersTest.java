@@ -0,0 +1,100 @@
+package com.giggle.team.services;
+
+import com.giggle.team.listener.SubscriptionRegistry;
+import com.giggle.team.models.Message;
+import com.giggle.team.models.UnreadUpdate;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UnreadCountersTest {
+
+    private final SimpMessagingTemplate template = mock(SimpMessagingTemplate.class);
+    private final MembershipCache membershipCache = mock(MembershipCache.class);
+    private final ReadOffsetService readOffsetService = mock(ReadOffsetService.class);
+    private final ChatRouting chatRouting = mock(ChatRouting.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private UnreadCounters unreadCounters;
+
+    @BeforeEach
+    void setUp() {
+        when(readOffsetService.find(anyString(), anyCollection())).thenReturn(Collections.emptyMap());
+        when(chatRouting.chatOf(any())).thenAnswer(invocation -> invocation.<ConsumerRecord<?, ?>>getArgument(0).topic());
+        unreadCounters = new UnreadCounters(template, membershipCache, readOffsetService, new SubscriptionRegistry(meterRegistry, 60000),
+                chatRouting, meterRegistry);
+    }
+
+    @Test
+    void dropsAUserHavingNoCountedChats() {
+        subscribe("alice", "s1");
+
+        disconnect("alice", "s1");
+        unreadCounters.flush();
+
+        verify(template, never()).convertAndSendToUser(anyString(), anyString(), any(Object.class));
+    }
+
+    @Test
+    void countsTheNextUserUnderItsOwnName() {
+        when(membershipCache.getDestinations("alice")).thenReturn(Collections.singleton("a"));
+        when(membershipCache.getDestinations("bob")).thenReturn(Collections.singleton("b"));
+        subscribe("alice", "s1");
+        disconnect("alice", "s1");
+
+        subscribe("bob", "s2");
+        unreadCounters.onRecords(List.of(new ConsumerRecord<>("b", 0, 0, "b",
+                new Message("b", Message.MessageType.CHAT, "hi", "carol", "Carol", "id"))));
+        unreadCounters.flush();
+
+        ArgumentCaptor<Object> update = ArgumentCaptor.forClass(Object.class);
+        verify(template).convertAndSendToUser(eq("bob"), eq("/queue/service"), update.capture());
+        assertThat(((UnreadUpdate) update.getValue()).getUnread()).containsExactly(entry("b", 1));
+        verify(template, never()).convertAndSendToUser(eq("alice"), anyString(), any(Object.class));
+        assertThat(meterRegistry.get("chat.unread.counters").gauge().value()).isEqualTo(1);
+    }
+
+    private void subscribe(String user, String session) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+        headers.setSessionId(session);
+        headers.setDestination("/user/queue/service");
+        unreadCounters.subscribed(new SessionSubscribeEvent(this,
+                MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders()), principal(user)));
+    }
+
+    private void disconnect(String user, String session) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.DISCONNECT);
+        headers.setSessionId(session);
+        unreadCounters.disconnected(new SessionDisconnectEvent(this,
+                MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders()), session, CloseStatus.NORMAL,
+                principal(user)));
+    }
+
+    private static Principal principal(String user) {
+        return () -> user;
+    }
+
+}
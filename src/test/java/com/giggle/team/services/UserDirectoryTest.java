@@ -0,0 +1,99 @@
+package com.giggle.team.services;
+
+import com.giggle.team.models.DirectoryDelta;
+import com.giggle.team.models.UserEntity;
+import com.giggle.team.repositories.UserRepository;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+
+import java.net.InetSocketAddress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserDirectoryTest {
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+    private UserRepository userRepository;
+
+    @BeforeEach
+    void setUp() {
+        server = new MongoServer(new MemoryBackend());
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://localhost:" + address.getPort());
+        mongoTemplate = new MongoTemplate(client, "directory");
+        userRepository = new MongoRepositoryFactory(mongoTemplate).getRepository(UserRepository.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        server.shutdownNow();
+    }
+
+    @Test
+    void servesChangesStoredOutOfOrderOnlyOnceAllOlderOnesAreStored() {
+        UserDirectory directory = new UserDirectory(userRepository, mongoTemplate, 1000, 60000);
+        long first = directory.nextVersion();
+        long second = directory.nextVersion();
+        save(directory, "bob", second);
+
+        DirectoryDelta early = directory.since(0);
+        assertThat(early.getUsers()).isEmpty();
+        assertThat(early.getVersion()).isEqualTo(first - 1);
+
+        save(directory, "alice", first);
+
+        DirectoryDelta delta = directory.since(early.getVersion());
+        assertThat(delta.getUsers()).containsOnlyKeys("alice", "bob");
+        assertThat(delta.getVersion()).isEqualTo(second);
+        assertThat(directory.since(delta.getVersion()).getUsers()).isEmpty();
+    }
+
+    @Test
+    void givesUpOnVersionsPendingTooLongOnlyWhenExpiring() {
+        UserDirectory directory = new UserDirectory(userRepository, mongoTemplate, 1000, -1);
+        long first = directory.nextVersion();
+        long second = directory.nextVersion();
+        save(directory, "bob", second);
+
+        assertThat(directory.version()).isEqualTo(first - 1);
+        assertThat(directory.since(0).getUsers()).isEmpty();
+
+        directory.expirePending();
+
+        assertThat(directory.version()).isEqualTo(second);
+        assertThat(directory.since(0).getUsers()).containsOnlyKeys("bob");
+    }
+
+    @Test
+    void cutsDeltasAtTheMaximum() {
+        UserDirectory directory = new UserDirectory(userRepository, mongoTemplate, 2, 60000);
+        for (String user : new String[]{"alice", "bob", "carol"}) {
+            save(directory, user, directory.nextVersion());
+        }
+
+        DirectoryDelta first = directory.since(0);
+        assertThat(first.getUsers()).containsOnlyKeys("alice", "bob");
+        assertThat(first.isMore()).isTrue();
+        DirectoryDelta second = directory.since(first.getVersion());
+        assertThat(second.getUsers()).containsOnlyKeys("carol");
+        assertThat(second.isMore()).isFalse();
+    }
+
+    private void save(UserDirectory directory, String username, long version) {
+        UserEntity user = new UserEntity(username, "password", username + "@example.com");
+        user.setDirectoryVersion(version);
+        userRepository.save(user);
+        directory.written(version);
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.giggle.team.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LongIntMapTest {
+
+    @Test
+    void splitsKeysIntoTheirInts() {
+        long key = LongIntMap.key(7, Integer.MAX_VALUE);
+
+        assertThat(LongIntMap.high(key)).isEqualTo(7);
+        assertThat(LongIntMap.low(key)).isEqualTo(Integer.MAX_VALUE);
+    }
+
+    @Test
+    void putsAddsAndGrows() {
+        LongIntMap map = new LongIntMap(2);
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+            map.add(i, 1);
+        }
+
+        assertThat(map.size()).isEqualTo(1000);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(map.get(i)).isEqualTo(i + 1);
+        }
+        assertThat(map.get(1000)).isZero();
+        assertThat(map.containsKey(1000)).isFalse();
+    }
+
+    @Test
+    void findsEveryKeyOfAClusterAfterRemovingItsHead() {
+        LongIntMap map = new LongIntMap(64);
+        List<Long> cluster = new ArrayList<>();
+        for (long key = 0; cluster.size() < 4; key++) {
+            if (homeOf(key, 128) == homeOf(0, 128)) {
+                cluster.add(key);
+                map.put(key, (int) key);
+            }
+        }
+
+        map.remove(cluster.get(0));
+
+        assertThat(map.size()).isEqualTo(3);
+        assertThat(map.containsKey(cluster.get(0))).isFalse();
+        for (long key : cluster.subList(1, 4)) {
+            assertThat(map.get(key)).isEqualTo((int) key);
+        }
+    }
+
+    @Test
+    void matchesAHashMapUnderRandomPutsAndRemoves() {
+        Random random = new Random(42);
+        LongIntMap map = new LongIntMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(512);
+            if (random.nextInt(3) == 0) {
+                map.remove(key);
+                expected.remove(key);
+            } else {
+                map.put(key, i);
+                expected.put(key, i);
+            }
+        }
+
+        assertThat(map.size()).isEqualTo(expected.size());
+        for (long key = 0; key < 512; key++) {
+            assertThat(map.containsKey(key)).isEqualTo(expected.containsKey(key));
+            assertThat(map.get(key)).isEqualTo(expected.getOrDefault(key, 0));
+        }
+        Map<Long, Integer> iterated = new HashMap<>();
+        map.forEach(iterated::put);
+        assertThat(iterated).isEqualTo(expected);
+    }
+
+    @Test
+    void clearsAllKeys() {
+        LongIntMap map = new LongIntMap();
+        map.put(1, 1);
+        map.put(2, 2);
+
+        map.clear();
+
+        assertThat(map.size()).isZero();
+        assertThat(map.containsKey(1)).isFalse();
+    }
+
+    /**
+     * Home slot of a key in a table of the capacity, mirrors the hash of the map
+     */
+    private static int homeOf(long key, int capacity) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (capacity - 1);
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.giggle.team.utils;
+
+import com.giggle.team.models.Message;
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MessageCodecTest {
+
+    @Test
+    void roundTripsAllFields() {
+        Message message = new Message("chat", Message.MessageType.CHAT, "hello-world", "a@b.c", "name", "id");
+
+        Message decoded = MessageCodec.decode(MessageCodec.encode(message));
+
+        assertThat(decoded.getChatId()).isEqualTo("chat");
+        assertThat(decoded.getType()).isEqualTo(Message.MessageType.CHAT);
+        assertThat(decoded.getContent()).isEqualTo("hello-world");
+        assertThat(decoded.getSender()).isEqualTo("a@b.c");
+        assertThat(decoded.getSenderName()).isEqualTo("name");
+        assertThat(decoded.getMessageId()).isEqualTo("id");
+    }
+
+    @Test
+    void roundTripsNullFields() {
+        Message decoded = MessageCodec.decode(MessageCodec.encode(new Message("chat", null, null, null, null, null)));
+
+        assertThat(decoded.getType()).isNull();
+        assertThat(decoded.getContent()).isNull();
+        assertThat(decoded.getSender()).isNull();
+    }
+
+    @Test
+    void rejectsUnknownTypeInTheDeserializer() {
+        byte[] data = MessageCodec.encode(new Message("chat", Message.MessageType.CHAT, "x", "s", "n", "id"));
+        data[1 + 2 + "chat".length()] = 100;
+
+        assertThatThrownBy(() -> MessageCodec.decode(data)).isInstanceOf(SerializationException.class);
+    }
+
+    @Test
+    void rejectsTruncatedRecords() {
+        byte[] data = MessageCodec.encode(new Message("chat", Message.MessageType.CHAT, "x", "s", "n", "id"));
+
+        assertThatThrownBy(() -> MessageCodec.decode(Arrays.copyOf(data, 4))).isInstanceOf(SerializationException.class);
+    }
+
+    @Test
+    void rejectsRecordsTruncatedAfterTheType() {
+        byte[] data = MessageCodec.encode(new Message("chat", Message.MessageType.CHAT, "content", "s", "n", "id"));
+
+        for (int length = 1 + 2 + "chat".length() + 1; length < data.length; length++) {
+            byte[] truncated = Arrays.copyOf(data, length);
+            assertThatThrownBy(() -> MessageCodec.decode(truncated)).isInstanceOf(SerializationException.class);
+        }
+        assertThatThrownBy(() -> MessageCodec.decode(Arrays.copyOf(data, data.length + 1)))
+                .isInstanceOf(SerializationException.class);
+    }
+
+    @Test
+    void rejectsMalformedLegacyRecords() {
+        byte[] data = "chat-NOPE-content-sender-name-id".getBytes(StandardCharsets.UTF_8);
+
+        assertThatThrownBy(() -> MessageCodec.decode(data)).isInstanceOf(SerializationException.class);
+    }
+
+}